@@ -0,0 +1,56 @@
+package io.airlift.stackfold;
+
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkPositionIndexes;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * A line of ASCII text in a byte buffer, viewed as characters without
+ * decoding. Only {@link #toString()} copies the bytes, so a parser can scan
+ * the line and only materialize the fields it keeps.
+ */
+final class ByteLine
+        implements CharSequence
+{
+    private final ByteBuffer buffer;
+    private final int offset;
+    private final int length;
+
+    public ByteLine(ByteBuffer buffer, int offset, int length)
+    {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public int length()
+    {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index)
+    {
+        return (char) (buffer.get(offset + index) & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end)
+    {
+        checkPositionIndexes(start, end, length);
+        return new ByteLine(buffer, offset + start, end - start);
+    }
+
+    @Override
+    public String toString()
+    {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        // the line is ASCII, which is the fastest to decode as Latin-1
+        return new String(bytes, ISO_8859_1);
+    }
+}
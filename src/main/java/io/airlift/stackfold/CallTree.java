@@ -0,0 +1,186 @@
+package io.airlift.stackfold;
+
+import java.util.Arrays;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Prefix tree of the traces of a {@link TraceGroups}, merged from the
+ * outermost frame, such as {@code Thread.run}, with the number of threads
+ * passing through each node. Traces that only differ in their innermost
+ * frames share all the nodes of their common prefix, so the tree grows with
+ * the number of distinct branches, not with the number of threads times the
+ * trace depth.
+ * <p>
+ * Like traces, nodes are merged by class and method; a node shows the file
+ * and line of the first frame added to it. The root is node 0 and has no
+ * frame. Nodes are stored in parallel arrays and identified by an int id.
+ */
+public final class CallTree
+{
+    public static final int ROOT = 0;
+
+    private final FrameTable frameTable = new FrameTable();
+
+    private int[] frames = new int[16];
+    private int[] methods = new int[16];
+    private int[] parents = new int[16];
+    private int[] firstChildren = new int[16];
+    private int[] nextSiblings = new int[16];
+    private long[] counts = new long[16];
+    private int size = 1;
+
+    // open addressing index from parent and method to node id, 0 is empty since the root is never a child
+    private int[] index = new int[32];
+
+    private CallTree()
+    {
+        frames[ROOT] = -1;
+        methods[ROOT] = -1;
+        parents[ROOT] = -1;
+        firstChildren[ROOT] = -1;
+        nextSiblings[ROOT] = -1;
+    }
+
+    public static CallTree build(TraceGroups groups)
+    {
+        checkNotNull(groups, "groups is null");
+        CallTree tree = new CallTree();
+        for (TraceGroup group : groups.getGroups()) {
+            tree.add(group.getEncodedTrace(), group.getThreadCount());
+        }
+        return tree;
+    }
+
+    private void add(Trace trace, long count)
+    {
+        int node = ROOT;
+        counts[ROOT] += count;
+        for (int position = trace.size() - 1; position >= 0; position--) {
+            int frame = frameTable.intern(trace.getFrame(position));
+            node = getChild(node, frame);
+            counts[node] += count;
+        }
+    }
+
+    private int getChild(int parent, int frame)
+    {
+        int method = frameTable.getMethodId(frame);
+        int hash = hash(parent, method);
+        int slot = hash & (index.length - 1);
+        while (index[slot] != 0) {
+            int node = index[slot];
+            if (parents[node] == parent && methods[node] == method) {
+                return node;
+            }
+            slot = (slot + 1) & (index.length - 1);
+        }
+
+        int node = size;
+        if (node == frames.length) {
+            int length = node * 2;
+            frames = Arrays.copyOf(frames, length);
+            methods = Arrays.copyOf(methods, length);
+            parents = Arrays.copyOf(parents, length);
+            firstChildren = Arrays.copyOf(firstChildren, length);
+            nextSiblings = Arrays.copyOf(nextSiblings, length);
+            counts = Arrays.copyOf(counts, length);
+        }
+        frames[node] = frame;
+        methods[node] = method;
+        parents[node] = parent;
+        firstChildren[node] = -1;
+        nextSiblings[node] = firstChildren[parent];
+        firstChildren[parent] = node;
+        size++;
+
+        index[slot] = node;
+        if (size * 2 > index.length) {
+            rehash();
+        }
+        return node;
+    }
+
+    private void rehash()
+    {
+        index = new int[index.length * 2];
+        for (int node = 1; node < size; node++) {
+            int slot = hash(parents[node], methods[node]) & (index.length - 1);
+            while (index[slot] != 0) {
+                slot = (slot + 1) & (index.length - 1);
+            }
+            index[slot] = node;
+        }
+    }
+
+    private static int hash(int parent, int method)
+    {
+        int hash = parent * 0x9e3779b9 + method;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Returns the number of nodes, including the root.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the number of threads, which is the count of the root.
+     */
+    public long getThreadCount()
+    {
+        return counts[ROOT];
+    }
+
+    public StackElement getFrame(int node)
+    {
+        checkElementIndex(node, size);
+        return (node == ROOT) ? null : frameTable.getFrame(frames[node]);
+    }
+
+    public long getCount(int node)
+    {
+        checkElementIndex(node, size);
+        return counts[node];
+    }
+
+    /**
+     * Returns the children of the node, with the most threads first, and in
+     * the order they were added among equals.
+     */
+    public int[] getChildren(int node)
+    {
+        checkElementIndex(node, size);
+        int childCount = 0;
+        for (int child = firstChildren[node]; child >= 0; child = nextSiblings[child]) {
+            childCount++;
+        }
+        // children are linked newest first
+        Integer[] children = new Integer[childCount];
+        int position = childCount;
+        for (int child = firstChildren[node]; child >= 0; child = nextSiblings[child]) {
+            children[--position] = child;
+        }
+        Arrays.sort(children, (left, right) -> Long.compare(counts[right], counts[left]));
+
+        int[] result = new int[childCount];
+        for (int i = 0; i < childCount; i++) {
+            result[i] = children[i];
+        }
+        return result;
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("nodes", size)
+                .add("threads", getThreadCount())
+                .toString();
+    }
+}
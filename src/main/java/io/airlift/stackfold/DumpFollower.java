@@ -0,0 +1,309 @@
+package io.airlift.stackfold;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static io.airlift.stackfold.LineScanner.startsWith;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Follows a growing file or a stream of thread dumps, such as the output of
+ * {@code jstack} run in a loop, and adds every dump to a
+ * {@link RollingTraceGroups} as soon as it is complete. Each dump is parsed
+ * on its own, so the work per dump does not depend on how long the input
+ * has been followed.
+ * <p>
+ * A dump starts at a timestamp line or at the {@code Full thread dump}
+ * header, whichever comes first, and ends at the {@code JNI global} line
+ * that jstack prints last, at the start of the next dump, or at the end of
+ * the input. The timestamp line, if present, is the time of the snapshot,
+ * and otherwise the time it was completed.
+ * <p>
+ * Lines are read on a separate thread, which waits for the file to grow at
+ * its end and starts over if it is truncated. The other methods are not
+ * thread safe.
+ */
+public final class DumpFollower
+        implements AutoCloseable
+{
+    private static final Pattern TIMESTAMP_PATTERN = Pattern.compile("\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}");
+    private static final String SNAPSHOT_HEADER = "Full thread dump";
+    private static final String SNAPSHOT_TRAILER = "JNI global";
+
+    private static final long FILE_POLL_MILLIS = 200;
+    private static final int MAX_QUEUED_LINES = 64 * 1024;
+    // compared by identity, so no line read can be mistaken for it
+    private static final String END_OF_INPUT = new String("end of input");
+
+    private final StackFoldings stackFoldings;
+    private final RollingTraceGroups window;
+    private final Charset charset;
+    private final BlockingQueue<String> lines = new ArrayBlockingQueue<>(MAX_QUEUED_LINES);
+    private Thread reader;
+    private volatile boolean inputEnded;
+    private volatile Throwable failure;
+    private boolean finished;
+
+    // lines of the dump being read, if inside a dump
+    private final List<String> snapshotLines = new ArrayList<>();
+    private boolean inSnapshot;
+    private long snapshotMillis = -1;
+    private long malformedCount;
+
+    private DumpFollower(StackFoldings stackFoldings, RollingTraceGroups window, Charset charset, boolean inSnapshot)
+    {
+        this.stackFoldings = checkNotNull(stackFoldings, "stackFoldings is null");
+        this.window = checkNotNull(window, "window is null");
+        this.charset = checkNotNull(charset, "charset is null");
+        this.inSnapshot = inSnapshot;
+    }
+
+    /**
+     * Follows the file from its current end, ignoring the rest of a dump
+     * that is being written when it starts.
+     */
+    public static DumpFollower followFile(Path file, Charset charset, StackFoldings stackFoldings, RollingTraceGroups window)
+            throws IOException
+    {
+        FileChannel channel = FileChannel.open(file, READ);
+        channel.position(channel.size());
+        DumpFollower follower = new DumpFollower(stackFoldings, window, charset, false);
+        follower.startReader(() -> follower.tail(channel));
+        return follower;
+    }
+
+    /**
+     * Follows the stream from its start until it ends. Lines before the first
+     * dump boundary are a dump of their own, so a single dump without a
+     * header is also read.
+     */
+    public static DumpFollower followStream(InputStream in, Charset charset, StackFoldings stackFoldings, RollingTraceGroups window)
+    {
+        checkNotNull(in, "in is null");
+        DumpFollower follower = new DumpFollower(stackFoldings, window, charset, true);
+        follower.startReader(() -> follower.readLines(in, null));
+        return follower;
+    }
+
+    /**
+     * Processes the lines that arrive within the timeout, and returns the
+     * number of dumps that were completed, or -1 once the input has ended
+     * and every dump has been processed.
+     */
+    public int process(long timeout, TimeUnit unit)
+            throws IOException, InterruptedException
+    {
+        if (finished) {
+            return -1;
+        }
+
+        int completed = 0;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            String line = lines.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            if (line != null && line != END_OF_INPUT) {
+                completed += accept(line);
+                continue;
+            }
+            if (line == END_OF_INPUT || (inputEnded && lines.isEmpty())) {
+                if (failure != null) {
+                    throw new IOException("Failed to read thread dumps", failure);
+                }
+                completed += finishSnapshot();
+                finished = true;
+                return completed;
+            }
+            if (System.nanoTime() >= deadline) {
+                return completed;
+            }
+        }
+    }
+
+    public RollingTraceGroups getWindow()
+    {
+        return window;
+    }
+
+    /**
+     * Returns the number of dumps that were skipped because they could not be parsed.
+     */
+    public long getMalformedCount()
+    {
+        return malformedCount;
+    }
+
+    @Override
+    public void close()
+    {
+        reader.interrupt();
+    }
+
+    private int accept(String line)
+    {
+        int completed = 0;
+        if (TIMESTAMP_PATTERN.matcher(line).matches()) {
+            completed = finishSnapshot();
+            inSnapshot = true;
+            snapshotMillis = parseTimestamp(line);
+        }
+        else if (startsWith(line, 0, SNAPSHOT_HEADER)) {
+            // the header of a dump that started with a timestamp line does not start another one
+            if (!inSnapshot || !snapshotLines.isEmpty()) {
+                completed = finishSnapshot();
+                inSnapshot = true;
+            }
+            snapshotLines.add(line);
+        }
+        else if (startsWith(line, 0, SNAPSHOT_TRAILER)) {
+            completed = finishSnapshot();
+            inSnapshot = false;
+        }
+        else if (inSnapshot) {
+            snapshotLines.add(line);
+        }
+        return completed;
+    }
+
+    private int finishSnapshot()
+    {
+        long timeMillis = (snapshotMillis >= 0) ? snapshotMillis : System.currentTimeMillis();
+        TraceGroups groups;
+        try {
+            groups = TraceGroups.groupStacks(new StackParser(snapshotLines.iterator(), stackFoldings));
+        }
+        catch (IllegalArgumentException | IllegalStateException e) {
+            // a garbled dump must not stop the follower
+            malformedCount++;
+            return 0;
+        }
+        finally {
+            snapshotLines.clear();
+            snapshotMillis = -1;
+        }
+
+        if (groups.getThreadCount() == 0) {
+            return 0;
+        }
+        if (groups.getSnapshotCount() == 0) {
+            groups.addSnapshots(1);
+        }
+        window.add(groups, timeMillis);
+        return 1;
+    }
+
+    private static long parseTimestamp(String line)
+    {
+        try {
+            return LocalDateTime.parse(line.replace(' ', 'T')).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+        catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private void startReader(ReadTask task)
+    {
+        reader = new Thread(() -> {
+            try {
+                task.run();
+            }
+            catch (InterruptedException | InterruptedIOException | ClosedByInterruptException e) {
+                // closed
+            }
+            catch (Throwable e) {
+                failure = e;
+            }
+            finally {
+                inputEnded = true;
+                // wakes up a waiting reader unless the queue is full, in which case it is drained first
+                lines.offer(END_OF_INPUT);
+            }
+        }, "stackfold-follow");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void tail(FileChannel channel)
+            throws IOException, InterruptedException
+    {
+        try (FileChannel file = channel) {
+            readLines(Channels.newInputStream(file), file);
+        }
+    }
+
+    /**
+     * Reads the stream to its end. If a file channel is given, waits for more
+     * data at the end instead, and starts over if the file is truncated.
+     */
+    private void readLines(InputStream in, FileChannel file)
+            throws IOException, InterruptedException
+    {
+        byte[] buffer = new byte[64 * 1024];
+        byte[] line = new byte[1024];
+        int lineLength = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            int count = in.read(buffer);
+            if (count < 0) {
+                if (file == null) {
+                    break;
+                }
+                if (file.size() < file.position()) {
+                    file.position(0);
+                    lineLength = 0;
+                }
+                Thread.sleep(FILE_POLL_MILLIS);
+                continue;
+            }
+            for (int i = 0; i < count; i++) {
+                byte value = buffer[i];
+                if (value == '\n') {
+                    int length = (lineLength > 0 && line[lineLength - 1] == '\r') ? lineLength - 1 : lineLength;
+                    lines.put(new String(line, 0, length, charset));
+                    lineLength = 0;
+                }
+                else {
+                    if (lineLength == line.length) {
+                        line = Arrays.copyOf(line, lineLength * 2);
+                    }
+                    line[lineLength++] = value;
+                }
+            }
+        }
+        if (file == null && lineLength > 0) {
+            lines.put(new String(line, 0, lineLength, charset));
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("window", window)
+                .add("inputEnded", inputEnded)
+                .toString();
+    }
+
+    private interface ReadTask
+    {
+        void run()
+                throws IOException, InterruptedException;
+    }
+}
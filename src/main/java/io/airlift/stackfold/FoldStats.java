@@ -0,0 +1,238 @@
+package io.airlift.stackfold;
+
+import com.google.common.collect.ImmutableList;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Counters and timings of a fold, collected by the {@link StackFoldings}
+ * returned by {@link StackFoldings#withStats()} and by the parsers using it.
+ * Counters can be updated from several threads, such as the tasks of a
+ * parallel parse.
+ * <p>
+ * Parsing and folding are done together, thread by thread, so they are timed
+ * per thread: the parse time excludes the fold time, and in a parallel parse
+ * both are summed over the threads. Phases, such as reading all input or
+ * rendering, are timed by the caller with {@link #startPhase(String)}, which
+ * also measures the bytes allocated by all live threads during the phase
+ * when the JVM supports it.
+ */
+public final class FoldStats
+{
+    private final LongAdder lines = new LongAdder();
+    private final LongAdder threads = new LongAdder();
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder parseNanos = new LongAdder();
+    private final LongAdder foldNanos = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder[] ruleHits;
+    private final List<Phase> phases = new ArrayList<>();
+
+    FoldStats(int ruleCount)
+    {
+        ruleHits = new LongAdder[ruleCount];
+        for (int rule = 0; rule < ruleCount; rule++) {
+            ruleHits[rule] = new LongAdder();
+        }
+    }
+
+    void recordLines(long count)
+    {
+        lines.add(count);
+    }
+
+    void recordParse(long nanos)
+    {
+        parseNanos.add(nanos);
+    }
+
+    void recordFold(int frameCount, long nanos)
+    {
+        threads.increment();
+        frames.add(frameCount);
+        foldNanos.add(nanos);
+    }
+
+    void recordRuleHit(int rule)
+    {
+        ruleHits[rule].increment();
+    }
+
+    public void recordBytes(long count)
+    {
+        bytes.add(count);
+    }
+
+    /**
+     * Starts timing a phase, which ends when the returned phase is closed.
+     */
+    public synchronized Phase startPhase(String name)
+    {
+        Phase phase = new Phase(name);
+        phases.add(phase);
+        return phase;
+    }
+
+    public synchronized List<Phase> getPhases()
+    {
+        return ImmutableList.copyOf(phases);
+    }
+
+    /**
+     * Returns the number of dump lines read by the parsers. Recordings and
+     * JSON dumps have no lines.
+     */
+    public long getLineCount()
+    {
+        return lines.sum();
+    }
+
+    /**
+     * Returns the number of threads folded, which are events for recordings.
+     */
+    public long getThreadCount()
+    {
+        return threads.sum();
+    }
+
+    /**
+     * Returns the number of frames of the threads before folding.
+     */
+    public long getFrameCount()
+    {
+        return frames.sum();
+    }
+
+    public long getParseNanos()
+    {
+        return parseNanos.sum();
+    }
+
+    public long getFoldNanos()
+    {
+        return foldNanos.sum();
+    }
+
+    public long getBytes()
+    {
+        return bytes.sum();
+    }
+
+    public int getRuleCount()
+    {
+        return ruleHits.length;
+    }
+
+    /**
+     * Returns the number of segments replaced by the folding rule with the
+     * given index in {@link StackFoldings#getFoldings()}.
+     */
+    public long getRuleHits(int rule)
+    {
+        checkElementIndex(rule, ruleHits.length);
+        return ruleHits[rule].sum();
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("lines", getLineCount())
+                .add("threads", getThreadCount())
+                .add("frames", getFrameCount())
+                .add("parseNanos", getParseNanos())
+                .add("foldNanos", getFoldNanos())
+                .add("bytes", getBytes())
+                .add("phases", getPhases())
+                .toString();
+    }
+
+    public static final class Phase
+            implements AutoCloseable
+    {
+        private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+        private final String name;
+        private final long startNanos;
+        private final long startAllocatedBytes;
+        private volatile long nanos = -1;
+        private volatile long allocatedBytes = -1;
+
+        private Phase(String name)
+        {
+            this.name = checkNotNull(name, "name is null");
+            this.startAllocatedBytes = allocatedBytesOfAllThreads();
+            this.startNanos = System.nanoTime();
+        }
+
+        @Override
+        public void close()
+        {
+            if (nanos < 0) {
+                nanos = System.nanoTime() - startNanos;
+                long endAllocatedBytes = allocatedBytesOfAllThreads();
+                if (startAllocatedBytes >= 0 && endAllocatedBytes >= 0) {
+                    allocatedBytes = Math.max(0, endAllocatedBytes - startAllocatedBytes);
+                }
+            }
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * Returns the wall time of the phase, or -1 if it has not ended.
+         */
+        public long getNanos()
+        {
+            return nanos;
+        }
+
+        /**
+         * Returns the bytes allocated by the threads that were alive at the
+         * start and at the end of the phase, or -1 if the JVM does not
+         * measure allocation.
+         */
+        public long getAllocatedBytes()
+        {
+            return allocatedBytes;
+        }
+
+        @Override
+        public String toString()
+        {
+            return toStringHelper(this)
+                    .add("name", name)
+                    .add("nanos", nanos)
+                    .add("allocatedBytes", allocatedBytes)
+                    .toString();
+        }
+
+        private static long allocatedBytesOfAllThreads()
+        {
+            if (!(THREAD_MX_BEAN instanceof com.sun.management.ThreadMXBean)) {
+                return -1;
+            }
+            com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) THREAD_MX_BEAN;
+            if (!threadMXBean.isThreadAllocatedMemorySupported() || !threadMXBean.isThreadAllocatedMemoryEnabled()) {
+                return -1;
+            }
+            long total = 0;
+            for (long allocated : threadMXBean.getThreadAllocatedBytes(threadMXBean.getAllThreadIds())) {
+                // threads that ended in between report -1
+                total += Math.max(0, allocated);
+            }
+            return total;
+        }
+    }
+}
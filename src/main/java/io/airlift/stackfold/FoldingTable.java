@@ -0,0 +1,164 @@
+package io.airlift.stackfold;
+
+import com.google.common.collect.ImmutableList;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Binary form of a list of folding rules, which loads without parsing any
+ * stack element lines. The table starts with a magic number and a version,
+ * followed by every distinct string once, and then the rules, with each
+ * stack element written as string indexes and a line number.
+ * <p>
+ * The default rules are shipped both as {@code folding.txt} and as the
+ * table {@code folding.bin} generated from it with {@link #main(String[])}.
+ */
+final class FoldingTable
+{
+    static final String DEFAULT_RESOURCE = "folding.bin";
+
+    private static final int MAGIC = 0x53464c44; // "SFLD"
+    private static final int VERSION = 1;
+
+    private FoldingTable() {}
+
+    /**
+     * Writes the table for the text rules in the first argument to the file
+     * in the second argument.
+     */
+    public static void main(String[] args)
+            throws IOException
+    {
+        if (args.length != 2) {
+            System.err.println("Usage: FoldingTable <folding.txt> <folding.bin>");
+            System.exit(1);
+        }
+        List<StackFolding> foldings = StackFolder.loadFolding(Files.readAllLines(Paths.get(args[0]), UTF_8));
+        try (OutputStream out = Files.newOutputStream(Paths.get(args[1]))) {
+            write(foldings, out);
+        }
+    }
+
+    public static void write(List<StackFolding> foldings, OutputStream stream)
+            throws IOException
+    {
+        Map<String, Integer> stringIds = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        for (StackFolding folding : foldings) {
+            addStrings(folding.getReplacement(), stringIds, strings);
+            for (StackElement element : folding.getSegment()) {
+                addStrings(element, stringIds, strings);
+            }
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            out.writeUTF(string);
+        }
+        out.writeInt(foldings.size());
+        for (StackFolding folding : foldings) {
+            writeElement(out, folding.getReplacement(), stringIds);
+            out.writeInt(folding.getSegment().size());
+            for (StackElement element : folding.getSegment()) {
+                writeElement(out, element, stringIds);
+            }
+        }
+        out.flush();
+    }
+
+    public static List<StackFolding> read(InputStream stream)
+            throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a folding table");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported folding table version " + version);
+        }
+
+        String[] strings = new String[in.readInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = in.readUTF();
+        }
+
+        int foldingCount = in.readInt();
+        ImmutableList.Builder<StackFolding> foldings = ImmutableList.builder();
+        for (int i = 0; i < foldingCount; i++) {
+            StackElement replacement = readElement(in, strings);
+            int segmentSize = in.readInt();
+            ImmutableList.Builder<StackElement> segment = ImmutableList.builder();
+            for (int j = 0; j < segmentSize; j++) {
+                segment.add(readElement(in, strings));
+            }
+            foldings.add(new StackFolding(segment.build(), replacement));
+        }
+        return foldings.build();
+    }
+
+    /**
+     * Returns true if the file starts with the magic number of a folding table.
+     */
+    public static boolean isFoldingTable(Path file)
+            throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            return Files.size(file) >= 4 && in.readInt() == MAGIC;
+        }
+    }
+
+    private static void addStrings(StackElement element, Map<String, Integer> stringIds, List<String> strings)
+    {
+        addString(element.getClassName(), stringIds, strings);
+        addString(element.getMethod(), stringIds, strings);
+        if (element.getFile() != null) {
+            addString(element.getFile(), stringIds, strings);
+        }
+    }
+
+    private static void addString(String string, Map<String, Integer> stringIds, List<String> strings)
+    {
+        if (!stringIds.containsKey(string)) {
+            stringIds.put(string, strings.size());
+            strings.add(string);
+        }
+    }
+
+    private static void writeElement(DataOutputStream out, StackElement element, Map<String, Integer> stringIds)
+            throws IOException
+    {
+        out.writeInt(stringIds.get(element.getClassName()));
+        out.writeInt(stringIds.get(element.getMethod()));
+        out.writeInt((element.getFile() == null) ? -1 : stringIds.get(element.getFile()));
+        out.writeLong(element.getLineNumber());
+    }
+
+    private static StackElement readElement(DataInputStream in, String[] strings)
+            throws IOException
+    {
+        String className = strings[in.readInt()];
+        String method = strings[in.readInt()];
+        int file = in.readInt();
+        long lineNumber = in.readLong();
+        return new StackElement(className, method, (file < 0) ? null : strings[file], lineNumber, ImmutableList.of());
+    }
+}
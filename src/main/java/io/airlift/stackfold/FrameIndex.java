@@ -0,0 +1,382 @@
+package io.airlift.stackfold;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.Comparator.comparing;
+
+/**
+ * Inverted index from methods, classes, packages, thread states and thread
+ * name patterns to the {@link TraceGroup}s that contain them, so questions
+ * like "which threads are in {@code HashMap.resize}" are answered from the
+ * grouping without scanning the dump again.
+ * <p>
+ * Each key maps to the ordinals of its groups in ascending order, and a
+ * query with several terms intersects these lists. The index is built in one
+ * pass over the frames of every group, which is far fewer than the frames of
+ * every thread. Package queries combine the lists of the classes in the
+ * package, so their cost grows with the number of distinct classes rather
+ * than the number of groups.
+ */
+public final class FrameIndex
+{
+    private static final Splitter TERM_SPLITTER = Splitter.on(' ').omitEmptyStrings().trimResults();
+
+    private final List<TraceGroup> groups;
+    // equal by class and method only
+    private final Map<StackElement, Postings> methods = new HashMap<>();
+    private final Map<String, Postings> classes = new HashMap<>();
+    private final Map<String, Postings> namePatterns = new HashMap<>();
+    private final Postings[] states = new Postings[Thread.State.values().length];
+
+    private FrameIndex(List<TraceGroup> groups)
+    {
+        this.groups = ImmutableList.copyOf(groups);
+        for (int i = 0; i < states.length; i++) {
+            states[i] = new Postings();
+        }
+
+        for (int ordinal = 0; ordinal < this.groups.size(); ordinal++) {
+            TraceGroup group = this.groups.get(ordinal);
+            Trace trace = group.getEncodedTrace();
+            for (int position = 0; position < trace.size(); position++) {
+                StackElement frame = trace.getFrame(position);
+                methods.computeIfAbsent(frame, key -> new Postings()).add(ordinal);
+                classes.computeIfAbsent(frame.getClassName(), key -> new Postings()).add(ordinal);
+            }
+            for (TraceGroup.NamePattern namePattern : group.getNamePatterns()) {
+                namePatterns.computeIfAbsent(namePattern.getPattern(), key -> new Postings()).add(ordinal);
+            }
+            for (Thread.State state : group.getStateCounts().keySet()) {
+                states[state.ordinal()].add(ordinal);
+            }
+        }
+    }
+
+    public static FrameIndex build(TraceGroups groups)
+    {
+        return new FrameIndex(ImmutableList.copyOf(groups.getGroups()));
+    }
+
+    /**
+     * Returns the groups with a frame of the method.
+     */
+    public List<TraceGroup> findMethod(String className, String method)
+    {
+        return toGroups(methods.get(new StackElement(className, method, null, -1, ImmutableList.of())));
+    }
+
+    /**
+     * Returns the groups with a frame of the class, or of one of its nested
+     * classes.
+     */
+    public List<TraceGroup> findClass(String className)
+    {
+        return toGroups(classPostings(className));
+    }
+
+    /**
+     * Returns the groups with a frame of a class in the package or in one of
+     * its subpackages.
+     */
+    public List<TraceGroup> findPackage(String packageName)
+    {
+        return toGroups(packagePostings(packageName));
+    }
+
+    /**
+     * Returns the groups with at least one thread in the state.
+     */
+    public List<TraceGroup> findState(Thread.State state)
+    {
+        return toGroups(states[state.ordinal()]);
+    }
+
+    /**
+     * Returns the groups with a thread whose name has the same name pattern
+     * as {@code name}, which can also be the pattern itself.
+     */
+    public List<TraceGroup> findNamePattern(String name)
+    {
+        return toGroups(namePatterns.get(ThreadNamePatterns.toPattern(name)));
+    }
+
+    /**
+     * Returns the groups that match every term of the query, with the most
+     * threads first. Terms are separated by spaces and are one of
+     * <ul>
+     * <li>{@code method:java.util.HashMap.resize}</li>
+     * <li>{@code class:java.util.HashMap}</li>
+     * <li>{@code package:io.airlift.http}</li>
+     * <li>{@code state:BLOCKED}</li>
+     * <li>{@code name:http-worker-12}, which matches the name pattern</li>
+     * <li>a bare name, which matches a method, a class or a package</li>
+     * </ul>
+     */
+    public List<TraceGroup> query(String query)
+    {
+        Postings result = null;
+        for (String term : TERM_SPLITTER.split(query)) {
+            Postings postings = evaluate(term);
+            result = (result == null) ? postings : result.intersect(postings);
+        }
+        checkArgument(result != null, "query is empty");
+
+        List<TraceGroup> matches = new ArrayList<>(toGroups(result));
+        matches.sort(comparing(TraceGroup::getThreadCount).reversed());
+        return matches;
+    }
+
+    /**
+     * Returns the number of threads that match the query. Terms on frames
+     * match every thread of a group, while state and name terms only match
+     * the threads of the group in that state or with that name pattern. A
+     * group keeps its states and name patterns apart, so when a query has
+     * both, each group counts the smaller of the two, which is an upper bound.
+     */
+    public long countThreads(String query)
+    {
+        Thread.State state = null;
+        String namePattern = null;
+        for (String term : TERM_SPLITTER.split(query)) {
+            if (term.startsWith("state:")) {
+                Thread.State termState = parseState(term.substring("state:".length()));
+                if (state != null && state != termState) {
+                    // a thread is in one state
+                    return 0;
+                }
+                state = termState;
+            }
+            else if (term.startsWith("name:")) {
+                String termPattern = ThreadNamePatterns.toPattern(term.substring("name:".length()));
+                if (namePattern != null && !namePattern.equals(termPattern)) {
+                    return 0;
+                }
+                namePattern = termPattern;
+            }
+        }
+
+        long threads = 0;
+        for (TraceGroup group : query(query)) {
+            long count = group.getThreadCount();
+            if (state != null) {
+                count = Math.min(count, group.getStateCounts().getOrDefault(state, 0L));
+            }
+            if (namePattern != null) {
+                count = Math.min(count, nameCount(group, namePattern));
+            }
+            threads += count;
+        }
+        return threads;
+    }
+
+    private static long nameCount(TraceGroup group, String pattern)
+    {
+        for (TraceGroup.NamePattern namePattern : group.getNamePatterns()) {
+            if (namePattern.getPattern().equals(pattern)) {
+                return namePattern.getCount();
+            }
+        }
+        return 0;
+    }
+
+    private static Thread.State parseState(String value)
+    {
+        try {
+            return Thread.State.valueOf(value.toUpperCase(Locale.ENGLISH));
+        }
+        catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown thread state: " + value);
+        }
+    }
+
+    private Postings evaluate(String term)
+    {
+        int colon = term.indexOf(':');
+        String value = term.substring(colon + 1);
+        checkArgument(!value.isEmpty(), "empty query term: %s", term);
+        if (colon < 0) {
+            return orEmpty(methodPostings(value))
+                    .union(classPostings(value))
+                    .union(packagePostings(value));
+        }
+        switch (term.substring(0, colon)) {
+            case "method":
+                return orEmpty(methodPostings(value));
+            case "class":
+                return classPostings(value);
+            case "package":
+                return packagePostings(value);
+            case "state":
+                return states[parseState(value).ordinal()];
+            case "name":
+                return orEmpty(namePatterns.get(ThreadNamePatterns.toPattern(value)));
+            default:
+                throw new IllegalArgumentException("unknown query term: " + term);
+        }
+    }
+
+    private Postings methodPostings(String qualifiedMethod)
+    {
+        int dot = qualifiedMethod.lastIndexOf('.');
+        if (dot <= 0 || dot == qualifiedMethod.length() - 1) {
+            return null;
+        }
+        return methods.get(new StackElement(qualifiedMethod.substring(0, dot), qualifiedMethod.substring(dot + 1), null, -1, ImmutableList.of()));
+    }
+
+    private Postings classPostings(String className)
+    {
+        String nestedPrefix = className + "$";
+        return collect(name -> name.equals(className) || name.startsWith(nestedPrefix));
+    }
+
+    private Postings packagePostings(String packageName)
+    {
+        String prefix = packageName.endsWith(".") ? packageName : packageName + ".";
+        return collect(name -> name.startsWith(prefix));
+    }
+
+    /**
+     * Returns the groups of all classes with a matching name.
+     */
+    private Postings collect(Predicate<String> classFilter)
+    {
+        BitSet ordinals = new BitSet(groups.size());
+        for (Map.Entry<String, Postings> entry : classes.entrySet()) {
+            if (classFilter.test(entry.getKey())) {
+                Postings postings = entry.getValue();
+                for (int i = 0; i < postings.size; i++) {
+                    ordinals.set(postings.ordinals[i]);
+                }
+            }
+        }
+        return new Postings(ordinals.stream().toArray(), ordinals.cardinality());
+    }
+
+    private static Postings orEmpty(Postings postings)
+    {
+        return (postings == null) ? new Postings() : postings;
+    }
+
+    private List<TraceGroup> toGroups(Postings postings)
+    {
+        if (postings == null) {
+            return ImmutableList.of();
+        }
+        ImmutableList.Builder<TraceGroup> builder = ImmutableList.builder();
+        for (int i = 0; i < postings.size; i++) {
+            builder.add(groups.get(postings.ordinals[i]));
+        }
+        return builder.build();
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("groups", groups.size())
+                .add("methods", methods.size())
+                .add("classes", classes.size())
+                .add("namePatterns", namePatterns.size())
+                .toString();
+    }
+
+    /**
+     * Ascending group ordinals without duplicates.
+     */
+    private static final class Postings
+    {
+        private int[] ordinals;
+        private int size;
+
+        private Postings()
+        {
+            this(new int[4], 0);
+        }
+
+        private Postings(int[] ordinals, int size)
+        {
+            this.ordinals = checkNotNull(ordinals, "ordinals is null");
+            this.size = size;
+        }
+
+        /**
+         * Adds an ordinal that is not smaller than any added before.
+         */
+        private void add(int ordinal)
+        {
+            if (size > 0 && ordinals[size - 1] == ordinal) {
+                return;
+            }
+            if (size == ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, size * 2);
+            }
+            ordinals[size++] = ordinal;
+        }
+
+        private Postings intersect(Postings other)
+        {
+            int[] result = new int[Math.min(size, other.size)];
+            int count = 0;
+            int i = 0;
+            int j = 0;
+            while (i < size && j < other.size) {
+                int compare = Integer.compare(ordinals[i], other.ordinals[j]);
+                if (compare == 0) {
+                    result[count++] = ordinals[i];
+                    i++;
+                    j++;
+                }
+                else if (compare < 0) {
+                    i++;
+                }
+                else {
+                    j++;
+                }
+            }
+            return new Postings(result, count);
+        }
+
+        private Postings union(Postings other)
+        {
+            if (other.size == 0) {
+                return this;
+            }
+            if (size == 0) {
+                return other;
+            }
+            int[] result = new int[size + other.size];
+            int count = 0;
+            int i = 0;
+            int j = 0;
+            while (i < size || j < other.size) {
+                int next;
+                if (j == other.size || (i < size && ordinals[i] < other.ordinals[j])) {
+                    next = ordinals[i++];
+                }
+                else if (i == size || other.ordinals[j] < ordinals[i]) {
+                    next = other.ordinals[j++];
+                }
+                else {
+                    next = ordinals[i++];
+                    j++;
+                }
+                result[count++] = next;
+            }
+            return new Postings(result, count);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package io.airlift.stackfold;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Rules that match frames by a glob on their class name, for the rewrites a
+ * {@link StackFolding} of exact frames cannot express. A rule is a line of
+ * <ul>
+ * <li>{@code normalize GLOB}, which replaces the part of a matching class
+ * name that the trailing {@code *} matched with {@code *}, so that
+ * {@code normalize *$$Lambda*} turns {@code Foo$$Lambda$310/337431476} into
+ * {@code Foo$$Lambda*}</li>
+ * <li>{@code collapse GLOB}, which replaces every run of consecutive frames
+ * with a matching class name with a single frame named after the glob, so
+ * that {@code collapse org.eclipse.jetty.*} leaves one
+ * {@code org.eclipse.jetty.*} frame for the whole server loop</li>
+ * </ul>
+ * A {@code *} matches any characters, including dots. Blank lines and lines
+ * starting with {@code #} are ignored. The first matching rule of each kind
+ * applies.
+ * <p>
+ * Frames are normalized before the folding rules are applied, and collapsed
+ * after, see {@link StackFoldings}. The globs are only matched once for each
+ * distinct frame of a {@link FrameTable}, which keeps the result by frame id,
+ * so rewriting a trace is a single lookup per frame.
+ */
+public final class FramePatterns
+{
+    private static final FramePatterns NONE = new FramePatterns(ImmutableList.of(), ImmutableList.of());
+    private static final Splitter RULE_SPLITTER = Splitter.on(' ').omitEmptyStrings().trimResults().limit(2);
+
+    private final List<Glob> normalizeRules;
+    private final List<Glob> collapseRules;
+
+    private FramePatterns(List<Glob> normalizeRules, List<Glob> collapseRules)
+    {
+        this.normalizeRules = ImmutableList.copyOf(checkNotNull(normalizeRules, "normalizeRules is null"));
+        this.collapseRules = ImmutableList.copyOf(checkNotNull(collapseRules, "collapseRules is null"));
+    }
+
+    public static FramePatterns none()
+    {
+        return NONE;
+    }
+
+    public static FramePatterns parse(List<String> lines)
+    {
+        ImmutableList.Builder<Glob> normalizeRules = ImmutableList.builder();
+        ImmutableList.Builder<Glob> collapseRules = ImmutableList.builder();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            List<String> parts = RULE_SPLITTER.splitToList(line);
+            checkArgument(parts.size() == 2, "line %s: expected a rule and a glob: %s", i + 1, line);
+            Glob glob = new Glob(parts.get(1));
+            switch (parts.get(0)) {
+                case "normalize":
+                    checkArgument(glob.getGlob().endsWith("*"), "line %s: normalize glob must end with *: %s", i + 1, line);
+                    normalizeRules.add(glob);
+                    break;
+                case "collapse":
+                    collapseRules.add(glob);
+                    break;
+                default:
+                    throw new IllegalArgumentException("line " + (i + 1) + ": unknown rule: " + line);
+            }
+        }
+        return new FramePatterns(normalizeRules.build(), collapseRules.build());
+    }
+
+    public boolean isEmpty()
+    {
+        return normalizeRules.isEmpty() && collapseRules.isEmpty();
+    }
+
+    /**
+     * Returns the frame with its class name normalized, or the frame itself
+     * if no normalize rule matches.
+     */
+    public StackElement normalize(StackElement frame)
+    {
+        for (Glob rule : normalizeRules) {
+            int wildcardStart = rule.match(frame.getClassName());
+            if (wildcardStart >= 0) {
+                String className = frame.getClassName().substring(0, wildcardStart) + "*";
+                if (className.equals(frame.getClassName())) {
+                    return frame;
+                }
+                return new StackElement(className, frame.getMethod(), frame.getFile(), frame.getLineNumber(), frame.getLocks());
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Returns the frame that replaces a run of frames matched by the collapse
+     * rule.
+     */
+    StackElement getCollapsedFrame(int rule)
+    {
+        return collapseRules.get(rule).getCollapsedFrame();
+    }
+
+    /**
+     * Returns the first collapse rule that matches the frame, or -1.
+     */
+    int findCollapseRule(StackElement frame)
+    {
+        for (int rule = 0; rule < collapseRules.size(); rule++) {
+            if (collapseRules.get(rule).match(frame.getClassName()) >= 0) {
+                return rule;
+            }
+        }
+        return -1;
+    }
+
+    public List<StackElement> normalizeTrace(List<StackElement> trace)
+    {
+        if (normalizeRules.isEmpty()) {
+            return trace;
+        }
+        ImmutableList.Builder<StackElement> builder = ImmutableList.builder();
+        for (StackElement frame : trace) {
+            builder.add(normalize(frame));
+        }
+        return builder.build();
+    }
+
+    public List<StackElement> collapseTrace(List<StackElement> trace)
+    {
+        if (collapseRules.isEmpty()) {
+            return trace;
+        }
+        ImmutableList.Builder<StackElement> builder = ImmutableList.builder();
+        boolean collapsed = false;
+        int previousRule = -1;
+        for (StackElement frame : trace) {
+            int rule = findCollapseRule(frame);
+            if (rule < 0) {
+                builder.add(frame);
+            }
+            else if (rule != previousRule) {
+                builder.add(getCollapsedFrame(rule));
+                collapsed = true;
+            }
+            previousRule = rule;
+        }
+        return collapsed ? builder.build() : trace;
+    }
+
+    /**
+     * Normalizes the first {@code length} frame ids of {@code frames}, and
+     * returns {@code frames} itself if no frame changed, or a new array.
+     */
+    int[] normalizeTrace(FrameTable frameTable, int[] frames, int length)
+    {
+        if (normalizeRules.isEmpty()) {
+            return frames;
+        }
+        int[] normalized = frames;
+        for (int position = 0; position < length; position++) {
+            int frameId = frameTable.getNormalizedFrame(this, frames[position]);
+            if (frameId != frames[position]) {
+                if (normalized == frames) {
+                    normalized = Arrays.copyOf(frames, length);
+                }
+                normalized[position] = frameId;
+            }
+        }
+        return normalized;
+    }
+
+    /**
+     * Collapses the first {@code length} frame ids of {@code frames}, and
+     * returns {@code frames} itself if no frame matched, or a new array.
+     */
+    int[] collapseTrace(FrameTable frameTable, int[] frames, int length)
+    {
+        if (collapseRules.isEmpty()) {
+            return frames;
+        }
+        int[] collapsed = null;
+        int size = 0;
+        int previousRule = -1;
+        for (int position = 0; position < length; position++) {
+            int rule = frameTable.getCollapseRule(this, frames[position]);
+            if (rule >= 0 && collapsed == null) {
+                collapsed = Arrays.copyOf(frames, length);
+                size = position;
+            }
+            if (collapsed != null) {
+                if (rule < 0) {
+                    collapsed[size++] = frames[position];
+                }
+                else if (rule != previousRule) {
+                    collapsed[size++] = frameTable.intern(getCollapsedFrame(rule));
+                }
+            }
+            previousRule = rule;
+        }
+        return (collapsed == null) ? frames : Arrays.copyOf(collapsed, size);
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("normalizeRules", normalizeRules)
+                .add("collapseRules", collapseRules)
+                .toString();
+    }
+
+    /**
+     * A glob compiled to the literal parts between its wildcards, which are
+     * matched with plain string searches.
+     */
+    private static final class Glob
+    {
+        private final String glob;
+        private final String[] parts;
+        private final StackElement collapsedFrame;
+
+        private Glob(String glob)
+        {
+            this.glob = checkNotNull(glob, "glob is null");
+            this.parts = glob.split("\\*", -1);
+            // org.eclipse.jetty.* prints as org.eclipse.jetty.*, not org.eclipse.jetty.*.*
+            this.collapsedFrame = glob.endsWith(".*")
+                    ? new StackElement(glob.substring(0, glob.length() - 2), "*", null, -1, ImmutableList.of())
+                    : new StackElement(glob, "*", null, -1, ImmutableList.of());
+        }
+
+        private String getGlob()
+        {
+            return glob;
+        }
+
+        private StackElement getCollapsedFrame()
+        {
+            return collapsedFrame;
+        }
+
+        /**
+         * Returns the position where the last wildcard starts matching, the
+         * length of the value if the glob has no wildcard, or -1 if the value
+         * does not match. Wildcards match as little as possible from the left.
+         */
+        private int match(String value)
+        {
+            if (parts.length == 1) {
+                return value.equals(glob) ? value.length() : -1;
+            }
+            String first = parts[0];
+            String last = parts[parts.length - 1];
+            if (value.length() < first.length() + last.length() || !value.startsWith(first) || !value.endsWith(last)) {
+                return -1;
+            }
+            int position = first.length();
+            int end = value.length() - last.length();
+            for (int i = 1; i < parts.length - 1; i++) {
+                int found = value.indexOf(parts[i], position);
+                if (found < 0 || found + parts[i].length() > end) {
+                    return -1;
+                }
+                position = found + parts[i].length();
+            }
+            return position;
+        }
+
+        @Override
+        public String toString()
+        {
+            return glob;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package io.airlift.stackfold;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import io.airlift.stackfold.LineScanner.FrameBounds;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static io.airlift.stackfold.LineScanner.substring;
+
+/**
+ * Symbol table that stores each distinct frame (class, method, file and line)
+ * once and identifies it by a dense int id. Frames that only differ in file or
+ * line share a method id, which is what trace equality is based on, and all
+ * frames share their class, method and file strings.
+ * <p>
+ * Frames can be interned directly from a dump line, in which case no objects
+ * are created unless the frame has not been seen before.
+ * <p>
+ * This class is not thread safe.
+ */
+public final class FrameTable
+{
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private StackElement[] frames = new StackElement[16];
+    private int[] frameHashes = new int[16];
+    private int[] methodIds = new int[16];
+    private int size;
+
+    // open addressing index from frame hash to frame id + 1
+    private int[] index = new int[32];
+
+    private final Map<StackElement, Integer> methods = new HashMap<>();
+    private StackElement[] methodElements = new StackElement[16];
+    private long[] methodFingerprints = new long[16];
+    private final Map<String, String> files = new HashMap<>();
+
+    // results of the frame patterns for each frame, computed on first use
+    private FramePatterns patterns;
+    // normalized frame id + 1, or 0
+    private int[] normalizedFrames = new int[0];
+    // collapse rule + 2, or 0
+    private int[] collapseRules = new int[0];
+
+    public int intern(StackElement element)
+    {
+        checkNotNull(element, "element is null");
+        String className = element.getClassName();
+        String method = element.getMethod();
+        String file = element.getFile();
+        int hash = frameHash(
+                className, 0, className.length(),
+                method, 0, method.length(),
+                file, 0, (file == null) ? 0 : file.length(),
+                element.getLineNumber());
+
+        int slot = hash & (index.length - 1);
+        while (index[slot] != 0) {
+            int frameId = index[slot] - 1;
+            StackElement frame = frames[frameId];
+            if (frameHashes[frameId] == hash &&
+                    frame.getClassName().equals(className) &&
+                    frame.getMethod().equals(method) &&
+                    Objects.equal(frame.getFile(), file) &&
+                    frame.getLineNumber() == element.getLineNumber()) {
+                return frameId;
+            }
+            slot = (slot + 1) & (index.length - 1);
+        }
+        return add(slot, hash, className, method, file, element.getLineNumber());
+    }
+
+    /**
+     * Interns the frame located by {@link LineScanner#scanStackElement}.
+     */
+    int intern(CharSequence line, FrameBounds bounds)
+    {
+        int methodStart = bounds.classEnd + 1;
+        int hash = frameHash(
+                line, bounds.classStart, bounds.classEnd,
+                line, methodStart, bounds.methodEnd,
+                bounds.hasFile() ? line : null, bounds.fileStart, bounds.fileEnd,
+                bounds.lineNumber);
+
+        int slot = hash & (index.length - 1);
+        while (index[slot] != 0) {
+            int frameId = index[slot] - 1;
+            StackElement frame = frames[frameId];
+            if (frameHashes[frameId] == hash &&
+                    frame.getLineNumber() == bounds.lineNumber &&
+                    regionEquals(frame.getClassName(), line, bounds.classStart, bounds.classEnd) &&
+                    regionEquals(frame.getMethod(), line, methodStart, bounds.methodEnd) &&
+                    ((frame.getFile() == null) ? !bounds.hasFile() : (bounds.hasFile() && regionEquals(frame.getFile(), line, bounds.fileStart, bounds.fileEnd)))) {
+                return frameId;
+            }
+            slot = (slot + 1) & (index.length - 1);
+        }
+        return add(
+                slot,
+                hash,
+                substring(line, bounds.classStart, bounds.classEnd),
+                substring(line, methodStart, bounds.methodEnd),
+                bounds.hasFile() ? substring(line, bounds.fileStart, bounds.fileEnd) : null,
+                bounds.lineNumber);
+    }
+
+    public StackElement getFrame(int frameId)
+    {
+        checkElementIndex(frameId, size);
+        return frames[frameId];
+    }
+
+    /**
+     * Returns the id shared by all frames with the same class and method.
+     */
+    public int getMethodId(int frameId)
+    {
+        checkElementIndex(frameId, size);
+        return methodIds[frameId];
+    }
+
+    /**
+     * Returns a 64-bit hash of the class and method of the frame. It only
+     * depends on the names, so it is the same in every table.
+     */
+    public long getMethodFingerprint(int frameId)
+    {
+        checkElementIndex(frameId, size);
+        return methodFingerprints[methodIds[frameId]];
+    }
+
+    /**
+     * Returns the id of the frame normalized by the patterns, which is the
+     * frame id itself if no rule matches.
+     */
+    int getNormalizedFrame(FramePatterns patterns, int frameId)
+    {
+        checkElementIndex(frameId, size);
+        usePatterns(patterns);
+        int result = normalizedFrames[frameId];
+        if (result == 0) {
+            StackElement frame = frames[frameId];
+            StackElement normalized = patterns.normalize(frame);
+            result = ((normalized == frame) ? frameId : intern(normalized)) + 1;
+            normalizedFrames[frameId] = result;
+        }
+        return result - 1;
+    }
+
+    /**
+     * Returns the collapse rule of the patterns that matches the frame, or -1.
+     */
+    int getCollapseRule(FramePatterns patterns, int frameId)
+    {
+        checkElementIndex(frameId, size);
+        usePatterns(patterns);
+        int result = collapseRules[frameId];
+        if (result == 0) {
+            result = patterns.findCollapseRule(frames[frameId]) + 2;
+            collapseRules[frameId] = result;
+        }
+        return result - 2;
+    }
+
+    private void usePatterns(FramePatterns patterns)
+    {
+        if (this.patterns != patterns) {
+            this.patterns = patterns;
+            normalizedFrames = new int[frames.length];
+            collapseRules = new int[frames.length];
+        }
+        else if (normalizedFrames.length < size) {
+            normalizedFrames = Arrays.copyOf(normalizedFrames, frames.length);
+            collapseRules = Arrays.copyOf(collapseRules, frames.length);
+        }
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public int getMethodCount()
+    {
+        return methods.size();
+    }
+
+    private int add(int slot, int hash, String className, String method, String file, long lineNumber)
+    {
+        // share the class and method strings with the other frames of the method
+        StackElement methodKey = new StackElement(className, method, null, -1, ImmutableList.of());
+        Integer methodId = methods.get(methodKey);
+        if (methodId == null) {
+            methodId = methods.size();
+            methods.put(methodKey, methodId);
+            if (methodId == methodElements.length) {
+                methodElements = Arrays.copyOf(methodElements, methodId * 2);
+                methodFingerprints = Arrays.copyOf(methodFingerprints, methodId * 2);
+            }
+            methodElements[methodId] = methodKey;
+            methodFingerprints[methodId] = methodFingerprint(className, method);
+        }
+        StackElement canonical = methodElements[methodId];
+        String canonicalFile = (file == null) ? null : files.computeIfAbsent(file, value -> value);
+
+        int frameId = size;
+        if (frameId == frames.length) {
+            frames = Arrays.copyOf(frames, frameId * 2);
+            frameHashes = Arrays.copyOf(frameHashes, frameId * 2);
+            methodIds = Arrays.copyOf(methodIds, frameId * 2);
+        }
+        frames[frameId] = new StackElement(canonical.getClassName(), canonical.getMethod(), canonicalFile, lineNumber, ImmutableList.of());
+        frameHashes[frameId] = hash;
+        methodIds[frameId] = methodId;
+        size++;
+
+        index[slot] = frameId + 1;
+        if (size * 2 > index.length) {
+            rehash();
+        }
+        return frameId;
+    }
+
+    private void rehash()
+    {
+        index = new int[index.length * 2];
+        for (int frameId = 0; frameId < size; frameId++) {
+            int slot = frameHashes[frameId] & (index.length - 1);
+            while (index[slot] != 0) {
+                slot = (slot + 1) & (index.length - 1);
+            }
+            index[slot] = frameId + 1;
+        }
+    }
+
+    private static int frameHash(
+            CharSequence className, int classStart, int classEnd,
+            CharSequence method, int methodStart, int methodEnd,
+            CharSequence file, int fileStart, int fileEnd,
+            long lineNumber)
+    {
+        int hash = hash(className, classStart, classEnd, 1);
+        hash = hash(method, methodStart, methodEnd, 31 * hash + '.');
+        if (file != null) {
+            hash = hash(file, fileStart, fileEnd, 31 * hash + '(');
+        }
+        hash = 31 * hash + Long.hashCode(lineNumber);
+        // spread the low bits used for the index
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int hash(CharSequence value, int start, int end, int hash)
+    {
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + value.charAt(i);
+        }
+        return hash;
+    }
+
+    private static long methodFingerprint(String className, String method)
+    {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < className.length(); i++) {
+            hash = (hash ^ className.charAt(i)) * FNV_PRIME;
+        }
+        hash = (hash ^ '.') * FNV_PRIME;
+        for (int i = 0; i < method.length(); i++) {
+            hash = (hash ^ method.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static boolean regionEquals(String value, CharSequence line, int start, int end)
+    {
+        if (value.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) != line.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("frames", size)
+                .add("methods", methods.size())
+                .toString();
+    }
+}
@@ -0,0 +1,188 @@
+package io.airlift.stackfold;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Ranks the folded traces by the CPU time their threads used between
+ * successive jstack dumps, from the {@code cpu=} and {@code elapsed=} fields
+ * printed by Java 11 and later.
+ * <p>
+ * A thread is matched across two dumps by its thread id and native id. Its
+ * CPU time in the interval is the difference of the two {@code cpu=} values,
+ * and is counted in the group of its trace in the later dump. A thread whose
+ * elapsed time went down is a new thread that reused the ids, and is not
+ * matched. The length of an interval is the largest elapsed time difference
+ * of its matched threads, since that is the wall time between the dumps.
+ * <p>
+ * Only the CPU time of the previous dump is kept per thread, so any number of
+ * dumps can be added, one at a time, in the order they were taken.
+ */
+public final class HotThreads
+{
+    private final TraceGroups groups = new TraceGroups();
+    private final Map<TraceGroup, long[]> groupCpuNanos = new IdentityHashMap<>();
+
+    // CPU and elapsed time of each thread, by thread id and native id
+    private Map<String, long[]> previous = new HashMap<>();
+    private Map<String, long[]> current = new HashMap<>();
+    private long snapshotCount;
+    private long intervalNanos;
+    private long currentIntervalNanos;
+    private long cpuNanos;
+
+    /**
+     * Adds the threads of one dump.
+     */
+    public void addSnapshot(Iterator<Stack> stacks)
+    {
+        checkNotNull(stacks, "stacks is null");
+        while (stacks.hasNext()) {
+            addStack(stacks.next());
+        }
+        finishSnapshot();
+    }
+
+    /**
+     * Adds the dumps of a jstack output, which can contain several dumps, each
+     * starting with its own header. Output without a header is one dump. The
+     * reader is not closed.
+     */
+    public void addDumps(Reader reader, StackFoldings stackFoldings)
+    {
+        StackParser parser = new StackParser(StackFolder.readLines(reader), stackFoldings);
+        long header = 0;
+        while (parser.hasNext()) {
+            Stack stack = parser.next();
+            // the header of the next dump is read with its first thread
+            if (parser.getSnapshotCount() != header) {
+                header = parser.getSnapshotCount();
+                finishSnapshot();
+            }
+            addStack(stack);
+        }
+        finishSnapshot();
+    }
+
+    private void addStack(Stack stack)
+    {
+        if (stack.getCpuNanos() < 0 || stack.getThreadId() == null) {
+            return;
+        }
+        String key = stack.getThreadId() + " " + stack.getNativeId();
+        current.put(key, new long[] {stack.getCpuNanos(), stack.getElapsedNanos()});
+
+        long[] before = previous.get(key);
+        if (before == null || stack.getCpuNanos() < before[0] || stack.getElapsedNanos() < before[1]) {
+            return;
+        }
+        long cpu = stack.getCpuNanos() - before[0];
+        currentIntervalNanos = Math.max(currentIntervalNanos, stack.getElapsedNanos() - before[1]);
+        cpuNanos += cpu;
+        groups.add(stack);
+        groupCpuNanos.computeIfAbsent(groups.getGroup(stack.getEncodedTrace()), group -> new long[1])[0] += cpu;
+    }
+
+    private void finishSnapshot()
+    {
+        if (current.isEmpty()) {
+            return;
+        }
+        if (snapshotCount > 0) {
+            groups.addSnapshots(1);
+        }
+        snapshotCount++;
+        intervalNanos += currentIntervalNanos;
+        currentIntervalNanos = 0;
+        previous = current;
+        current = new HashMap<>();
+    }
+
+    /**
+     * Returns the number of dumps with CPU times.
+     */
+    public long getSnapshotCount()
+    {
+        return snapshotCount;
+    }
+
+    /**
+     * Returns the wall time of all intervals between dumps.
+     */
+    public long getIntervalNanos()
+    {
+        return intervalNanos;
+    }
+
+    /**
+     * Returns the CPU time of all matched threads in all intervals.
+     */
+    public long getCpuNanos()
+    {
+        return cpuNanos;
+    }
+
+    /**
+     * Returns the groups, whose thread count is the number of intervals of
+     * the matched threads, with the most CPU time first.
+     */
+    public List<HotGroup> getHotGroups()
+    {
+        List<HotGroup> hotGroups = new ArrayList<>();
+        for (TraceGroup group : groups.getGroups()) {
+            hotGroups.add(new HotGroup(group, groupCpuNanos.get(group)[0]));
+        }
+        hotGroups.sort((left, right) -> Long.compare(right.getCpuNanos(), left.getCpuNanos()));
+        return hotGroups;
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("snapshots", snapshotCount)
+                .add("intervalNanos", intervalNanos)
+                .add("cpuNanos", cpuNanos)
+                .add("groups", groups.getGroups().size())
+                .toString();
+    }
+
+    public static final class HotGroup
+    {
+        private final TraceGroup group;
+        private final long cpuNanos;
+
+        private HotGroup(TraceGroup group, long cpuNanos)
+        {
+            this.group = group;
+            this.cpuNanos = cpuNanos;
+        }
+
+        public TraceGroup getGroup()
+        {
+            return group;
+        }
+
+        public long getCpuNanos()
+        {
+            return cpuNanos;
+        }
+
+        @Override
+        public String toString()
+        {
+            return toStringHelper(this)
+                    .add("group", group)
+                    .add("cpuNanos", cpuNanos)
+                    .toString();
+        }
+    }
+}
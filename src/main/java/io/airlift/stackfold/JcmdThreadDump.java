@@ -0,0 +1,691 @@
+package io.airlift.stackfold;
+
+import com.google.common.collect.ImmutableList;
+import io.airlift.stackfold.LineScanner.FrameBounds;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static io.airlift.stackfold.LineScanner.scanStackElement;
+import static io.airlift.stackfold.LineScanner.skipWhitespace;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * Parses the thread dumps written by {@code jcmd <pid> Thread.dump_to_file},
+ * which include virtual threads, in both the JSON format and the plain text
+ * format. Each thread is folded and added to the group of its trace as soon
+ * as it has been read, and no {@link Stack} is kept, so a dump with millions
+ * of virtual threads is grouped in memory proportional to its distinct
+ * traces.
+ * <p>
+ * The JSON format lists the threads by thread container, such as the root
+ * container or an executor, and the container of a thread is its
+ * {@code container} name. The text format has no containers, so all its
+ * threads are in {@link #ROOT_CONTAINER}. A thread has the state written by
+ * newer JDKs, or no state. Virtual threads are daemon threads.
+ * <p>
+ * Frames are written as by {@link StackTraceElement#toString()}, with the
+ * class loader and module prefix, such as {@code java.base/}, which is
+ * removed.
+ */
+public final class JcmdThreadDump
+{
+    public static final String ROOT_CONTAINER = "<root>";
+
+    private static final int DETECT_LENGTH = 4096;
+
+    private JcmdThreadDump() {}
+
+    /**
+     * Returns true if the start of a dump is in the JSON format or the text
+     * format of {@code Thread.dump_to_file}.
+     */
+    public static boolean isJcmdDump(CharSequence head)
+    {
+        int start = skipWhitespace(head, 0);
+        if (start < head.length() && head.charAt(start) == '{') {
+            return indexOf(head, "\"threadDump\"") >= 0;
+        }
+        // the text format starts with the process id, jstack with a timestamp
+        int end = start;
+        while (end < head.length() && head.charAt(end) >= '0' && head.charAt(end) <= '9') {
+            end++;
+        }
+        return end > start && end < head.length() && (head.charAt(end) == '\n' || head.charAt(end) == '\r');
+    }
+
+    /**
+     * Returns true if the reader, which must support mark, starts with a jcmd
+     * thread dump. The reader is reset to where it was.
+     */
+    public static boolean isJcmdDump(BufferedReader reader)
+            throws IOException
+    {
+        char[] head = new char[DETECT_LENGTH];
+        reader.mark(DETECT_LENGTH);
+        int length = 0;
+        try {
+            while (length < head.length) {
+                int count = reader.read(head, length, head.length - length);
+                if (count < 0) {
+                    break;
+                }
+                length += count;
+            }
+        }
+        finally {
+            reader.reset();
+        }
+        return isJcmdDump(new String(head, 0, length));
+    }
+
+    /**
+     * Returns true if the stream, which must support mark, starts with a jcmd
+     * thread dump. The stream is reset to where it was. The formats are told
+     * apart by ASCII characters only, so the bytes need no charset.
+     */
+    public static boolean isJcmdDump(InputStream in)
+            throws IOException
+    {
+        byte[] head = new byte[DETECT_LENGTH];
+        in.mark(DETECT_LENGTH);
+        int length = 0;
+        try {
+            while (length < head.length) {
+                int count = in.read(head, length, head.length - length);
+                if (count < 0) {
+                    break;
+                }
+                length += count;
+            }
+        }
+        finally {
+            in.reset();
+        }
+        return isJcmdDump(new String(head, 0, length, ISO_8859_1));
+    }
+
+    /**
+     * Returns true if the file starts with a jcmd thread dump. The position of
+     * the channel is not changed.
+     */
+    public static boolean isJcmdDump(FileChannel channel)
+            throws IOException
+    {
+        ByteBuffer head = ByteBuffer.allocate((int) Math.min(DETECT_LENGTH, channel.size()));
+        while (head.hasRemaining() && channel.read(head, head.position()) >= 0) {
+            // read until the head is full
+        }
+        return isJcmdDump(new String(head.array(), 0, head.position(), ISO_8859_1));
+    }
+
+    /**
+     * Groups all threads of the dump, which counts as one snapshot.
+     */
+    public static TraceGroups groupStacks(Reader reader, StackFoldings stackFoldings)
+            throws IOException
+    {
+        TraceGroups groups = new TraceGroups();
+        parse(reader, stackFoldings, (container, stack) -> groups.add(stack));
+        if (groups.getThreadCount() > 0) {
+            groups.addSnapshots(1);
+        }
+        return groups;
+    }
+
+    /**
+     * Groups the threads of each container separately, in the order the
+     * containers appear in the dump.
+     */
+    public static Map<String, TraceGroups> groupByContainer(Reader reader, StackFoldings stackFoldings)
+            throws IOException
+    {
+        Map<String, TraceGroups> containers = new LinkedHashMap<>();
+        parse(reader, stackFoldings, (container, stack) -> containers.computeIfAbsent(container, key -> {
+            TraceGroups groups = new TraceGroups();
+            groups.addSnapshots(1);
+            return groups;
+        }).add(stack));
+        return containers;
+    }
+
+    private static void parse(Reader reader, StackFoldings stackFoldings, ThreadConsumer consumer)
+            throws IOException
+    {
+        checkNotNull(stackFoldings, "stackFoldings is null");
+        BufferedReader bufferedReader = (reader instanceof BufferedReader) ? (BufferedReader) reader : new BufferedReader(reader, 64 * 1024);
+        ThreadBuilder builder = new ThreadBuilder(stackFoldings, consumer);
+
+        bufferedReader.mark(DETECT_LENGTH);
+        int first;
+        do {
+            first = bufferedReader.read();
+        }
+        while (first >= 0 && first <= ' ');
+        bufferedReader.reset();
+
+        if (first == '{') {
+            new JsonParser(new JsonTokenizer(bufferedReader), builder).parse();
+            builder.end(0);
+        }
+        else {
+            builder.end(parseText(bufferedReader, builder));
+        }
+    }
+
+    /**
+     * Parses the text format, which is a header with the process id, the time
+     * and the runtime version, followed by the threads, each with a
+     * {@code #tid "name" [virtual]} line, the frames indented, and a blank line.
+     * Returns the number of lines read.
+     */
+    private static long parseText(BufferedReader reader, ThreadBuilder builder)
+            throws IOException
+    {
+        boolean inThread = false;
+        long lineCount = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineCount++;
+            int start = skipWhitespace(line, 0);
+            if (start == line.length()) {
+                if (inThread) {
+                    builder.finish(ROOT_CONTAINER);
+                    inThread = false;
+                }
+            }
+            else if (start == 0 && line.charAt(0) == '#') {
+                if (inThread) {
+                    builder.finish(ROOT_CONTAINER);
+                }
+                parseTextHeader(line, builder);
+                inThread = true;
+            }
+            else if (inThread && start > 0 && line.charAt(start) != '-') {
+                // lines starting with a dash describe locks
+                builder.addFrame(line);
+            }
+        }
+        if (inThread) {
+            builder.finish(ROOT_CONTAINER);
+        }
+        return lineCount;
+    }
+
+    private static void parseTextHeader(String line, ThreadBuilder builder)
+    {
+        int idEnd = line.indexOf(' ');
+        int nameStart = line.indexOf('"');
+        int nameEnd = line.lastIndexOf('"');
+        if (idEnd < 0 || nameStart < 0 || nameEnd <= nameStart) {
+            throw new IllegalArgumentException("Invalid thread header: " + line);
+        }
+        builder.start();
+        builder.threadId = line.substring(1, idEnd);
+        builder.name = line.substring(nameStart + 1, nameEnd);
+        for (String token : line.substring(nameEnd + 1).trim().split(" +")) {
+            if (token.equals("virtual")) {
+                builder.virtual = true;
+            }
+            else {
+                // other tokens, such as a timestamp, leave the state alone
+                Thread.State state = parseState(token);
+                if (state != null) {
+                    builder.state = state;
+                }
+            }
+        }
+    }
+
+    private static Thread.State parseState(CharSequence value)
+    {
+        for (Thread.State state : Thread.State.values()) {
+            if (state.name().contentEquals(value)) {
+                return state;
+            }
+        }
+        return null;
+    }
+
+    private static int indexOf(CharSequence value, String target)
+    {
+        for (int i = 0; i + target.length() <= value.length(); i++) {
+            if (LineScanner.startsWith(value, i, target)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private interface ThreadConsumer
+    {
+        void accept(String container, Stack stack);
+    }
+
+    /**
+     * Collects the fields of the thread being read, and folds its frames into
+     * a frame table shared by all threads.
+     */
+    private static final class ThreadBuilder
+    {
+        private final StackFoldings stackFoldings;
+        private final FoldStats stats;
+        private final ThreadConsumer consumer;
+        private final FrameTable frameTable = new FrameTable();
+        private final FrameBounds bounds = new FrameBounds();
+        private int[] frames = new int[64];
+        private int frameCount;
+
+        private String threadId;
+        private String name;
+        private boolean virtual;
+        private Thread.State state;
+
+        // parse time is recorded up to each fold, like StackParser does
+        private long parseStart = System.nanoTime();
+
+        private ThreadBuilder(StackFoldings stackFoldings, ThreadConsumer consumer)
+        {
+            this.stackFoldings = stackFoldings;
+            this.stats = stackFoldings.getStats();
+            this.consumer = consumer;
+        }
+
+        private void start()
+        {
+            threadId = null;
+            name = null;
+            virtual = false;
+            state = null;
+            frameCount = 0;
+        }
+
+        private void addFrame(CharSequence frame)
+        {
+            scanStackElement(frame, bounds);
+            // remove the class loader and module, but keep the suffix of a hidden class, such as Foo$$Lambda/0x0000000800c03000
+            int slash = lastIndexOf(frame, '/', bounds.classStart, bounds.classEnd);
+            if (slash >= 0 && slash + 2 < bounds.classEnd && frame.charAt(slash + 1) == '0' && frame.charAt(slash + 2) == 'x') {
+                slash = lastIndexOf(frame, '/', bounds.classStart, slash);
+            }
+            if (slash >= 0) {
+                bounds.classStart = slash + 1;
+            }
+
+            if (frameCount == frames.length) {
+                frames = Arrays.copyOf(frames, frameCount * 2);
+            }
+            frames[frameCount++] = frameTable.intern(frame, bounds);
+        }
+
+        private void finish(String container)
+        {
+            if (stats != null) {
+                stats.recordParse(System.nanoTime() - parseStart);
+            }
+            Trace trace = new Trace(frameTable, stackFoldings.foldTrace(frameTable, frames, frameCount));
+            consumer.accept(container, new Stack(
+                    (name == null) ? "" : name,
+                    virtual,
+                    null,
+                    threadId,
+                    null,
+                    null,
+                    state,
+                    null,
+                    trace,
+                    ImmutableList.of()));
+            if (stats != null) {
+                parseStart = System.nanoTime();
+            }
+        }
+
+        private void end(long lineCount)
+        {
+            if (stats != null) {
+                stats.recordParse(System.nanoTime() - parseStart);
+                stats.recordLines(lineCount);
+            }
+        }
+
+        private static int lastIndexOf(CharSequence value, char c, int start, int end)
+        {
+            for (int i = end - 1; i >= start; i--) {
+                if (value.charAt(i) == c) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Reads the {@code threadDump.threadContainers[].threads[]} entries of the
+     * JSON format and skips all other values. The container name must come
+     * before the threads of the container, as the JDK writes it.
+     */
+    private static final class JsonParser
+    {
+        private final JsonTokenizer tokenizer;
+        private final ThreadBuilder builder;
+
+        private JsonParser(JsonTokenizer tokenizer, ThreadBuilder builder)
+        {
+            this.tokenizer = tokenizer;
+            this.builder = builder;
+        }
+
+        private void parse()
+                throws IOException
+        {
+            tokenizer.expect(JsonToken.BEGIN_OBJECT);
+            while (nextField()) {
+                if (tokenizer.textEquals("threadDump")) {
+                    parseThreadDump();
+                }
+                else {
+                    tokenizer.skipValue();
+                }
+            }
+        }
+
+        private void parseThreadDump()
+                throws IOException
+        {
+            tokenizer.expect(JsonToken.BEGIN_OBJECT);
+            while (nextField()) {
+                if (tokenizer.textEquals("threadContainers")) {
+                    tokenizer.expect(JsonToken.BEGIN_ARRAY);
+                    while (nextElement(JsonToken.BEGIN_OBJECT)) {
+                        parseContainer();
+                    }
+                }
+                else {
+                    tokenizer.skipValue();
+                }
+            }
+        }
+
+        private void parseContainer()
+                throws IOException
+        {
+            String container = ROOT_CONTAINER;
+            while (nextField()) {
+                if (tokenizer.textEquals("container")) {
+                    if (tokenizer.next() == JsonToken.STRING) {
+                        container = tokenizer.text().toString();
+                    }
+                }
+                else if (tokenizer.textEquals("threads")) {
+                    tokenizer.expect(JsonToken.BEGIN_ARRAY);
+                    while (nextElement(JsonToken.BEGIN_OBJECT)) {
+                        parseThread();
+                        builder.finish(container);
+                    }
+                }
+                else {
+                    tokenizer.skipValue();
+                }
+            }
+        }
+
+        private void parseThread()
+                throws IOException
+        {
+            builder.start();
+            while (nextField()) {
+                if (tokenizer.textEquals("tid")) {
+                    tokenizer.next();
+                    builder.threadId = tokenizer.text().toString();
+                }
+                else if (tokenizer.textEquals("name")) {
+                    tokenizer.next();
+                    builder.name = tokenizer.text().toString();
+                }
+                else if (tokenizer.textEquals("virtual")) {
+                    tokenizer.next();
+                    builder.virtual = tokenizer.textEquals("true");
+                }
+                else if (tokenizer.textEquals("state")) {
+                    tokenizer.next();
+                    builder.state = parseState(tokenizer.text());
+                }
+                else if (tokenizer.textEquals("stack")) {
+                    tokenizer.expect(JsonToken.BEGIN_ARRAY);
+                    while (nextElement(JsonToken.STRING)) {
+                        builder.addFrame(tokenizer.text());
+                    }
+                }
+                else {
+                    tokenizer.skipValue();
+                }
+            }
+        }
+
+        /**
+         * Reads the name of the next field of the current object, or returns
+         * false at the end of the object.
+         */
+        private boolean nextField()
+                throws IOException
+        {
+            JsonToken token = tokenizer.next();
+            if (token == JsonToken.END_OBJECT) {
+                return false;
+            }
+            checkJson(token == JsonToken.STRING, "Expected a field name");
+            return true;
+        }
+
+        /**
+         * Reads the next element of the current array, which must be of the
+         * given type, or returns false at the end of the array.
+         */
+        private boolean nextElement(JsonToken type)
+                throws IOException
+        {
+            JsonToken token = tokenizer.next();
+            if (token == JsonToken.END_ARRAY) {
+                return false;
+            }
+            checkJson(token == type, "Expected " + type);
+            return true;
+        }
+    }
+
+    private enum JsonToken
+    {
+        BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, STRING, LITERAL, END
+    }
+
+    /**
+     * Splits JSON into tokens, with the text of the current string or literal
+     * in a reused buffer. Colons and commas are skipped.
+     */
+    private static final class JsonTokenizer
+    {
+        private final Reader reader;
+        private final char[] buffer = new char[64 * 1024];
+        private int position;
+        private int limit;
+        private final StringBuilder text = new StringBuilder();
+
+        private JsonTokenizer(Reader reader)
+        {
+            this.reader = reader;
+        }
+
+        private CharSequence text()
+        {
+            return text;
+        }
+
+        private boolean textEquals(String value)
+        {
+            return value.contentEquals(text);
+        }
+
+        private void expect(JsonToken expected)
+                throws IOException
+        {
+            checkJson(next() == expected, "Expected " + expected);
+        }
+
+        private JsonToken next()
+                throws IOException
+        {
+            while (true) {
+                int c = read();
+                switch (c) {
+                    case -1:
+                        return JsonToken.END;
+                    case '{':
+                        return JsonToken.BEGIN_OBJECT;
+                    case '}':
+                        return JsonToken.END_OBJECT;
+                    case '[':
+                        return JsonToken.BEGIN_ARRAY;
+                    case ']':
+                        return JsonToken.END_ARRAY;
+                    case ':':
+                    case ',':
+                    case ' ':
+                    case '\t':
+                    case '\n':
+                    case '\r':
+                        continue;
+                    case '"':
+                        readString();
+                        return JsonToken.STRING;
+                    default:
+                        readLiteral((char) c);
+                        return JsonToken.LITERAL;
+                }
+            }
+        }
+
+        private void skipValue()
+                throws IOException
+        {
+            int depth = 0;
+            do {
+                JsonToken token = next();
+                checkJson(token != JsonToken.END, "Unexpected end of input");
+                if (token == JsonToken.BEGIN_OBJECT || token == JsonToken.BEGIN_ARRAY) {
+                    depth++;
+                }
+                else if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+                    depth--;
+                }
+            }
+            while (depth > 0);
+        }
+
+        private void readString()
+                throws IOException
+        {
+            text.setLength(0);
+            while (true) {
+                checkJson(position < limit || fill(), "Unterminated string");
+                // append the characters up to the next quote or escape at once
+                int end = position;
+                while (end < limit && buffer[end] != '"' && buffer[end] != '\\') {
+                    end++;
+                }
+                text.append(buffer, position, end - position);
+                position = end;
+                if (position == limit) {
+                    continue;
+                }
+                if (buffer[position++] == '"') {
+                    return;
+                }
+                int escaped = read();
+                switch (escaped) {
+                    case 'b':
+                        text.append('\b');
+                        break;
+                    case 'f':
+                        text.append('\f');
+                        break;
+                    case 'n':
+                        text.append('\n');
+                        break;
+                    case 'r':
+                        text.append('\r');
+                        break;
+                    case 't':
+                        text.append('\t');
+                        break;
+                    case 'u':
+                        int value = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(read(), 16);
+                            checkJson(digit >= 0, "Invalid unicode escape");
+                            value = value * 16 + digit;
+                        }
+                        text.append((char) value);
+                        break;
+                    default:
+                        checkJson(escaped >= 0, "Unterminated string");
+                        // quote, backslash and slash stand for themselves
+                        text.append((char) escaped);
+                }
+            }
+        }
+
+        private void readLiteral(char first)
+                throws IOException
+        {
+            text.setLength(0);
+            text.append(first);
+            while (true) {
+                if (position == limit && !fill()) {
+                    return;
+                }
+                char c = buffer[position];
+                if (c == ',' || c == '}' || c == ']' || c == ':' || c <= ' ') {
+                    return;
+                }
+                text.append(c);
+                position++;
+            }
+        }
+
+        private int read()
+                throws IOException
+        {
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            return buffer[position++];
+        }
+
+        private boolean fill()
+                throws IOException
+        {
+            int count = reader.read(buffer);
+            if (count <= 0) {
+                return false;
+            }
+            position = 0;
+            limit = count;
+            return true;
+        }
+    }
+
+    private static void checkJson(boolean valid, String message)
+    {
+        if (!valid) {
+            throw new IllegalArgumentException("Invalid thread dump JSON: " + message);
+        }
+    }
+}
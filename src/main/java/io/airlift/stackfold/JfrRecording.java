@@ -0,0 +1,196 @@
+package io.airlift.stackfold;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Folds the stack traces of the events in a Java Flight Recorder recording,
+ * read with {@code jdk.jfr.consumer}, which is part of Java 11 and later and
+ * of Java 8 since update 262.
+ * <p>
+ * Each event with a stack trace is added to a {@link TraceGroups} as a stack
+ * of its thread, so the thread count of a group is its number of events.
+ * Events are read one at a time and all stacks share one frame table, so
+ * memory grows with the number of distinct frames and folded traces rather
+ * than with the size of the recording. A recording counts as one snapshot.
+ * <p>
+ * Recorded frames have no source file, only a line number.
+ */
+public final class JfrRecording
+{
+    public static final String EXECUTION_SAMPLE = "jdk.ExecutionSample";
+    public static final String NATIVE_METHOD_SAMPLE = "jdk.NativeMethodSample";
+    public static final String THREAD_PARK = "jdk.ThreadPark";
+    public static final String JAVA_MONITOR_ENTER = "jdk.JavaMonitorEnter";
+    public static final String JAVA_MONITOR_WAIT = "jdk.JavaMonitorWait";
+
+    public static final Set<String> DEFAULT_EVENT_TYPES = ImmutableSet.of(EXECUTION_SAMPLE);
+
+    private static final byte[] MAGIC = {'F', 'L', 'R', 0};
+    private static final String STATE_PREFIX = "STATE_";
+
+    private JfrRecording() {}
+
+    /**
+     * Returns true if the file starts with the magic number of a recording.
+     */
+    public static boolean isRecording(Path file)
+            throws IOException
+    {
+        byte[] magic = new byte[MAGIC.length];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read = 0;
+            while (read < magic.length) {
+                int count = in.read(magic, read, magic.length - read);
+                if (count < 0) {
+                    return false;
+                }
+                read += count;
+            }
+        }
+        return Arrays.equals(magic, MAGIC);
+    }
+
+    /**
+     * Groups the stack traces of the events of the given types together.
+     */
+    public static TraceGroups groupStacks(Path recording, StackFoldings stackFoldings, Set<String> eventTypes)
+            throws IOException
+    {
+        TraceGroups groups = new TraceGroups();
+        readEvents(recording, stackFoldings, eventTypes, eventType -> groups);
+        groups.addSnapshots(1);
+        return groups;
+    }
+
+    /**
+     * Groups the stack traces of the events of each of the given types
+     * separately, in the order of the types.
+     */
+    public static Map<String, TraceGroups> groupByEventType(Path recording, StackFoldings stackFoldings, Set<String> eventTypes)
+            throws IOException
+    {
+        Map<String, TraceGroups> groups = new LinkedHashMap<>();
+        for (String eventType : eventTypes) {
+            TraceGroups eventGroups = new TraceGroups();
+            eventGroups.addSnapshots(1);
+            groups.put(eventType, eventGroups);
+        }
+        readEvents(recording, stackFoldings, eventTypes, groups::get);
+        return groups;
+    }
+
+    private static void readEvents(Path recording, StackFoldings stackFoldings, Set<String> eventTypes, Function<String, TraceGroups> groupsByType)
+            throws IOException
+    {
+        checkNotNull(stackFoldings, "stackFoldings is null");
+        checkArgument(!eventTypes.isEmpty(), "eventTypes is empty");
+
+        FrameTable frameTable = new FrameTable();
+        int[] frames = new int[64];
+        // parse time is recorded up to each fold, like StackParser does
+        FoldStats stats = stackFoldings.getStats();
+        long parseStart = System.nanoTime();
+        try (RecordingFile file = new RecordingFile(recording)) {
+            while (file.hasMoreEvents()) {
+                RecordedEvent event = file.readEvent();
+                String eventType = event.getEventType().getName();
+                RecordedStackTrace stackTrace = event.getStackTrace();
+                if (stackTrace == null || !eventTypes.contains(eventType)) {
+                    continue;
+                }
+
+                List<RecordedFrame> recordedFrames = stackTrace.getFrames();
+                if (recordedFrames.size() > frames.length) {
+                    frames = new int[Math.max(recordedFrames.size(), frames.length * 2)];
+                }
+                for (int i = 0; i < recordedFrames.size(); i++) {
+                    RecordedFrame frame = recordedFrames.get(i);
+                    frames[i] = frameTable.intern(new StackElement(
+                            frame.getMethod().getType().getName(),
+                            frame.getMethod().getName(),
+                            null,
+                            frame.getLineNumber(),
+                            ImmutableList.of()));
+                }
+                if (stats != null) {
+                    stats.recordParse(System.nanoTime() - parseStart);
+                }
+                Trace trace = new Trace(frameTable, stackFoldings.foldTrace(frameTable, frames, recordedFrames.size()));
+
+                RecordedThread thread = getThread(event);
+                String name = (thread == null) ? null : (thread.getJavaName() != null) ? thread.getJavaName() : thread.getOSName();
+                groupsByType.apply(eventType).add(new Stack(
+                        (name == null) ? "unknown" : name,
+                        false,
+                        null,
+                        (thread == null) ? null : String.valueOf(thread.getJavaThreadId()),
+                        (thread == null) ? null : String.valueOf(thread.getOSThreadId()),
+                        null,
+                        getState(event, eventType),
+                        null,
+                        trace,
+                        ImmutableList.of()));
+                if (stats != null) {
+                    parseStart = System.nanoTime();
+                }
+            }
+        }
+        if (stats != null) {
+            stats.recordParse(System.nanoTime() - parseStart);
+        }
+    }
+
+    private static RecordedThread getThread(RecordedEvent event)
+    {
+        // samples are taken on a sampler thread, the sampled thread is a field
+        if (event.hasField("sampledThread")) {
+            return event.getThread("sampledThread");
+        }
+        return event.getThread();
+    }
+
+    private static Thread.State getState(RecordedEvent event, String eventType)
+    {
+        switch (eventType) {
+            case EXECUTION_SAMPLE:
+            case NATIVE_METHOD_SAMPLE:
+                String state = event.hasField("state") ? event.getString("state") : null;
+                if (state != null && state.startsWith(STATE_PREFIX)) {
+                    try {
+                        return Thread.State.valueOf(state.substring(STATE_PREFIX.length()));
+                    }
+                    catch (IllegalArgumentException e) {
+                        // a state of the virtual machine, such as STATE_IN_NATIVE
+                    }
+                }
+                return Thread.State.RUNNABLE;
+            case THREAD_PARK:
+            case JAVA_MONITOR_WAIT:
+                return (event.hasField("timeout") && event.getLong("timeout") > 0) ? Thread.State.TIMED_WAITING : Thread.State.WAITING;
+            case JAVA_MONITOR_ENTER:
+                return Thread.State.BLOCKED;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package io.airlift.stackfold;
+
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Hand written scanner for the lines of a thread dump. Lines are classified
+ * from their first non-whitespace characters, and fields are located by
+ * offset so no strings are created until a value is actually returned.
+ */
+final class LineScanner
+{
+    enum LineType
+    {
+        BLANK,
+        THREAD_INFO,
+        THREAD_STATE,
+        STACK_ELEMENT,
+        LOCK_INFO,
+    }
+
+    private static final String THREAD_STATE_PREFIX = "java.lang.Thread.State:";
+    private static final String[] WAIT_ON_PREFIXES = {"- parking to wait for  <", "- waiting to lock <", "- waiting to re-lock in wait() <"};
+    private static final String WAITING_ON_PREFIX = "- waiting on <";
+    private static final String LOCKED_PREFIX = "- locked <";
+    private static final String OWNABLE_SYNCHRONIZERS_HEADER = "Locked ownable synchronizers:";
+    private static final String OWNABLE_SYNCHRONIZER_PREFIX = "- <";
+
+    private LineScanner() {}
+
+    /**
+     * Classifies a line of a thread dump. Anything that is not blank, a thread
+     * header, a thread state or lock information is assumed to be a stack element.
+     * Thread headers are only recognized by their leading quote, so the caller
+     * must still validate them.
+     */
+    public static LineType classify(CharSequence line)
+    {
+        int start = skipWhitespace(line, 0);
+        if (start == line.length()) {
+            return LineType.BLANK;
+        }
+        char first = line.charAt(start);
+        if (first == '"') {
+            return LineType.THREAD_INFO;
+        }
+        if (first == '-') {
+            return LineType.LOCK_INFO;
+        }
+        if (first == 'j' && startsWith(line, start, THREAD_STATE_PREFIX)) {
+            return LineType.THREAD_STATE;
+        }
+        return LineType.STACK_ELEMENT;
+    }
+
+    /**
+     * Returns the state from a {@code java.lang.Thread.State: WAITING (parking)}
+     * line, or null if the state is not recognized.
+     */
+    public static Thread.State parseThreadState(CharSequence line)
+    {
+        int start = skipWhitespace(line, skipWhitespace(line, 0) + THREAD_STATE_PREFIX.length());
+        int end = start;
+        while (end < line.length() && line.charAt(end) > ' ') {
+            end++;
+        }
+        for (Thread.State state : Thread.State.values()) {
+            String name = state.name();
+            if (name.length() == end - start && startsWith(line, start, name)) {
+                return state;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses a stack element such as {@code at java.lang.Object.wait(Object.java:502)}.
+     * The leading {@code at} is optional, as are the file and line number.
+     */
+    public static StackElement parseStackElement(CharSequence line, List<Locked> locks)
+    {
+        FrameBounds bounds = new FrameBounds();
+        scanStackElement(line, bounds);
+        return new StackElement(
+                substring(line, bounds.classStart, bounds.classEnd),
+                substring(line, bounds.classEnd + 1, bounds.methodEnd),
+                bounds.hasFile() ? substring(line, bounds.fileStart, bounds.fileEnd) : null,
+                bounds.lineNumber,
+                locks);
+    }
+
+    /**
+     * Locates the fields of a stack element line without creating any objects.
+     *
+     * @see #parseStackElement(CharSequence, List)
+     */
+    public static void scanStackElement(CharSequence line, FrameBounds bounds)
+    {
+        int start = skipWhitespace(line, 0);
+        int end = trimmedEnd(line, start);
+        if (end - start > 2 && line.charAt(start) == 'a' && line.charAt(start + 1) == 't' && line.charAt(start + 2) <= ' ') {
+            start = skipWhitespace(line, start + 2);
+        }
+
+        int nameEnd = indexOf(line, '(', start, end);
+        if (nameEnd < 0) {
+            nameEnd = end;
+        }
+
+        // class and method are split at the last dot, and neither may be empty
+        int dot = nameEnd - 2;
+        while (dot > start && line.charAt(dot) != '.') {
+            dot--;
+        }
+        checkStackElement(dot > start, line);
+
+        int fileStart = -1;
+        int fileEnd = -1;
+        long lineNumber = -1;
+        if (nameEnd < end) {
+            checkStackElement(line.charAt(end - 1) == ')', line);
+            fileStart = nameEnd + 1;
+            fileEnd = indexOf(line, ':', fileStart, end - 1);
+            if (fileEnd < 0) {
+                fileEnd = end - 1;
+            }
+            else {
+                checkStackElement(fileEnd + 1 < end - 1, line);
+                lineNumber = 0;
+                for (int i = fileEnd + 1; i < end - 1; i++) {
+                    char c = line.charAt(i);
+                    checkStackElement(c >= '0' && c <= '9', line);
+                    lineNumber = lineNumber * 10 + (c - '0');
+                }
+            }
+            checkStackElement(fileEnd > fileStart, line);
+        }
+
+        bounds.classStart = start;
+        bounds.classEnd = dot;
+        bounds.methodEnd = nameEnd;
+        bounds.fileStart = fileStart;
+        bounds.fileEnd = fileEnd;
+        bounds.lineNumber = lineNumber;
+    }
+
+    /**
+     * Parses a line saying the thread is blocked acquiring a lock, or returns null.
+     * These are {@code - parking to wait for  <0x...> (a Type)} for a
+     * {@code java.util.concurrent} lock and {@code - waiting to lock <0x...> (a Type)}
+     * or {@code - waiting to re-lock in wait() <0x...> (a Type)} for a monitor.
+     */
+    public static WaitOn parseWaitOn(CharSequence line)
+    {
+        int start = skipWhitespace(line, 0);
+        for (String prefix : WAIT_ON_PREFIXES) {
+            if (startsWith(line, start, prefix)) {
+                int idStart = start + prefix.length();
+                int idEnd = scanLockId(line, idStart);
+                int typeEnd = scanLockType(line, idEnd);
+                if (idEnd == idStart || typeEnd < 0) {
+                    return null;
+                }
+                return new WaitOn(substring(line, idStart, idEnd), substring(line, idEnd + 5, typeEnd));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the lock id of a {@code - waiting on <0x...> (a Type)} line, or
+     * null. The thread is in {@link Object#wait()} and has released the monitor,
+     * even though jstack still prints it as locked further down the trace.
+     */
+    public static String parseReleasedMonitor(CharSequence line)
+    {
+        int start = skipWhitespace(line, 0);
+        if (!startsWith(line, start, WAITING_ON_PREFIX)) {
+            return null;
+        }
+        int idStart = start + WAITING_ON_PREFIX.length();
+        int idEnd = scanLockId(line, idStart);
+        if (idEnd == idStart || scanLockType(line, idEnd) < 0) {
+            return null;
+        }
+        return substring(line, idStart, idEnd);
+    }
+
+    /**
+     * Parses a {@code - locked <0x...> (a Type)} line, or returns null.
+     */
+    public static Locked parseLocked(CharSequence line)
+    {
+        return parseLocked(line, LOCKED_PREFIX);
+    }
+
+    /**
+     * Returns true for the {@code Locked ownable synchronizers:} line that
+     * {@code jstack -l} prints after the trace of a thread.
+     */
+    public static boolean isOwnableSynchronizersHeader(CharSequence line)
+    {
+        return startsWith(line, skipWhitespace(line, 0), OWNABLE_SYNCHRONIZERS_HEADER);
+    }
+
+    /**
+     * Parses a {@code - <0x...> (a Type)} line from the ownable synchronizers
+     * of a thread, or returns null, for example for {@code - None}.
+     */
+    public static Locked parseOwnableSynchronizer(CharSequence line)
+    {
+        return parseLocked(line, OWNABLE_SYNCHRONIZER_PREFIX);
+    }
+
+    private static Locked parseLocked(CharSequence line, String prefix)
+    {
+        int start = skipWhitespace(line, 0);
+        if (!startsWith(line, start, prefix)) {
+            return null;
+        }
+        int idStart = start + prefix.length();
+        int idEnd = scanLockId(line, idStart);
+        int typeEnd = scanLockType(line, idEnd);
+        if (idEnd == idStart || typeEnd < 0) {
+            return null;
+        }
+        return new Locked(substring(line, idStart, idEnd), substring(line, idEnd + 5, typeEnd));
+    }
+
+    public static int skipWhitespace(CharSequence line, int start)
+    {
+        int position = start;
+        while (position < line.length() && line.charAt(position) <= ' ') {
+            position++;
+        }
+        return position;
+    }
+
+    public static boolean startsWith(CharSequence line, int start, String prefix)
+    {
+        if (line.length() - start < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line.charAt(start + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static String substring(CharSequence line, int start, int end)
+    {
+        return line.subSequence(start, end).toString();
+    }
+
+    private static int trimmedEnd(CharSequence line, int start)
+    {
+        int end = line.length();
+        while (end > start && line.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    private static int indexOf(CharSequence line, char c, int start, int end)
+    {
+        for (int i = start; i < end; i++) {
+            if (line.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the end of the word characters starting at {@code start}.
+     */
+    private static int scanLockId(CharSequence line, int start)
+    {
+        int end = start;
+        while (end < line.length() && isWordCharacter(line.charAt(end))) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Given the position of the {@code >} closing the lock id, returns the end of
+     * the type in {@code > (a Type)}, or -1 if the rest of the line does not match.
+     */
+    private static int scanLockType(CharSequence line, int idEnd)
+    {
+        int end = trimmedEnd(line, idEnd);
+        if (!startsWith(line, idEnd, "> (a ") || end - idEnd < 7 || line.charAt(end - 1) != ')') {
+            return -1;
+        }
+        for (int i = idEnd + 5; i < end - 1; i++) {
+            if (Character.isWhitespace(line.charAt(i))) {
+                return -1;
+            }
+        }
+        return end - 1;
+    }
+
+    private static boolean isWordCharacter(char c)
+    {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    private static void checkStackElement(boolean valid, CharSequence line)
+    {
+        checkState(valid, "Expected state element line but got: %s", line);
+    }
+
+    /**
+     * Offsets of the fields of a stack element line. The method starts after
+     * the dot at {@code classEnd}. The file offsets are -1 if there is no file.
+     */
+    static final class FrameBounds
+    {
+        int classStart;
+        int classEnd;
+        int methodEnd;
+        int fileStart;
+        int fileEnd;
+        long lineNumber;
+
+        boolean hasFile()
+        {
+            return fileStart >= 0;
+        }
+    }
+}
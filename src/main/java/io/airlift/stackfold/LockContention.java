@@ -0,0 +1,241 @@
+package io.airlift.stackfold;
+
+import com.google.common.collect.ImmutableList;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static java.util.Comparator.comparing;
+
+/**
+ * Who holds and who waits for each lock in a single thread dump, and the
+ * wait-for graph between threads that follows from it. A thread waits for at
+ * most one lock and a lock has at most one owner, so every thread has at most
+ * one outgoing edge, and both the index and the cycle search take time linear
+ * in the number of threads and locks.
+ * <p>
+ * Only stacks that hold or wait for a lock are retained. Several dumps of one
+ * output are analyzed one by one with {@link #analyzeDumps}.
+ */
+public final class LockContention
+{
+    private final Map<String, LockState> locks;
+    private final List<List<Stack>> deadlocks;
+
+    private LockContention(Map<String, LockState> locks, List<Stack> waiting)
+    {
+        this.locks = locks;
+        this.deadlocks = findDeadlocks(locks, waiting);
+    }
+
+    public static LockContention analyze(Iterable<Stack> stacks)
+    {
+        return analyze(stacks.iterator());
+    }
+
+    public static LockContention analyze(Iterator<Stack> stacks)
+    {
+        Analyzer analyzer = new Analyzer();
+        while (stacks.hasNext()) {
+            analyzer.add(stacks.next());
+        }
+        return analyzer.build();
+    }
+
+    /**
+     * Analyzes each dump of a jstack output, which can contain several dumps,
+     * each starting with its own header. Lock ids and owners are only
+     * meaningful within one dump, so the dumps are never combined. Output
+     * without a header is one dump. The reader is not closed.
+     */
+    public static List<LockContention> analyzeDumps(Reader reader, StackFoldings stackFoldings)
+    {
+        StackParser parser = new StackParser(StackFolder.readLines(reader), stackFoldings);
+        ImmutableList.Builder<LockContention> dumps = ImmutableList.builder();
+        Analyzer analyzer = new Analyzer();
+        boolean empty = true;
+        long header = 0;
+        while (parser.hasNext()) {
+            Stack stack = parser.next();
+            // the header of the next dump is read with its first thread
+            if (parser.getSnapshotCount() != header) {
+                header = parser.getSnapshotCount();
+                if (!empty) {
+                    dumps.add(analyzer.build());
+                    analyzer = new Analyzer();
+                }
+            }
+            analyzer.add(stack);
+            empty = false;
+        }
+        if (!empty) {
+            dumps.add(analyzer.build());
+        }
+        return dumps.build();
+    }
+
+    /**
+     * Returns all locks that are held or waited for, in the order they were first seen.
+     */
+    public List<LockState> getLocks()
+    {
+        return ImmutableList.copyOf(locks.values());
+    }
+
+    /**
+     * Returns the locks that are held by a thread and waited for by at least
+     * one other thread, with the most waiters first. Waits without an owner,
+     * such as idle threads parked on a condition, are not contention.
+     */
+    public List<LockState> getContendedLocks()
+    {
+        List<LockState> contended = new ArrayList<>();
+        for (LockState lock : locks.values()) {
+            if (lock.owner != null && !lock.waiters.isEmpty()) {
+                contended.add(lock);
+            }
+        }
+        contended.sort(comparing(LockState::getWaiterCount).reversed());
+        return contended;
+    }
+
+    /**
+     * Returns the cycles in the wait-for graph. Each cycle lists its threads in
+     * wait-for order, so every thread waits for a lock held by the next one, and
+     * the last waits for a lock held by the first.
+     */
+    public List<List<Stack>> getDeadlocks()
+    {
+        return deadlocks;
+    }
+
+    private static List<List<Stack>> findDeadlocks(Map<String, LockState> locks, List<Stack> waiting)
+    {
+        // threads visited by an earlier walk, mapped to the walk that visited them
+        Map<Stack, Integer> visitedBy = new IdentityHashMap<>();
+        ImmutableList.Builder<List<Stack>> deadlocks = ImmutableList.builder();
+        int walk = 0;
+        for (Stack waiter : waiting) {
+            walk++;
+            List<Stack> path = new ArrayList<>();
+            Stack current = waiter;
+            while (current != null && !visitedBy.containsKey(current)) {
+                visitedBy.put(current, walk);
+                path.add(current);
+                current = blockerOf(locks, current);
+            }
+            // the walk ran into itself, so the path ends in a new cycle
+            if (current != null && visitedBy.get(current) == walk) {
+                deadlocks.add(ImmutableList.copyOf(path.subList(path.indexOf(current), path.size())));
+            }
+        }
+        return deadlocks.build();
+    }
+
+    private static Stack blockerOf(Map<String, LockState> locks, Stack stack)
+    {
+        if (stack.getWaitOn() == null) {
+            return null;
+        }
+        return locks.get(stack.getWaitOn().getLockId()).owner;
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("locks", locks.size())
+                .add("deadlocks", deadlocks.size())
+                .toString();
+    }
+
+    private static final class Analyzer
+    {
+        private final Map<String, LockState> locks = new LinkedHashMap<>();
+        private final List<Stack> waiting = new ArrayList<>();
+
+        private void add(Stack stack)
+        {
+            for (Locked locked : stack.getLocks()) {
+                LockState lock = locks.computeIfAbsent(locked.getLockId(), lockId -> new LockState(lockId, locked.getType()));
+                // a lock can only be owned by one thread, so a second owner is an inconsistent dump
+                if (lock.owner == null) {
+                    lock.owner = stack;
+                }
+            }
+            WaitOn waitOn = stack.getWaitOn();
+            if (waitOn != null) {
+                locks.computeIfAbsent(waitOn.getLockId(), lockId -> new LockState(lockId, waitOn.getType())).waiters.add(stack);
+                waiting.add(stack);
+            }
+        }
+
+        private LockContention build()
+        {
+            return new LockContention(locks, waiting);
+        }
+    }
+
+    public static final class LockState
+    {
+        private final String lockId;
+        private final String type;
+        private Stack owner;
+        private final List<Stack> waiters = new ArrayList<>();
+
+        private LockState(String lockId, String type)
+        {
+            this.lockId = lockId;
+            this.type = type;
+        }
+
+        public String getLockId()
+        {
+            return lockId;
+        }
+
+        public String getType()
+        {
+            return type;
+        }
+
+        /**
+         * Returns the thread holding the lock, or null if no thread in the dump holds it.
+         */
+        public Stack getOwner()
+        {
+            return owner;
+        }
+
+        /**
+         * Returns the threads waiting for the lock, in dump order.
+         */
+        public List<Stack> getWaiters()
+        {
+            return Collections.unmodifiableList(waiters);
+        }
+
+        public int getWaiterCount()
+        {
+            return waiters.size();
+        }
+
+        @Override
+        public String toString()
+        {
+            return toStringHelper(this)
+                    .add("lockId", lockId)
+                    .add("type", type)
+                    .add("owner", (owner == null) ? null : owner.getName())
+                    .add("waiters", waiters.size())
+                    .toString();
+        }
+    }
+}
@@ -13,6 +13,16 @@ public class Locked
         this.type = type;
     }
 
+    public String getLockId()
+    {
+        return lockId;
+    }
+
+    public String getType()
+    {
+        return type;
+    }
+
     @Override
     public String toString()
     {
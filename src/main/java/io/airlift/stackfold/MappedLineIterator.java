@@ -0,0 +1,125 @@
+package io.airlift.stackfold;
+
+import com.google.common.collect.AbstractIterator;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+
+/**
+ * Iterates the lines of a memory mapped file. Line boundaries are found on
+ * the mapped bytes, and ASCII lines are returned as {@link ByteLine}s that
+ * are never decoded as a whole. Lines containing other bytes are decoded
+ * with the dump charset.
+ * <p>
+ * Only lines that start before the end offset are returned, but the last
+ * one is read to its end. Files larger than the mapping window are mapped
+ * one window at a time.
+ */
+final class MappedLineIterator
+        extends AbstractIterator<CharSequence>
+{
+    static final int DEFAULT_WINDOW_SIZE = 1 << 30;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private final long end;
+    private final Charset charset;
+    private final int windowSize;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+    private int windowLimit;
+    private long position;
+
+    public MappedLineIterator(FileChannel channel, long start, long end, Charset charset)
+            throws IOException
+    {
+        this(channel, start, end, charset, DEFAULT_WINDOW_SIZE);
+    }
+
+    public MappedLineIterator(FileChannel channel, long start, long end, Charset charset, int windowSize)
+            throws IOException
+    {
+        this.channel = checkNotNull(channel, "channel is null");
+        this.fileSize = channel.size();
+        checkArgument(0 <= start && start <= end && end <= fileSize, "invalid range [%s, %s) for file of size %s", start, end, fileSize);
+        this.end = end;
+        this.charset = checkNotNull(charset, "charset is null");
+        checkArgument(windowSize > 0, "windowSize must be positive");
+        this.windowSize = windowSize;
+        this.position = start;
+        map(start);
+    }
+
+    @Override
+    protected CharSequence computeNext()
+    {
+        if (position >= end) {
+            return endOfData();
+        }
+
+        int lineStart = (int) (position - windowStart);
+        int lineEnd = lineStart;
+        int bytes = 0;
+        while (true) {
+            while (lineEnd < windowLimit) {
+                byte value = window.get(lineEnd);
+                if (value == '\n') {
+                    break;
+                }
+                bytes |= value;
+                lineEnd++;
+            }
+            if (lineEnd < windowLimit || windowStart + windowLimit == fileSize) {
+                break;
+            }
+            // the line continues past the window
+            if (lineStart == 0) {
+                throw new UncheckedIOException(new IOException("Line longer than mapping window at offset " + position));
+            }
+            remap(position);
+            lineEnd -= lineStart;
+            lineStart = 0;
+        }
+
+        position = windowStart + lineEnd + 1;
+        if (lineEnd > lineStart && window.get(lineEnd - 1) == '\r') {
+            lineEnd--;
+        }
+
+        if (bytes < 0) {
+            // not ASCII, so decode the whole line
+            byte[] line = new byte[lineEnd - lineStart];
+            for (int i = 0; i < line.length; i++) {
+                line[i] = window.get(lineStart + i);
+            }
+            return new String(line, charset);
+        }
+        return new ByteLine(window, lineStart, lineEnd - lineStart);
+    }
+
+    private void remap(long start)
+    {
+        try {
+            map(start);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void map(long start)
+            throws IOException
+    {
+        windowStart = start;
+        windowLimit = (int) Math.min(windowSize, fileSize - start);
+        window = channel.map(READ_ONLY, windowStart, windowLimit);
+    }
+}
@@ -0,0 +1,173 @@
+package io.airlift.stackfold;
+
+import com.google.common.collect.PeekingIterator;
+import io.airlift.stackfold.LineScanner.LineType;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Iterators.peekingIterator;
+import static io.airlift.stackfold.LineScanner.classify;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Parses and groups a thread dump on a fork join pool. The calling thread
+ * reads the lines and cuts them into chunks at thread info lines, so every
+ * thread block is parsed by exactly one task. Each chunk is parsed into its
+ * own {@link FrameTable} and grouped, and the groupings are merged in input
+ * order, which produces the same groups in the same order as a sequential
+ * parse. The number of chunks in flight is bounded, so memory does not grow
+ * with the size of the dump.
+ * <p>
+ * A dump file is instead split by byte offset at lines that start a thread,
+ * and each task maps and scans its own range of the file.
+ */
+final class ParallelStackParser
+{
+    static final int DEFAULT_CHUNK_LINES = 32 * 1024;
+    private static final long MIN_CHUNK_BYTES = 1024 * 1024;
+    private static final int BOUNDARY_WINDOW_SIZE = 1024 * 1024;
+
+    private ParallelStackParser() {}
+
+    public static TraceGroups groupStackTrace(Iterator<String> lines, StackFoldings stackFoldings, ForkJoinPool pool)
+    {
+        return groupStackTrace(lines, stackFoldings, pool, DEFAULT_CHUNK_LINES);
+    }
+
+    public static TraceGroups groupStackTrace(Iterator<String> lines, StackFoldings stackFoldings, ForkJoinPool pool, int chunkLines)
+    {
+        checkNotNull(lines, "lines is null");
+        checkNotNull(stackFoldings, "stackFoldings is null");
+        checkNotNull(pool, "pool is null");
+        checkArgument(chunkLines > 0, "chunkLines must be positive");
+
+        int maxChunksInFlight = pool.getParallelism() * 2;
+        Deque<ForkJoinTask<TraceGroups>> inFlight = new ArrayDeque<>();
+        TraceGroups result = new TraceGroups();
+
+        PeekingIterator<String> lineIterator = peekingIterator(lines);
+        while (lineIterator.hasNext()) {
+            List<String> chunk = nextChunk(lineIterator, chunkLines);
+            inFlight.add(pool.submit(() -> TraceGroups.groupStacks(new StackParser(chunk.iterator(), stackFoldings))));
+            if (inFlight.size() >= maxChunksInFlight) {
+                result.merge(inFlight.remove().join());
+            }
+        }
+        while (!inFlight.isEmpty()) {
+            result.merge(inFlight.remove().join());
+        }
+        return result;
+    }
+
+    public static TraceGroups groupStackTrace(Path dump, Charset charset, StackFoldings stackFoldings, ForkJoinPool pool)
+            throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(dump, READ)) {
+            return groupStackTrace(channel, charset, stackFoldings, pool);
+        }
+    }
+
+    static TraceGroups groupStackTrace(FileChannel channel, Charset charset, StackFoldings stackFoldings, ForkJoinPool pool)
+            throws IOException
+    {
+        long chunkBytes = Math.max(MIN_CHUNK_BYTES, channel.size() / (pool.getParallelism() * 4L));
+        return groupStackTrace(channel, charset, stackFoldings, pool, chunkBytes, MappedLineIterator.DEFAULT_WINDOW_SIZE);
+    }
+
+    static TraceGroups groupStackTrace(FileChannel channel, Charset charset, StackFoldings stackFoldings, ForkJoinPool pool, long chunkBytes, int windowSize)
+            throws IOException
+    {
+        checkNotNull(channel, "channel is null");
+        checkNotNull(charset, "charset is null");
+        checkNotNull(stackFoldings, "stackFoldings is null");
+        checkNotNull(pool, "pool is null");
+        checkArgument(chunkBytes > 0, "chunkBytes must be positive");
+
+        long size = channel.size();
+        List<ForkJoinTask<TraceGroups>> tasks = new ArrayList<>();
+        long start = 0;
+        while (start < size) {
+            long end = findThreadStart(channel, Math.min(start + chunkBytes, size));
+            MappedLineIterator lines = new MappedLineIterator(channel, start, end, charset, windowSize);
+            tasks.add(pool.submit(() -> TraceGroups.groupStacks(new StackParser(lines, stackFoldings))));
+            start = end;
+        }
+
+        TraceGroups result = new TraceGroups();
+        for (ForkJoinTask<TraceGroups> task : tasks) {
+            result.merge(task.join());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the offset of the first line at or after {@code from} that starts
+     * with a quote, ignoring indentation, or the file size if there is none.
+     */
+    static long findThreadStart(FileChannel channel, long from)
+            throws IOException
+    {
+        long size = channel.size();
+        if (from >= size) {
+            return size;
+        }
+
+        boolean atLineStart = (from == 0) || (readByte(channel, from - 1) == '\n');
+        long lineStart = from;
+        long position = from;
+        while (position < size) {
+            int length = (int) Math.min(BOUNDARY_WINDOW_SIZE, size - position);
+            MappedByteBuffer window = channel.map(READ_ONLY, position, length);
+            for (int i = 0; i < length; i++) {
+                byte value = window.get(i);
+                if (value == '\n') {
+                    atLineStart = true;
+                    lineStart = position + i + 1;
+                }
+                else if (atLineStart && value != ' ' && value != '\t') {
+                    if (value == '"') {
+                        return lineStart;
+                    }
+                    atLineStart = false;
+                }
+            }
+            position += length;
+        }
+        return size;
+    }
+
+    private static byte readByte(FileChannel channel, long position)
+            throws IOException
+    {
+        return channel.map(READ_ONLY, position, 1).get(0);
+    }
+
+    /**
+     * Returns at least {@code chunkLines} lines, extended up to the start of the next thread.
+     */
+    private static List<String> nextChunk(PeekingIterator<String> lineIterator, int chunkLines)
+    {
+        List<String> chunk = new ArrayList<>(chunkLines);
+        while (lineIterator.hasNext()) {
+            if (chunk.size() >= chunkLines && classify(lineIterator.peek()) == LineType.THREAD_INFO) {
+                break;
+            }
+            chunk.add(lineIterator.next());
+        }
+        return chunk;
+    }
+}
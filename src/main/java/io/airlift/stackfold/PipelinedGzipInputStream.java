@@ -0,0 +1,213 @@
+package io.airlift.stackfold;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Decompresses a gzip stream on its own thread, so inflating and parsing a
+ * compressed dump run on separate cores. The decompression thread fills a
+ * fixed set of buffers and hands them to the reader through a bounded queue,
+ * and the reader returns each buffer once it has been drained, so memory use
+ * does not depend on the size of the dump. A failure while decompressing is
+ * thrown by the next read once the buffers before it have been consumed.
+ * <p>
+ * This class is not thread safe, apart from the hand off itself.
+ */
+final class PipelinedGzipInputStream
+        extends InputStream
+{
+    private static final int GZIP_MAGIC_FIRST = 0x1f;
+    private static final int GZIP_MAGIC_SECOND = 0x8b;
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final int DEFAULT_BUFFER_COUNT = 8;
+
+    private static final Buffer END = new Buffer(0);
+
+    private final InputStream compressed;
+    private final BlockingQueue<Buffer> free;
+    private final BlockingQueue<Buffer> filled;
+    private final Thread inflater;
+    private volatile Throwable failure;
+
+    private Buffer current;
+    private int position;
+    private boolean closed;
+
+    public PipelinedGzipInputStream(InputStream compressed)
+    {
+        this(compressed, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+    }
+
+    public PipelinedGzipInputStream(InputStream compressed, int bufferSize, int bufferCount)
+    {
+        this.compressed = checkNotNull(compressed, "compressed is null");
+        checkArgument(bufferSize > 0, "bufferSize must be positive");
+        checkArgument(bufferCount > 0, "bufferCount must be positive");
+
+        free = new ArrayBlockingQueue<>(bufferCount);
+        for (int i = 0; i < bufferCount; i++) {
+            free.add(new Buffer(bufferSize));
+        }
+        // room for every buffer and the end marker, so the inflater never blocks on it
+        filled = new ArrayBlockingQueue<>(bufferCount + 1);
+
+        inflater = new Thread(this::inflate, "stackfold-gzip");
+        inflater.setDaemon(true);
+        inflater.start();
+    }
+
+    /**
+     * Returns the stream itself, or a {@link PipelinedGzipInputStream} over it
+     * if it starts with the gzip magic bytes.
+     */
+    public static InputStream decompressIfGzip(InputStream in)
+            throws IOException
+    {
+        InputStream buffered = in.markSupported() ? in : new BufferedInputStream(in);
+        buffered.mark(2);
+        boolean gzip = buffered.read() == GZIP_MAGIC_FIRST && buffered.read() == GZIP_MAGIC_SECOND;
+        buffered.reset();
+        return gzip ? new PipelinedGzipInputStream(buffered) : buffered;
+    }
+
+    /**
+     * Returns true if the file starts with the gzip magic bytes.
+     */
+    public static boolean isGzip(Path file)
+            throws IOException
+    {
+        try (InputStream in = Files.newInputStream(file)) {
+            return in.read() == GZIP_MAGIC_FIRST && in.read() == GZIP_MAGIC_SECOND;
+        }
+    }
+
+    @Override
+    public int read()
+            throws IOException
+    {
+        if (!fill()) {
+            return -1;
+        }
+        return current.data[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length)
+            throws IOException
+    {
+        if (length == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int count = Math.min(length, current.length - position);
+        System.arraycopy(current.data, position, bytes, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available()
+    {
+        return (current == null) ? 0 : current.length - position;
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        inflater.interrupt();
+        compressed.close();
+    }
+
+    /**
+     * Makes sure the current buffer has bytes left, and returns false at the end of the stream.
+     */
+    private boolean fill()
+            throws IOException
+    {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (current == null || position == current.length) {
+            if (current == END) {
+                return false;
+            }
+            if (current != null) {
+                free.add(current);
+            }
+            try {
+                current = filled.take();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            position = 0;
+            if (current == END && failure != null) {
+                throw new IOException("Failed to decompress gzip stream", failure);
+            }
+        }
+        return true;
+    }
+
+    private void inflate()
+    {
+        try (InputStream in = new GZIPInputStream(compressed, DEFAULT_BUFFER_SIZE)) {
+            while (true) {
+                Buffer buffer = free.take();
+                // fill the whole buffer, so the reader wakes up once per buffer
+                buffer.length = 0;
+                int count = 0;
+                while (buffer.length < buffer.data.length) {
+                    count = in.read(buffer.data, buffer.length, buffer.data.length - buffer.length);
+                    if (count < 0) {
+                        break;
+                    }
+                    buffer.length += count;
+                }
+                if (buffer.length > 0) {
+                    filled.add(buffer);
+                }
+                if (count < 0) {
+                    break;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            // closed by the reader
+            return;
+        }
+        catch (Throwable e) {
+            failure = e;
+        }
+        filled.add(END);
+    }
+
+    private static final class Buffer
+    {
+        private final byte[] data;
+        private int length;
+
+        private Buffer(int size)
+        {
+            this.data = new byte[size];
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package io.airlift.stackfold;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The grouping of the snapshots in a sliding time window. Each snapshot is
+ * added as its own {@link TraceGroups}, merged into the aggregate, and
+ * subtracted again once it is older than the window, so the work per snapshot
+ * is proportional to the size of that snapshot.
+ * <p>
+ * The aggregate copies the frames of every merged trace into its own frame
+ * table, which is never trimmed. To keep memory bounded, the aggregate is
+ * rebuilt from the retained snapshots after as many evictions as there are
+ * snapshots in the window, which costs one more merge per snapshot on
+ * average.
+ * <p>
+ * A name pattern that loses threads to an eviction takes its first name from
+ * the oldest retained snapshot with threads of that pattern, which is usually
+ * the next one, so a single thread is not shown with the name of a thread that
+ * left the window.
+ * <p>
+ * This class is not thread safe.
+ */
+public final class RollingTraceGroups
+{
+    private final long windowMillis;
+    private final int maxSnapshots;
+
+    private final Deque<Snapshot> snapshots = new ArrayDeque<>();
+    private TraceGroups aggregate = new TraceGroups();
+    private long latestMillis = Long.MIN_VALUE;
+    private long evictedSinceRebuild;
+
+    /**
+     * Keeps the snapshots taken within {@code windowMillis} of the latest
+     * one, but never more than {@code maxSnapshots}.
+     */
+    public RollingTraceGroups(long windowMillis, int maxSnapshots)
+    {
+        checkArgument(windowMillis > 0, "windowMillis must be positive");
+        checkArgument(maxSnapshots > 0, "maxSnapshots must be positive");
+        this.windowMillis = windowMillis;
+        this.maxSnapshots = maxSnapshots;
+    }
+
+    /**
+     * Adds the grouping of one snapshot taken at {@code timeMillis}, and
+     * evicts the snapshots that fall out of the window. The window ends at the
+     * latest time seen, and a snapshot that is already outside of it is
+     * ignored. Snapshots are evicted in the order they were added.
+     */
+    public void add(TraceGroups snapshot, long timeMillis)
+    {
+        checkNotNull(snapshot, "snapshot is null");
+        if (!snapshots.isEmpty() && timeMillis <= latestMillis - windowMillis) {
+            return;
+        }
+        snapshots.addLast(new Snapshot(snapshot, timeMillis));
+        aggregate.merge(snapshot);
+        latestMillis = Math.max(latestMillis, timeMillis);
+
+        List<TraceGroups> evicted = new ArrayList<>();
+        while (snapshots.size() > maxSnapshots || snapshots.getFirst().timeMillis <= latestMillis - windowMillis) {
+            TraceGroups groups = snapshots.removeFirst().groups;
+            aggregate.subtract(groups);
+            evicted.add(groups);
+            evictedSinceRebuild++;
+        }
+
+        if (evictedSinceRebuild >= snapshots.size()) {
+            TraceGroups rebuilt = new TraceGroups();
+            for (Snapshot retained : snapshots) {
+                rebuilt.merge(retained.groups);
+            }
+            aggregate = rebuilt;
+            evictedSinceRebuild = 0;
+        }
+        else {
+            for (TraceGroups groups : evicted) {
+                updateFirstNames(groups);
+            }
+        }
+    }
+
+    /**
+     * Returns the grouping of all snapshots in the window. The grouping is
+     * owned by this object and must not be modified.
+     */
+    public TraceGroups getGroups()
+    {
+        return aggregate;
+    }
+
+    public int getSnapshotCount()
+    {
+        return snapshots.size();
+    }
+
+    private void updateFirstNames(TraceGroups evicted)
+    {
+        for (TraceGroup group : evicted.getGroups()) {
+            TraceGroup existing = aggregate.getGroup(group.getEncodedTrace());
+            if (existing == null) {
+                continue;
+            }
+            for (TraceGroup.NamePattern namePattern : group.getNamePatterns()) {
+                if (existing.getFirstName(namePattern.getPattern()) == null) {
+                    continue;
+                }
+                for (Snapshot retained : snapshots) {
+                    TraceGroup retainedGroup = retained.groups.getGroup(group.getEncodedTrace());
+                    String firstName = (retainedGroup == null) ? null : retainedGroup.getFirstName(namePattern.getPattern());
+                    if (firstName != null) {
+                        existing.setFirstName(namePattern.getPattern(), firstName);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("windowMillis", windowMillis)
+                .add("snapshots", snapshots.size())
+                .add("aggregate", aggregate)
+                .toString();
+    }
+
+    private static final class Snapshot
+    {
+        private final TraceGroups groups;
+        private final long timeMillis;
+
+        private Snapshot(TraceGroups groups, long timeMillis)
+        {
+            this.groups = groups;
+            this.timeMillis = timeMillis;
+        }
+    }
+}
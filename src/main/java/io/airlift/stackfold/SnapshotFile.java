@@ -0,0 +1,500 @@
+package io.airlift.stackfold;
+
+import com.google.common.collect.ImmutableList;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Archive of parsed and folded thread dumps, which reloads without parsing
+ * any text. The file starts with a magic number and a version, followed by
+ * one record per snapshot, so snapshots are appended without rewriting the
+ * file.
+ * <p>
+ * A record starts with its length, the time of the snapshot and its number
+ * of threads, followed by every distinct string of the snapshot once, every
+ * distinct frame as string indexes and a line number, and then the threads,
+ * with their cpu and elapsed times and their traces as frame indexes. Numbers are written as variable
+ * length integers, so most of them take a single byte.
+ * <p>
+ * Records are memory mapped when they are read, and strings are only decoded
+ * when they are used, so grouping a snapshot does not decode the thread ids
+ * or the locks. Each frame is interned once per snapshot, and the traces are
+ * built from frame ids without comparing any frames.
+ */
+public final class SnapshotFile
+        implements AutoCloseable
+{
+    private static final int MAGIC = 0x5346534e; // "SFSN"
+    // version 2 added the cpu and elapsed times of the threads
+    private static final int VERSION = 2;
+    private static final int FILE_HEADER_SIZE = 8;
+    // length, time and thread count
+    private static final int RECORD_HEADER_SIZE = 16;
+
+    private static final Thread.State[] STATES = Thread.State.values();
+
+    private final FileChannel channel;
+    private final long[] recordOffsets;
+    private final int[] recordLengths;
+    private final long[] timesMillis;
+    private final int[] threadCounts;
+
+    private SnapshotFile(FileChannel channel)
+            throws IOException
+    {
+        this.channel = checkNotNull(channel, "channel is null");
+
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(channel, header, 0, FILE_HEADER_SIZE);
+        if (size < FILE_HEADER_SIZE || header.getInt(0) != MAGIC) {
+            throw new IOException("Not a snapshot file");
+        }
+        int version = header.getInt(4);
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot file version " + version);
+        }
+
+        List<long[]> records = new ArrayList<>();
+        long offset = FILE_HEADER_SIZE;
+        while (offset < size) {
+            if (size - offset < RECORD_HEADER_SIZE) {
+                throw new IOException("Truncated snapshot at offset " + offset);
+            }
+            readFully(channel, header, offset, RECORD_HEADER_SIZE);
+            int length = header.getInt(0);
+            if (length < 0 || offset + RECORD_HEADER_SIZE + length > size) {
+                throw new IOException("Truncated snapshot at offset " + offset);
+            }
+            records.add(new long[] {offset + RECORD_HEADER_SIZE, length, header.getLong(4), header.getInt(12)});
+            offset += RECORD_HEADER_SIZE + length;
+        }
+
+        recordOffsets = new long[records.size()];
+        recordLengths = new int[records.size()];
+        timesMillis = new long[records.size()];
+        threadCounts = new int[records.size()];
+        for (int i = 0; i < records.size(); i++) {
+            long[] record = records.get(i);
+            recordOffsets[i] = record[0];
+            recordLengths[i] = (int) record[1];
+            timesMillis[i] = record[2];
+            threadCounts[i] = (int) record[3];
+        }
+    }
+
+    /**
+     * Opens the file and reads the header of every snapshot. The snapshots
+     * themselves are read on demand.
+     */
+    public static SnapshotFile open(Path file)
+            throws IOException
+    {
+        FileChannel channel = FileChannel.open(file, READ);
+        try {
+            return new SnapshotFile(channel);
+        }
+        catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns true if the file starts with the magic number of a snapshot file.
+     */
+    public static boolean isSnapshotFile(Path file)
+            throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            return channel.size() >= FILE_HEADER_SIZE && readFully(channel, magic, 0, 4) && magic.getInt(0) == MAGIC;
+        }
+    }
+
+    /**
+     * Appends the stacks as one snapshot taken at {@code timeMillis},
+     * creating the file if it does not exist.
+     */
+    public static void append(Path file, long timeMillis, Iterator<Stack> stacks)
+            throws IOException
+    {
+        byte[] record = encode(timeMillis, stacks);
+        try (FileChannel channel = FileChannel.open(file, CREATE, READ, WRITE)) {
+            ByteBuffer buffer;
+            if (channel.size() == 0) {
+                buffer = ByteBuffer.allocate(FILE_HEADER_SIZE + record.length);
+                buffer.putInt(MAGIC).putInt(VERSION);
+            }
+            else {
+                ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+                if (!readFully(channel, header, 0, FILE_HEADER_SIZE) || header.getInt(0) != MAGIC) {
+                    throw new IOException("Not a snapshot file");
+                }
+                if (header.getInt(4) != VERSION) {
+                    throw new IOException("Unsupported snapshot file version " + header.getInt(4));
+                }
+                buffer = ByteBuffer.allocate(record.length);
+            }
+            buffer.put(record);
+            ((Buffer) buffer).flip();
+            // the header is read first, so the channel is positioned at the end instead of opened to append
+            channel.position(channel.size());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    public int getSnapshotCount()
+    {
+        return recordOffsets.length;
+    }
+
+    public long getTimeMillis(int snapshot)
+    {
+        checkElementIndex(snapshot, recordOffsets.length);
+        return timesMillis[snapshot];
+    }
+
+    public int getThreadCount(int snapshot)
+    {
+        checkElementIndex(snapshot, recordOffsets.length);
+        return threadCounts[snapshot];
+    }
+
+    /**
+     * Reads the stacks of the snapshot, in the order they were written.
+     */
+    public List<Stack> readStacks(int snapshot)
+            throws IOException
+    {
+        ImmutableList.Builder<Stack> stacks = ImmutableList.builder();
+        new RecordReader(map(snapshot)).readStacks(true, stacks::add);
+        return stacks.build();
+    }
+
+    /**
+     * Reads the snapshot straight into a grouping, which counts it as one
+     * snapshot. The stacks only carry the name and state of their thread.
+     */
+    public TraceGroups readGroups(int snapshot)
+            throws IOException
+    {
+        TraceGroups groups = new TraceGroups();
+        new RecordReader(map(snapshot)).readStacks(false, groups::add);
+        if (groups.getThreadCount() > 0) {
+            groups.addSnapshots(1);
+        }
+        return groups;
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        channel.close();
+    }
+
+    private ByteBuffer map(int snapshot)
+            throws IOException
+    {
+        checkElementIndex(snapshot, recordOffsets.length);
+        return channel.map(READ_ONLY, recordOffsets[snapshot], recordLengths[snapshot]);
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position, int length)
+            throws IOException
+    {
+        // through Buffer, whose methods do not return ByteBuffer on Java 8
+        ((Buffer) buffer).clear();
+        ((Buffer) buffer).limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] encode(long timeMillis, Iterator<Stack> stacks)
+    {
+        Map<String, Integer> stringIds = new HashMap<>();
+        VarIntOutput strings = new VarIntOutput();
+        Map<FrameTable, int[]> frameIds = new IdentityHashMap<>();
+        VarIntOutput frames = new VarIntOutput();
+        int frameCount = 0;
+        VarIntOutput threads = new VarIntOutput();
+        int threadCount = 0;
+
+        while (stacks.hasNext()) {
+            Stack stack = stacks.next();
+            threads.writeInt(stringId(stack.getName(), stringIds, strings));
+            threads.writeInt(stack.isDaemon() ? 1 : 0);
+            threads.writeInt(stringId(stack.getPriority(), stringIds, strings));
+            threads.writeInt(stringId(stack.getThreadId(), stringIds, strings));
+            threads.writeInt(stringId(stack.getNativeId(), stringIds, strings));
+            threads.writeInt(stringId(stack.getStateMessage(), stringIds, strings));
+            threads.writeInt((stack.getState() == null) ? 0 : stack.getState().ordinal() + 1);
+            WaitOn waitOn = stack.getWaitOn();
+            threads.writeInt((waitOn == null) ? 0 : 1);
+            if (waitOn != null) {
+                threads.writeInt(stringId(waitOn.getLockId(), stringIds, strings));
+                threads.writeInt(stringId(waitOn.getType(), stringIds, strings));
+            }
+            threads.writeLong(stack.getCpuNanos());
+            threads.writeLong(stack.getElapsedNanos());
+
+            Trace trace = stack.getEncodedTrace();
+            FrameTable frameTable = trace.getFrameTable();
+            int[] ids = frameIds.get(frameTable);
+            if (ids == null || ids.length < frameTable.size()) {
+                ids = (ids == null) ? new int[frameTable.size()] : Arrays.copyOf(ids, frameTable.size());
+                frameIds.put(frameTable, ids);
+            }
+            threads.writeInt(trace.size());
+            for (int position = 0; position < trace.size(); position++) {
+                int frameId = trace.getFrameId(position);
+                // frame index + 1, or 0 if not written yet
+                if (ids[frameId] == 0) {
+                    StackElement frame = frameTable.getFrame(frameId);
+                    frames.writeInt(stringId(frame.getClassName(), stringIds, strings));
+                    frames.writeInt(stringId(frame.getMethod(), stringIds, strings));
+                    frames.writeInt(stringId(frame.getFile(), stringIds, strings));
+                    frames.writeLong(frame.getLineNumber());
+                    ids[frameId] = ++frameCount;
+                }
+                threads.writeInt(ids[frameId] - 1);
+            }
+
+            threads.writeInt(stack.getLocks().size());
+            for (Locked locked : stack.getLocks()) {
+                threads.writeInt(stringId(locked.getLockId(), stringIds, strings));
+                threads.writeInt(stringId(locked.getType(), stringIds, strings));
+            }
+            threadCount++;
+        }
+
+        VarIntOutput body = new VarIntOutput();
+        body.writeInt(stringIds.size());
+        body.write(strings);
+        body.writeInt(frameCount);
+        body.write(frames);
+        body.write(threads);
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + body.size());
+        record.putInt(body.size());
+        record.putLong(timeMillis);
+        record.putInt(threadCount);
+        record.put(body.toByteArray());
+        return record.array();
+    }
+
+    /**
+     * Returns the id of the string + 1, or 0 for null, writing the string if
+     * it is new.
+     */
+    private static int stringId(String value, Map<String, Integer> stringIds, VarIntOutput strings)
+    {
+        if (value == null) {
+            return 0;
+        }
+        Integer id = stringIds.get(value);
+        if (id == null) {
+            id = stringIds.size();
+            stringIds.put(value, id);
+            byte[] bytes = value.getBytes(UTF_8);
+            strings.writeInt(bytes.length);
+            strings.write(bytes, 0, bytes.length);
+        }
+        return id + 1;
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("snapshots", recordOffsets.length)
+                .toString();
+    }
+
+    private interface StackConsumer
+    {
+        void accept(Stack stack);
+    }
+
+    private static final class RecordReader
+    {
+        private final ByteBuffer buffer;
+        private final int[] stringOffsets;
+        private final String[] strings;
+
+        private RecordReader(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+            // only the offsets are read here, the strings are decoded on first use
+            int count = readInt();
+            stringOffsets = new int[count];
+            strings = new String[count];
+            for (int i = 0; i < count; i++) {
+                stringOffsets[i] = buffer.position();
+                int length = readInt();
+                ((Buffer) buffer).position(buffer.position() + length);
+            }
+        }
+
+        private void readStacks(boolean complete, StackConsumer consumer)
+        {
+            FrameTable frameTable = new FrameTable();
+            int[] frameIds = new int[readInt()];
+            for (int i = 0; i < frameIds.length; i++) {
+                String className = readString();
+                String method = readString();
+                String file = readString();
+                long lineNumber = readLong();
+                frameIds[i] = frameTable.intern(new StackElement(className, method, file, lineNumber, ImmutableList.of()));
+            }
+
+            while (buffer.hasRemaining()) {
+                String name = readString();
+                boolean daemon = readInt() != 0;
+                String priority = complete ? readString() : skipString();
+                String threadId = complete ? readString() : skipString();
+                String nativeId = complete ? readString() : skipString();
+                String stateMessage = complete ? readString() : skipString();
+                int state = readInt();
+                WaitOn waitOn = null;
+                if (readInt() != 0) {
+                    String lockId = readString();
+                    String type = readString();
+                    waitOn = complete ? new WaitOn(lockId, type) : null;
+                }
+                long cpuNanos = readLong();
+                long elapsedNanos = readLong();
+
+                int[] frames = new int[readInt()];
+                for (int i = 0; i < frames.length; i++) {
+                    frames[i] = frameIds[readInt()];
+                }
+
+                int lockCount = readInt();
+                ImmutableList.Builder<Locked> locks = ImmutableList.builder();
+                for (int i = 0; i < lockCount; i++) {
+                    if (complete) {
+                        locks.add(new Locked(readString(), readString()));
+                    }
+                    else {
+                        skipString();
+                        skipString();
+                    }
+                }
+
+                consumer.accept(new Stack(
+                        name,
+                        daemon,
+                        priority,
+                        threadId,
+                        nativeId,
+                        stateMessage,
+                        (state == 0) ? null : STATES[state - 1],
+                        waitOn,
+                        new Trace(frameTable, frames),
+                        locks.build(),
+                        cpuNanos,
+                        elapsedNanos));
+            }
+        }
+
+        private String readString()
+        {
+            int id = readInt();
+            if (id == 0) {
+                return null;
+            }
+            String value = strings[id - 1];
+            if (value == null) {
+                int position = buffer.position();
+                ((Buffer) buffer).position(stringOffsets[id - 1]);
+                int length = readInt();
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                ((Buffer) buffer).position(position);
+                value = new String(bytes, UTF_8);
+                strings[id - 1] = value;
+            }
+            return value;
+        }
+
+        private String skipString()
+        {
+            readInt();
+            return null;
+        }
+
+        private int readInt()
+        {
+            return (int) readLong();
+        }
+
+        private long readLong()
+        {
+            long value = 0;
+            int shift = 0;
+            while (true) {
+                byte next = buffer.get();
+                value |= (long) (next & 0x7f) << shift;
+                if (next >= 0) {
+                    // zigzag
+                    return (value >>> 1) ^ -(value & 1);
+                }
+                shift += 7;
+            }
+        }
+    }
+
+    private static final class VarIntOutput
+            extends ByteArrayOutputStream
+    {
+        private void writeInt(int value)
+        {
+            writeLong(value);
+        }
+
+        private void writeLong(long value)
+        {
+            // zigzag, so -1 for a missing line number takes one byte
+            long encoded = (value << 1) ^ (value >> 63);
+            while ((encoded & ~0x7fL) != 0) {
+                write((int) ((encoded & 0x7f) | 0x80));
+                encoded >>>= 7;
+            }
+            write((int) encoded);
+        }
+
+        private void write(VarIntOutput other)
+        {
+            write(other.buf, 0, other.count);
+        }
+    }
+}
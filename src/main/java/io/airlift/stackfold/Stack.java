@@ -21,7 +21,10 @@ public class Stack
     private final String stateMessage;
     private final Thread.State state;
     private final WaitOn waitOn;
-    private final List<StackElement> trace;
+    private final Trace trace;
+    private final List<Locked> locks;
+    private final long cpuNanos;
+    private final long elapsedNanos;
 
     public Stack(
             String name,
@@ -33,6 +36,38 @@ public class Stack
             Thread.State state,
             WaitOn waitOn,
             List<StackElement> trace)
+    {
+        this(name, daemon, priority, threadId, nativeId, stateMessage, state, waitOn, Trace.copyOf(checkNotNull(trace, "trace is null")), collectLocks(trace));
+    }
+
+    public Stack(
+            String name,
+            boolean daemon,
+            String priority,
+            String threadId,
+            String nativeId,
+            String stateMessage,
+            Thread.State state,
+            WaitOn waitOn,
+            Trace trace,
+            List<Locked> locks)
+    {
+        this(name, daemon, priority, threadId, nativeId, stateMessage, state, waitOn, trace, locks, -1, -1);
+    }
+
+    public Stack(
+            String name,
+            boolean daemon,
+            String priority,
+            String threadId,
+            String nativeId,
+            String stateMessage,
+            Thread.State state,
+            WaitOn waitOn,
+            Trace trace,
+            List<Locked> locks,
+            long cpuNanos,
+            long elapsedNanos)
     {
         this.name = name;
         this.daemon = daemon;
@@ -42,7 +77,10 @@ public class Stack
         this.stateMessage = stateMessage;
         this.state = state;
         this.waitOn = waitOn;
-        this.trace = ImmutableList.copyOf(checkNotNull(trace, "trace is null"));
+        this.trace = checkNotNull(trace, "trace is null");
+        this.locks = ImmutableList.copyOf(checkNotNull(locks, "locks is null"));
+        this.cpuNanos = cpuNanos;
+        this.elapsedNanos = elapsedNanos;
     }
 
     public String getName()
@@ -50,15 +88,87 @@ public class Stack
         return name;
     }
 
+    public boolean isDaemon()
+    {
+        return daemon;
+    }
+
+    public String getPriority()
+    {
+        return priority;
+    }
+
+    public String getThreadId()
+    {
+        return threadId;
+    }
+
+    public String getNativeId()
+    {
+        return nativeId;
+    }
+
+    public String getStateMessage()
+    {
+        return stateMessage;
+    }
+
+    public Thread.State getState()
+    {
+        return state;
+    }
+
+    /**
+     * Returns the lock the thread is waiting on, or null.
+     */
+    public WaitOn getWaitOn()
+    {
+        return waitOn;
+    }
+
+    /**
+     * Returns the frames of the trace. The elements do not carry locks, see {@link #getLocks()}.
+     */
     public List<StackElement> getTrace()
+    {
+        return trace.getElements();
+    }
+
+    public Trace getEncodedTrace()
     {
         return trace;
     }
 
+    /**
+     * Returns the monitors held by the thread, in the order they appear in the dump.
+     */
+    public List<Locked> getLocks()
+    {
+        return locks;
+    }
+
+    /**
+     * Returns the CPU time used by the thread since it started, as printed
+     * by jstack of Java 11 and later in {@code cpu=}, or -1 if unknown.
+     */
+    public long getCpuNanos()
+    {
+        return cpuNanos;
+    }
+
+    /**
+     * Returns the time since the thread started, as printed by jstack of
+     * Java 11 and later in {@code elapsed=}, or -1 if unknown.
+     */
+    public long getElapsedNanos()
+    {
+        return elapsedNanos;
+    }
+
     @Override
     public int hashCode()
     {
-        return Objects.hashCode(name, daemon, priority, threadId, nativeId, stateMessage, state, waitOn, trace);
+        return Objects.hashCode(name, daemon, priority, threadId, nativeId, stateMessage, state, waitOn, trace, cpuNanos, elapsedNanos);
     }
 
     @Override
@@ -79,7 +189,9 @@ public class Stack
                 Objects.equal(this.stateMessage, o.stateMessage) &&
                 Objects.equal(this.state, o.state) &&
                 Objects.equal(this.waitOn, o.waitOn) &&
-                Objects.equal(this.trace, o.trace);
+                Objects.equal(this.trace, o.trace) &&
+                this.cpuNanos == o.cpuNanos &&
+                this.elapsedNanos == o.elapsedNanos;
     }
 
     @Override
@@ -94,9 +206,20 @@ public class Stack
                 .add("stateMessage", stateMessage)
                 .add("state", state)
                 .add("waitOn", waitOn)
+                .add("cpuNanos", cpuNanos)
+                .add("elapsedNanos", elapsedNanos)
                 .toString();
     }
 
+    private static List<Locked> collectLocks(List<StackElement> trace)
+    {
+        ImmutableList.Builder<Locked> locks = ImmutableList.builder();
+        for (StackElement element : trace) {
+            locks.addAll(element.getLocks());
+        }
+        return locks.build();
+    }
+
     public static Function<Stack, List<StackElement>> traceGetter()
     {
         return new Function<Stack, List<StackElement>>()
@@ -118,7 +241,7 @@ public class Stack
             @Override
             public String apply(Stack input)
             {
-                return input.getName().replaceAll("\\d+", "*");
+                return ThreadNamePatterns.toPattern(input.getName());
             }
         };
     }
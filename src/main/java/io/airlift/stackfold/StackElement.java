@@ -15,6 +15,7 @@ public class StackElement
     private final String file;
     private final long lineNumber;
     private final List<Locked> locks;
+    private final int hashCode;
 
     public StackElement(String className, String method, String file, long lineNumber, List<Locked> locks)
     {
@@ -23,11 +24,46 @@ public class StackElement
         this.file = file;
         this.lineNumber = lineNumber;
         this.locks = ImmutableList.copyOf(checkNotNull(locks, "locks is null"));
+        this.hashCode = Objects.hashCode(className, method);
+    }
+
+    public String getClassName()
+    {
+        return className;
+    }
+
+    public String getMethod()
+    {
+        return method;
+    }
+
+    public String getFile()
+    {
+        return file;
+    }
+
+    public long getLineNumber()
+    {
+        return lineNumber;
+    }
+
+    public List<Locked> getLocks()
+    {
+        return locks;
     }
 
     public String prettyPrint()
     {
         StringBuilder out = new StringBuilder();
+        prettyPrint(out);
+        return out.toString();
+    }
+
+    /**
+     * Appends the text of {@link #prettyPrint()} to the builder.
+     */
+    public void prettyPrint(StringBuilder out)
+    {
         out.append(className).append('.').append(method);
         if (file != null) {
             out.append('(').append(file);
@@ -36,13 +72,12 @@ public class StackElement
             }
             out.append(')');
         }
-        return out.toString();
     }
 
     @Override
     public int hashCode()
     {
-        return Objects.hashCode(className, method);
+        return hashCode;
     }
 
     @Override
@@ -1,43 +1,459 @@
 package io.airlift.stackfold;
 
-import com.google.common.io.CharStreams;
-import com.google.common.io.Resources;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.CountingInputStream;
+import io.airlift.stackfold.StackFolder.CollapsedPrefix;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
+import static io.airlift.stackfold.StackFolder.groupStackTrace;
+import static io.airlift.stackfold.StackFolder.loadDefaultFolding;
+import static io.airlift.stackfold.StackFolder.loadDefaultFramePatterns;
 import static io.airlift.stackfold.StackFolder.loadFolding;
-import static io.airlift.stackfold.StackFolder.loadStackTrace;
+import static io.airlift.stackfold.StackFolder.loadFramePatterns;
+import static io.airlift.stackfold.StackFolder.loadSnapshots;
+import static io.airlift.stackfold.StackFolder.openDump;
+import static io.airlift.stackfold.StackFolder.renderCallTree;
+import static io.airlift.stackfold.StackFolder.renderCollapsed;
+import static io.airlift.stackfold.StackFolder.renderDiff;
+import static io.airlift.stackfold.StackFolder.renderGroups;
+import static io.airlift.stackfold.StackFolder.renderHotThreads;
+import static io.airlift.stackfold.StackFolder.renderLockContentions;
+import static io.airlift.stackfold.StackFolder.renderSamples;
+import static io.airlift.stackfold.StackFolder.renderStats;
 import static io.airlift.stackfold.StackFolder.renderStacks;
+import static io.airlift.stackfold.StackFolder.renderTopStacks;
+import static io.airlift.stackfold.StackFolder.streamStackTrace;
+import static java.lang.Double.parseDouble;
+import static java.lang.Integer.parseInt;
+import static java.lang.String.format;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 public final class StackFold
 {
+    private static final String USAGE = "" +
+            "Usage: stackfold [options] [dump...]\n" +
+            "  reads the dump from stdin when no dump files are given, and decompresses\n" +
+            "  gzip input on a separate thread\n" +
+            "  --parallel[=N]   parse on N threads (default: number of processors)\n" +
+            "  --save=FILE      append each dump to the snapshot file FILE instead of printing it;\n" +
+            "                   snapshot files can be given as dumps and are loaded without parsing\n" +
+            "  --events=TYPE[,TYPE...]\n" +
+            "                   fold the stack traces of these events of .jfr recordings given as dumps\n" +
+            "                   (default: jdk.ExecutionSample), such as jdk.ThreadPark or jdk.JavaMonitorEnter\n" +
+            "  --by-event       print the samples of each event type of the recordings separately\n" +
+            "  --by-container   print the threads of each thread container of jcmd Thread.dump_to_file\n" +
+            "                   dumps separately; these dumps, JSON or text, are detected in any mode\n" +
+            "  --folding=FILE   fold with the rules in FILE instead of the default rules\n" +
+            "  --patterns=FILE  normalize and collapse frames with the glob rules in FILE instead of\n" +
+            "                   the default rules, see FramePatterns for the syntax\n" +
+            "  --server=PORT    fold dumps posted to http://127.0.0.1:PORT/ on --parallel threads,\n" +
+            "                   see StackFoldServer for the paths\n" +
+            "  --follow[=SECONDS]\n" +
+            "                   follow the dump file or stdin as dumps are appended, and print the\n" +
+            "                   top groups of the dumps in the last SECONDS (default: 60)\n" +
+            "  --interval=SECONDS\n" +
+            "                   print every SECONDS while following, if there are new dumps (default: 5)\n" +
+            "  --query=QUERY    print the groups matching every term of the query, such as\n" +
+            "                   'java.util.HashMap.resize state:RUNNABLE', see FrameIndex for the terms\n" +
+            "  --top=K          print only the K groups with the most threads, largest first\n" +
+            "  --aggregate      count samples per trace across all snapshots, most frequent first\n" +
+            "  --tree[=PERCENT] print the traces merged into a call tree from the outermost frame,\n" +
+            "                   leaving out branches with less than PERCENT of the threads (default: 1)\n" +
+            "  --diff           compare two dump files, printing the groups that changed, largest first\n" +
+            "  --stats          print the input, phase times and allocation, parse and fold throughput,\n" +
+            "                   group count and folding rule hits to stderr\n" +
+            "  --hot[=K]        print the K groups whose threads used the most CPU between successive\n" +
+            "                   jstack dumps of Java 11 or later, matched by thread id (default: 20)\n" +
+            "  --locks          print deadlocks and the most contended locks of each dump\n" +
+            "  --collapsed[=names|states]\n" +
+            "                   print collapsed stacks for flame graphs, optionally below a\n" +
+            "                   thread name pattern or thread state frame\n";
+
+    private static final int MAX_FOLLOWED_SNAPSHOTS = 10_000;
+
     private StackFold() {}
 
     public static void main(String[] args)
             throws Exception
     {
-        List<StackFolding> foldings = loadFolding(readResourceLines("folding.txt"));
+        int parallelism = 1;
+        boolean aggregate = false;
+        boolean printStats = false;
+        Double treePercent = null;
+        CollapsedPrefix collapsed = null;
+        boolean locks = false;
+        int hot = 0;
+        boolean diff = false;
+        int top = 0;
+        Path folding = null;
+        Path patterns = null;
+        Path save = null;
+        Set<String> events = JfrRecording.DEFAULT_EVENT_TYPES;
+        boolean byEvent = false;
+        boolean byContainer = false;
+        Integer serverPort = null;
+        Integer followSeconds = null;
+        int intervalSeconds = 5;
+        String query = null;
+        List<Path> dumps = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--parallel")) {
+                parallelism = Runtime.getRuntime().availableProcessors();
+            }
+            else if (arg.startsWith("--parallel=")) {
+                parallelism = parseInt(arg.substring("--parallel=".length()));
+            }
+            else if (arg.equals("--aggregate")) {
+                aggregate = true;
+            }
+            else if (arg.equals("--hot")) {
+                hot = 20;
+            }
+            else if (arg.startsWith("--hot=")) {
+                hot = parseInt(arg.substring("--hot=".length()));
+            }
+            else if (arg.equals("--stats")) {
+                printStats = true;
+            }
+            else if (arg.equals("--tree")) {
+                treePercent = 1.0;
+            }
+            else if (arg.startsWith("--tree=")) {
+                treePercent = parseDouble(arg.substring("--tree=".length()));
+            }
+            else if (arg.startsWith("--top=")) {
+                top = parseInt(arg.substring("--top=".length()));
+            }
+            else if (arg.startsWith("--save=")) {
+                save = Paths.get(arg.substring("--save=".length()));
+            }
+            else if (arg.startsWith("--events=")) {
+                events = ImmutableSet.copyOf(Splitter.on(',').omitEmptyStrings().trimResults().split(arg.substring("--events=".length())));
+            }
+            else if (arg.equals("--by-event")) {
+                byEvent = true;
+            }
+            else if (arg.equals("--by-container")) {
+                byContainer = true;
+            }
+            else if (arg.startsWith("--folding=")) {
+                folding = Paths.get(arg.substring("--folding=".length()));
+            }
+            else if (arg.startsWith("--patterns=")) {
+                patterns = Paths.get(arg.substring("--patterns=".length()));
+            }
+            else if (arg.startsWith("--server=")) {
+                serverPort = parseInt(arg.substring("--server=".length()));
+            }
+            else if (arg.equals("--follow")) {
+                followSeconds = 60;
+            }
+            else if (arg.startsWith("--follow=")) {
+                followSeconds = parseInt(arg.substring("--follow=".length()));
+            }
+            else if (arg.startsWith("--interval=")) {
+                intervalSeconds = parseInt(arg.substring("--interval=".length()));
+            }
+            else if (arg.startsWith("--query=")) {
+                query = arg.substring("--query=".length());
+            }
+            else if (arg.equals("--diff")) {
+                diff = true;
+            }
+            else if (arg.equals("--locks")) {
+                locks = true;
+            }
+            else if (arg.equals("--collapsed")) {
+                collapsed = CollapsedPrefix.NONE;
+            }
+            else if (arg.equals("--collapsed=names")) {
+                collapsed = CollapsedPrefix.NAME_PATTERN;
+            }
+            else if (arg.equals("--collapsed=states")) {
+                collapsed = CollapsedPrefix.THREAD_STATE;
+            }
+            else if (!arg.startsWith("--")) {
+                dumps.add(Paths.get(arg));
+            }
+            else {
+                System.err.print(USAGE);
+                System.exit(1);
+            }
+        }
+
+        StackFoldings compiled = StackFoldings.compile(
+                (folding != null) ? loadFolding(folding) : loadDefaultFolding(),
+                (patterns != null) ? loadFramePatterns(patterns) : loadDefaultFramePatterns());
+        StackFoldings foldings = printStats ? compiled.withStats() : compiled;
+        FoldStats stats = foldings.getStats();
+
+        if (serverPort != null) {
+            // the server threads keep running after main returns
+            int threads = (parallelism > 1) ? parallelism : Runtime.getRuntime().availableProcessors();
+            StackFoldServer server = new StackFoldServer(foldings, serverPort, threads);
+            System.err.println("Listening on http://127.0.0.1:" + server.getPort() + "/");
+            return;
+        }
+
+        if (save != null) {
+            if (dumps.isEmpty()) {
+                SnapshotFile.append(save, System.currentTimeMillis(), streamStackTrace(stdinReader(), foldings));
+            }
+            for (Path dump : dumps) {
+                // use default character set to match jstack output
+                try (Reader reader = openDump(dump, Charset.defaultCharset())) {
+                    SnapshotFile.append(save, Files.getLastModifiedTime(dump).toMillis(), streamStackTrace(reader, foldings));
+                }
+            }
+            return;
+        }
+
+        if (followSeconds != null) {
+            if (dumps.size() > 1) {
+                System.err.print(USAGE);
+                System.exit(1);
+            }
+            RollingTraceGroups window = new RollingTraceGroups(SECONDS.toMillis(followSeconds), MAX_FOLLOWED_SNAPSHOTS);
+            // use default character set to match jstack output
+            try (DumpFollower follower = dumps.isEmpty()
+                    ? DumpFollower.followStream(System.in, Charset.defaultCharset(), foldings, window)
+                    : DumpFollower.followFile(dumps.get(0), Charset.defaultCharset(), foldings, window)) {
+                follow(follower, followSeconds, SECONDS.toNanos(intervalSeconds), (top > 0) ? top : 20);
+            }
+            return;
+        }
+
+        if (diff) {
+            if (dumps.size() != 2) {
+                System.err.print(USAGE);
+                System.exit(1);
+            }
+            TraceGroups before = groupDump(dumps.get(0), foldings, events, null);
+            TraceGroups after = groupDump(dumps.get(1), foldings, events, null);
+            renderDiff(TraceDiff.compare(before, after), System.out);
+            return;
+        }
 
-        Set<Stack> stacks = loadStackTrace(readStacksFromStdin(), foldings);
+        if (byEvent) {
+            for (Path dump : dumps) {
+                if (!JfrRecording.isRecording(dump)) {
+                    System.err.println(dump + " is not a JFR recording");
+                    System.exit(1);
+                }
+                for (Map.Entry<String, TraceGroups> entry : JfrRecording.groupByEventType(dump, foldings, events).entrySet()) {
+                    System.out.println(dump + " " + entry.getKey());
+                    System.out.println();
+                    renderSamples(entry.getValue(), System.out);
+                    System.out.println();
+                }
+            }
+            return;
+        }
+
+        if (byContainer) {
+            if (dumps.isEmpty()) {
+                renderContainers("stdin", JcmdThreadDump.groupByContainer(stdinReader(), foldings));
+            }
+            for (Path dump : dumps) {
+                try (Reader reader = openDump(dump, UTF_8)) {
+                    renderContainers(dump.toString(), JcmdThreadDump.groupByContainer(reader, foldings));
+                }
+            }
+            return;
+        }
+
+        if (hot > 0) {
+            HotThreads hotThreads = new HotThreads();
+            if (dumps.isEmpty()) {
+                hotThreads.addDumps(stdinReader(), foldings);
+            }
+            for (Path dump : dumps) {
+                // use default character set to match jstack output
+                try (Reader reader = openDump(dump, Charset.defaultCharset())) {
+                    hotThreads.addDumps(reader, foldings);
+                }
+            }
+            renderHotThreads(hotThreads, hot, System.out);
+            return;
+        }
+
+        if (locks) {
+            if (dumps.isEmpty()) {
+                renderLockContentions(null, LockContention.analyzeDumps(stdinReader(), foldings), System.out);
+            }
+            for (Path dump : dumps) {
+                // use default character set to match jstack output
+                try (Reader reader = openDump(dump, Charset.defaultCharset())) {
+                    renderLockContentions(dump.toString(), LockContention.analyzeDumps(reader, foldings), System.out);
+                }
+            }
+            return;
+        }
+
+        TraceGroups groups = new TraceGroups();
+        ForkJoinPool pool = (parallelism > 1) ? new ForkJoinPool(parallelism) : null;
+        try (FoldStats.Phase ignored = (stats == null) ? null : stats.startPhase("read")) {
+            if (dumps.isEmpty()) {
+                CountingInputStream in = new CountingInputStream(System.in);
+                BufferedReader reader = new BufferedReader(stdinReader(in), 64 * 1024);
+                if (JcmdThreadDump.isJcmdDump(reader)) {
+                    groups = JcmdThreadDump.groupStacks(reader, foldings);
+                }
+                else {
+                    groups = (pool != null) ? groupStackTrace(reader, foldings, pool) : groupStackTrace(reader, foldings);
+                }
+                if (stats != null) {
+                    stats.recordBytes(in.getCount());
+                }
+            }
+            for (Path dump : dumps) {
+                groups.merge(groupDump(dump, foldings, events, pool));
+                if (stats != null) {
+                    stats.recordBytes(Files.size(dump));
+                }
+            }
+        }
+        finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+
+        try (FoldStats.Phase ignored = (stats == null) ? null : stats.startPhase("render")) {
+            render(groups, query, collapsed, treePercent, top, aggregate);
+        }
+        if (stats != null) {
+            renderStats(foldings, groups, System.err);
+        }
+    }
 
-        renderStacks(stacks, System.out);
+    private static void render(TraceGroups groups, String query, CollapsedPrefix collapsed, Double treePercent, int top, boolean aggregate)
+            throws IOException
+    {
+        if (query != null) {
+            FrameIndex index = FrameIndex.build(groups);
+            List<TraceGroup> matches = index.query(query);
+            long threads = index.countThreads(query);
+            System.out.println(format("%s groups with %s threads match", matches.size(), threads));
+            System.out.println();
+            renderGroups(matches, System.out);
+        }
+        else if (collapsed != null) {
+            // use default character set to match the input
+            renderCollapsed(groups, collapsed, new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024));
+        }
+        else if (treePercent != null) {
+            renderCallTree(groups, treePercent, new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024));
+        }
+        else if (top > 0) {
+            renderTopStacks(groups, top, new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024));
+        }
+        else if (aggregate) {
+            renderSamples(groups, System.out);
+        }
+        else {
+            renderStacks(groups, System.out);
+        }
+    }
+
+    private static TraceGroups groupDump(Path dump, StackFoldings foldings, Set<String> events, ForkJoinPool pool)
+            throws IOException
+    {
+        // the magic numbers are checked first, and the dump is opened once, for the format it has
+        if (JfrRecording.isRecording(dump)) {
+            return JfrRecording.groupStacks(dump, foldings, events);
+        }
+        if (SnapshotFile.isSnapshotFile(dump)) {
+            return loadSnapshots(dump);
+        }
+        // jcmd writes its dumps in UTF-8, and jstack output uses the default character set
+        if (PipelinedGzipInputStream.isGzip(dump)) {
+            try (InputStream in = new BufferedInputStream(new PipelinedGzipInputStream(Files.newInputStream(dump)), 64 * 1024)) {
+                if (JcmdThreadDump.isJcmdDump(in)) {
+                    return JcmdThreadDump.groupStacks(new InputStreamReader(in, UTF_8), foldings);
+                }
+                Reader reader = new InputStreamReader(in, Charset.defaultCharset());
+                return (pool != null) ? groupStackTrace(reader, foldings, pool) : groupStackTrace(reader, foldings);
+            }
+        }
+        try (FileChannel channel = FileChannel.open(dump, READ)) {
+            if (JcmdThreadDump.isJcmdDump(channel)) {
+                return JcmdThreadDump.groupStacks(Channels.newReader(channel, UTF_8.newDecoder(), 64 * 1024), foldings);
+            }
+            Charset charset = Charset.defaultCharset();
+            return (pool != null) ? groupStackTrace(channel, charset, foldings, pool) : groupStackTrace(channel, charset, foldings);
+        }
+    }
+
+    private static void renderContainers(String dump, Map<String, TraceGroups> containers)
+    {
+        for (Map.Entry<String, TraceGroups> entry : containers.entrySet()) {
+            System.out.println(dump + " " + entry.getKey());
+            System.out.println();
+            renderStacks(entry.getValue(), System.out);
+            System.out.println();
+        }
+    }
+
+    private static void follow(DumpFollower follower, int windowSeconds, long intervalNanos, int top)
+            throws IOException, InterruptedException
+    {
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024);
+        long nextRender = System.nanoTime() + intervalNanos;
+        boolean updated = false;
+        while (true) {
+            int completed = follower.process(Math.max(0, nextRender - System.nanoTime()), NANOSECONDS);
+            updated |= completed > 0;
+            if (completed < 0 || System.nanoTime() >= nextRender) {
+                if (updated) {
+                    TraceGroups groups = follower.getWindow().getGroups();
+                    out.write(format("%s threads in %s dumps of the last %s seconds%n%n", groups.getThreadCount(), groups.getSnapshotCount(), windowSeconds));
+                    renderTopStacks(groups, top, out);
+                    updated = false;
+                }
+                if (completed < 0) {
+                    return;
+                }
+                nextRender = System.nanoTime() + intervalNanos;
+            }
+        }
     }
 
-    private static List<String> readResourceLines(String name)
+    private static Reader stdinReader()
             throws IOException
     {
-        return Resources.readLines(Resources.getResource(name), UTF_8);
+        return stdinReader(System.in);
     }
 
     @SuppressWarnings("IOResourceOpenedButNotSafelyClosed")
-    private static List<String> readStacksFromStdin()
+    private static Reader stdinReader(InputStream in)
             throws IOException
     {
         // use default character set to match jstack output
-        return CharStreams.readLines(new InputStreamReader(System.in));
+        return new InputStreamReader(PipelinedGzipInputStream.decompressIfGzip(in));
     }
 }
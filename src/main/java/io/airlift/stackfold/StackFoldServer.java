@@ -0,0 +1,232 @@
+package io.airlift.stackfold;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.airlift.stackfold.StackFolder.CollapsedPrefix;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Folds thread dumps posted over HTTP, so tools that fold many small dumps
+ * do not pay for starting a JVM and warming up the parser every time. The
+ * server only listens on the loopback interface. The compiled folding rules
+ * are shared by all requests, and each request is parsed and rendered on a
+ * thread of a fixed pool.
+ * <p>
+ * The dump is the request body, optionally gzip compressed, and the
+ * response is plain text in the same format as the command line tool:
+ * <ul>
+ * <li>{@code POST /stacks} renders the folded groups</li>
+ * <li>{@code POST /samples} renders the groups as a sampling profile</li>
+ * <li>{@code POST /top?limit=K} renders the K largest groups</li>
+ * <li>{@code POST /collapsed?prefix=names|states} renders collapsed stacks</li>
+ * <li>{@code POST /locks} renders deadlocks and contended locks</li>
+ * </ul>
+ * Dumps are read as UTF-8.
+ */
+public final class StackFoldServer
+        implements AutoCloseable
+{
+    private final StackFoldings stackFoldings;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Starts a server on the loopback interface. Port 0 picks a free port,
+     * see {@link #getPort()}.
+     */
+    public StackFoldServer(StackFoldings stackFoldings, int port, int threads)
+            throws IOException
+    {
+        this.stackFoldings = checkNotNull(stackFoldings, "stackFoldings is null");
+        checkArgument(port >= 0, "port is negative");
+        checkArgument(threads > 0, "threads must be positive");
+
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("stackfold-http-%s")
+                .setDaemon(true)
+                .build());
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public int getPort()
+    {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close()
+    {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange)
+            throws IOException
+    {
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                sendError(exchange, 405, "Only POST is supported");
+                return;
+            }
+
+            Renderer renderer;
+            try {
+                renderer = createRenderer(exchange.getRequestURI());
+            }
+            catch (IllegalArgumentException e) {
+                sendError(exchange, 400, e.getMessage());
+                return;
+            }
+            if (renderer == null) {
+                sendError(exchange, 404, "Unknown path " + exchange.getRequestURI().getPath());
+                return;
+            }
+
+            // render before sending the headers, so a bad dump can still fail the request
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            try (InputStream body = PipelinedGzipInputStream.decompressIfGzip(exchange.getRequestBody());
+                    Reader reader = new InputStreamReader(body, UTF_8)) {
+                renderer.render(reader, response);
+            }
+            catch (IllegalArgumentException | IllegalStateException | UncheckedIOException e) {
+                sendError(exchange, 400, "Invalid thread dump: " + e.getMessage());
+                return;
+            }
+            send(exchange, 200, response.toByteArray());
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Returns the renderer for the path, or null if there is none.
+     */
+    private Renderer createRenderer(URI uri)
+    {
+        Map<String, String> parameters = parseQuery(uri.getRawQuery());
+        switch (uri.getPath()) {
+            case "/stacks":
+                return (reader, out) -> StackFolder.renderStacks(StackFolder.groupStackTrace(reader, stackFoldings), printStream(out));
+            case "/samples":
+                return (reader, out) -> StackFolder.renderSamples(StackFolder.groupStackTrace(reader, stackFoldings), printStream(out));
+            case "/top":
+                int limit = parseLimit(parameters.get("limit"));
+                return (reader, out) -> StackFolder.renderTopStacks(StackFolder.groupStackTrace(reader, stackFoldings), limit, new OutputStreamWriter(out, UTF_8));
+            case "/collapsed":
+                CollapsedPrefix prefix = parsePrefix(parameters.get("prefix"));
+                return (reader, out) -> StackFolder.renderCollapsed(StackFolder.groupStackTrace(reader, stackFoldings), prefix, new OutputStreamWriter(out, UTF_8));
+            case "/locks":
+                return (reader, out) -> StackFolder.renderLockContentions(null, LockContention.analyzeDumps(reader, stackFoldings), printStream(out));
+            default:
+                return null;
+        }
+    }
+
+    private static int parseLimit(String value)
+    {
+        checkArgument(value != null, "Parameter limit is required");
+        int limit;
+        try {
+            limit = Integer.parseInt(value);
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid limit " + value);
+        }
+        checkArgument(limit > 0, "Parameter limit must be positive");
+        return limit;
+    }
+
+    private static CollapsedPrefix parsePrefix(String value)
+    {
+        if (value == null) {
+            return CollapsedPrefix.NONE;
+        }
+        switch (value) {
+            case "names":
+                return CollapsedPrefix.NAME_PATTERN;
+            case "states":
+                return CollapsedPrefix.THREAD_STATE;
+            default:
+                throw new IllegalArgumentException("Invalid prefix " + value);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query)
+    {
+        Map<String, String> parameters = new HashMap<>();
+        if (query == null) {
+            return parameters;
+        }
+        for (String parameter : query.split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals > 0) {
+                parameters.put(parameter.substring(0, equals), parameter.substring(equals + 1));
+            }
+        }
+        return parameters;
+    }
+
+    private static PrintStream printStream(OutputStream out)
+            throws IOException
+    {
+        return new PrintStream(out, false, UTF_8.name());
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message)
+            throws IOException
+    {
+        send(exchange, status, (message + "\n").getBytes(UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body)
+            throws IOException
+    {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        // a length of zero would mean a chunked body
+        exchange.sendResponseHeaders(status, (body.length == 0) ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("address", server.getAddress())
+                .toString();
+    }
+
+    private interface Renderer
+    {
+        void render(Reader dump, OutputStream out)
+                throws IOException;
+    }
+}
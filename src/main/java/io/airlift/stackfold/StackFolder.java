@@ -1,221 +1,748 @@
 package io.airlift.stackfold;
 
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.ListMultimap;
-import com.google.common.collect.Multimaps;
-import com.google.common.collect.PeekingIterator;
+import com.google.common.io.Resources;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.PrintStream;
-import java.util.ArrayList;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.TreeMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ForkJoinPool;
 
-import static com.google.common.base.Preconditions.checkState;
-import static com.google.common.collect.Iterators.peekingIterator;
-import static java.lang.Long.parseLong;
+import static com.google.common.base.Preconditions.checkArgument;
+import static io.airlift.stackfold.StackParser.extractStackElement;
 import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 public final class StackFolder
 {
     /**
-     * Matches thread info as printed by jstack.
-     * <p>
-     * Example
-     * <pre>
-     * "Signal Dispatcher" #2 daemon prio=5 tid=0x00007fda14895800 nid=0x5003 runnable [0x0000000000000000]
-     * </pre>
+     * Optional frame added below the root of every collapsed trace.
      */
-    private static final Pattern JSTACK_THREAD_INFO_PATTERN = Pattern.compile("" +
-            "^\"(?<name>.*)\"\\s*(?:#(\\d+))?\\s*(?<daemon>daemon)?\\s*" +
-            "prio=(?<priority>\\d+)\\s*(?:os_prio=(\\d+))?\\s*tid=(?<threadId>\\w+)\\s*nid=(?<nativeId>\\w+)\\s*(?<stateMessage>[^\\[]*)(?:\\[([^\\]]*)\\])?$");
-
-    /**
-     * Matches thread info as printed by {@link java.lang.management.ThreadMXBean#dumpAllThreads(boolean, boolean)}.
-     * Example
-     * <pre>
-     * "http-worker-560" Id=560 TIMED_WAITING on java.util.concurrent.SynchronousQueue$TransferStack@2a283975
-     * </pre>
-     */
-    private static final Pattern THREAD_MXBEAN_THREAD_INFO_PATTERN = Pattern.compile("" +
-            "^\"(?<name>.*)\"\\s+Id=(?<threadId>\\d+)\\s+(?<stateMessage>.*)$");
-
-    private static final Pattern STACK_ELEMENT_PATTERN = Pattern.compile("(?:at)?\\s*([^\\(]+)\\.([^\\(]+)(?:\\(([^:]+)(?::(\\d+))?\\))?");
-    private static final Pattern WAIT_ON_PATTERN = Pattern.compile("- parking to wait for  <(\\w+)> \\(a (\\S+)\\)");
-    private static final Pattern LOCKED_PATTERN = Pattern.compile("- locked <(\\w+)> \\(a (\\S+)\\)");
+    public enum CollapsedPrefix
+    {
+        NONE,
+        NAME_PATTERN,
+        THREAD_STATE,
+    }
 
     private StackFolder() {}
 
     public static void renderStacks(Set<Stack> stacks, PrintStream out)
     {
-        ListMultimap<List<StackElement>, Stack> threadsGroupedByTrace = Multimaps.index(stacks, Stack.traceGetter());
+        renderStacks(TraceGroups.groupStacks(stacks), out);
+    }
+
+    public static void renderStacks(TraceGroups groups, PrintStream out)
+    {
+        for (TraceGroup group : groups.getGroups()) {
+            renderGroup(group, out);
+        }
+        out.flush();
+    }
+
+    /**
+     * Renders the groups in the given order, in the same format as
+     * {@link #renderStacks(TraceGroups, PrintStream)}.
+     */
+    public static void renderGroups(List<TraceGroup> groups, PrintStream out)
+    {
+        for (TraceGroup group : groups) {
+            renderGroup(group, out);
+        }
+        out.flush();
+    }
 
-        for (Collection<Stack> commonStacks : threadsGroupedByTrace.asMap().values()) {
-            Stack stack = commonStacks.iterator().next();
+    /**
+     * Renders the groups of one or more snapshots as a sampling profile, with
+     * the most frequent traces first. Each trace is preceded by its number of
+     * samples and its share of all samples.
+     */
+    public static void renderSamples(TraceGroups groups, PrintStream out)
+    {
+        out.println(format("%s samples in %s snapshots", groups.getThreadCount(), groups.getSnapshotCount()));
+        out.println();
+        for (TraceGroup group : groups.getGroupsByThreadCount()) {
+            out.println(format("%s samples (%.1f%%)", group.getThreadCount(), 100.0 * group.getThreadCount() / groups.getThreadCount()));
+            renderGroup(group, out);
+        }
+        out.flush();
+    }
 
-            // print thread names
-            Map<String, Collection<Stack>> threadsGroupedByNamePattern = new TreeMap<>(Multimaps.index(commonStacks, Stack.namePatternGetter()).asMap());
-            if (threadsGroupedByNamePattern.size() < 50) {
-                for (Map.Entry<String, Collection<Stack>> entry : threadsGroupedByNamePattern.entrySet()) {
-                    if (entry.getValue().size() == 1) {
-                        out.println(entry.getValue().iterator().next().getName());
+    /**
+     * Renders the groups in the collapsed format read by flame graph tools,
+     * one {@code frame;frame;frame count} line per trace with the root frame
+     * first. With a prefix, a trace has one line per name pattern or thread
+     * state, counting only the threads that have it. Frames are written
+     * directly to the writer, which is wrapped in a buffer unless it already
+     * is one, and flushed at the end.
+     */
+    public static void renderCollapsed(TraceGroups groups, CollapsedPrefix prefix, Writer writer)
+            throws IOException
+    {
+        Writer out = (writer instanceof BufferedWriter) ? writer : new BufferedWriter(writer);
+        for (TraceGroup group : groups.getGroups()) {
+            switch (prefix) {
+                case NONE:
+                    if (!group.getTrace().isEmpty()) {
+                        renderCollapsedLine(out, null, group.getEncodedTrace(), group.getThreadCount());
                     }
-                    else {
-                        out.println(format("%s (%s threads)", entry.getKey(), entry.getValue().size()));
+                    break;
+                case NAME_PATTERN:
+                    for (TraceGroup.NamePattern namePattern : group.getNamePatterns()) {
+                        renderCollapsedLine(out, namePattern.getPattern(), group.getEncodedTrace(), namePattern.getCount());
                     }
-                }
+                    break;
+                case THREAD_STATE:
+                    long stateless = group.getThreadCount();
+                    for (Map.Entry<Thread.State, Long> entry : group.getStateCounts().entrySet()) {
+                        renderCollapsedLine(out, entry.getKey().name(), group.getEncodedTrace(), entry.getValue());
+                        stateless -= entry.getValue();
+                    }
+                    if (stateless > 0) {
+                        renderCollapsedLine(out, "UNKNOWN", group.getEncodedTrace(), stateless);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported prefix: " + prefix);
+            }
+        }
+        out.flush();
+    }
+
+    private static void renderCollapsedLine(Writer out, String prefix, Trace trace, long count)
+            throws IOException
+    {
+        boolean first = true;
+        if (prefix != null) {
+            writeCollapsedFrame(out, prefix);
+            first = false;
+        }
+        for (int i = trace.size() - 1; i >= 0; i--) {
+            if (!first) {
+                out.write(';');
+            }
+            StackElement frame = trace.getFrame(i);
+            writeCollapsedFrame(out, frame.getClassName());
+            out.write('.');
+            writeCollapsedFrame(out, frame.getMethod());
+            first = false;
+        }
+        out.write(' ');
+        out.write(Long.toString(count));
+        out.write('\n');
+    }
+
+    private static void writeCollapsedFrame(Writer out, String value)
+            throws IOException
+    {
+        // semicolons separate frames and line breaks separate traces
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ';' || c == '\n' || c == '\r') {
+                out.write(value.replace(';', '_').replace('\n', '_').replace('\r', '_'));
+                return;
+            }
+        }
+        out.write(value);
+    }
+
+    /**
+     * Renders the deadlocks, followed by the contended locks with the most
+     * waiters first. Each lock shows the top of the owner's trace and the
+     * names of the first waiters.
+     */
+    /**
+     * Renders the lock contention of each dump of one input, as returned by
+     * {@link LockContention#analyzeDumps}. With several dumps, each starts
+     * with a {@code dump N} line after the input name, if there is one. A
+     * single dump starts with the input name, if there is one.
+     */
+    public static void renderLockContentions(String input, List<LockContention> contentions, PrintStream out)
+    {
+        for (int i = 0; i < contentions.size(); i++) {
+            if (contentions.size() > 1) {
+                out.println(((input == null) ? "" : input + " ") + "dump " + (i + 1));
+                out.println();
+            }
+            else if (input != null) {
+                out.println(input);
+                out.println();
+            }
+            renderLockContention(contentions.get(i), out);
+        }
+        out.flush();
+    }
+
+    public static void renderLockContention(LockContention contention, PrintStream out)
+    {
+        for (List<Stack> deadlock : contention.getDeadlocks()) {
+            out.println("Deadlock");
+            for (Stack stack : deadlock) {
+                out.println(format("    \"%s\" waits for <%s> (a %s)", stack.getName(), stack.getWaitOn().getLockId(), stack.getWaitOn().getType()));
+            }
+            out.println();
+        }
+
+        for (LockContention.LockState lock : contention.getContendedLocks()) {
+            out.println(format("<%s> (a %s) held by \"%s\" with %s waiters", lock.getLockId(), lock.getType(), lock.getOwner().getName(), lock.getWaiterCount()));
+            List<StackElement> ownerTrace = lock.getOwner().getTrace();
+            for (StackElement element : ownerTrace.subList(0, Math.min(5, ownerTrace.size()))) {
+                out.println("    at " + element.prettyPrint());
+            }
+            List<Stack> waiters = lock.getWaiters();
+            for (Stack waiter : waiters.subList(0, Math.min(10, waiters.size()))) {
+                out.println(format("    waiting: %s", waiter.getName()));
+            }
+            if (waiters.size() > 10) {
+                out.println(format("    waiting: %s more", waiters.size() - 10));
+            }
+            out.println();
+        }
+        out.flush();
+    }
+
+    /**
+     * Renders the groups that grew, shrank, appeared or disappeared between
+     * two dumps, with the largest change first. Each group shows the thread
+     * count before and after, and the same for each of its name patterns.
+     */
+    public static void renderDiff(TraceDiff diff, PrintStream out)
+    {
+        out.println(format("%s -> %s threads", diff.getBefore().getThreadCount(), diff.getAfter().getThreadCount()));
+        out.println();
+        for (TraceDiff.Change change : diff.getChanges()) {
+            String status = "";
+            if (change.getBefore() == null) {
+                status = ", new";
             }
-            else {
-                out.println(format("%s threads", commonStacks.size()));
+            else if (change.getAfter() == null) {
+                status = ", gone";
             }
+            out.println(format("%+d threads (%s -> %s%s)", change.getDelta(), change.getBeforeCount(), change.getAfterCount(), status));
 
-            // print stack
-            if (!stack.getTrace().isEmpty()) {
-                for (StackElement element : stack.getTrace()) {
-                    out.println("    at " + element.prettyPrint());
+            // name patterns of both dumps, sorted by pattern
+            Map<String, long[]> namePatterns = new TreeMap<>();
+            if (change.getBefore() != null) {
+                for (TraceGroup.NamePattern namePattern : change.getBefore().getNamePatterns()) {
+                    namePatterns.computeIfAbsent(namePattern.getPattern(), pattern -> new long[2])[0] = namePattern.getCount();
+                }
+            }
+            if (change.getAfter() != null) {
+                for (TraceGroup.NamePattern namePattern : change.getAfter().getNamePatterns()) {
+                    namePatterns.computeIfAbsent(namePattern.getPattern(), pattern -> new long[2])[1] = namePattern.getCount();
+                }
+            }
+            if (namePatterns.size() < 50) {
+                for (Map.Entry<String, long[]> entry : namePatterns.entrySet()) {
+                    out.println(format("%s (%s -> %s)", entry.getKey(), entry.getValue()[0], entry.getValue()[1]));
                 }
             }
 
+            for (StackElement element : change.getTrace()) {
+                out.println("    at " + element.prettyPrint());
+            }
             out.println();
         }
         out.flush();
     }
 
-    public static Set<Stack> loadStackTrace(List<String> lines, List<StackFolding> stackFoldings)
+    /**
+     * Renders only the {@code limit} groups with the most threads, largest
+     * first, in the same format as {@link #renderStacks(TraceGroups, PrintStream)}.
+     * The groups are selected with a heap of {@code limit} entries, and groups
+     * with the same count keep their order. A last line counts the groups and
+     * threads that were left out. Output is written directly to the writer,
+     * which is wrapped in a buffer unless it already is one, and flushed.
+     */
+    public static void renderTopStacks(TraceGroups groups, int limit, Writer writer)
+            throws IOException
     {
-        ImmutableSet.Builder<Stack> builder = ImmutableSet.builder();
+        checkArgument(limit > 0, "limit must be positive");
+
+        // min heap of the largest groups seen so far, with the latest group first among equals
+        Comparator<RankedGroup> order = Comparator.<RankedGroup>comparingLong(ranked -> ranked.group.getThreadCount())
+                .thenComparing(Comparator.<RankedGroup>comparingInt(ranked -> ranked.index).reversed());
+        PriorityQueue<RankedGroup> heap = new PriorityQueue<>(Math.min(limit, groups.getGroups().size()) + 1, order);
+        int index = 0;
+        for (TraceGroup group : groups.getGroups()) {
+            heap.add(new RankedGroup(group, index++));
+            if (heap.size() > limit) {
+                heap.remove();
+            }
+        }
+        RankedGroup[] top = heap.toArray(new RankedGroup[0]);
+        Arrays.sort(top, order.reversed());
+
+        Writer out = (writer instanceof BufferedWriter) ? writer : new BufferedWriter(writer);
+        StringBuilder text = new StringBuilder();
+        long renderedThreads = 0;
+        for (RankedGroup ranked : top) {
+            text.setLength(0);
+            appendGroup(text, ranked.group, "\n");
+            out.append(text);
+            renderedThreads += ranked.group.getThreadCount();
+        }
+        if (top.length < groups.getGroups().size()) {
+            out.write(Integer.toString(groups.getGroups().size() - top.length));
+            out.write(" more groups with ");
+            out.write(Long.toString(groups.getThreadCount() - renderedThreads));
+            out.write(" threads\n");
+        }
+        out.flush();
+    }
 
-        PeekingIterator<String> lineIterator = peekingIterator(lines.iterator());
-        while (lineIterator.hasNext()) {
-            String line = lineIterator.next();
-            Matcher matcher = JSTACK_THREAD_INFO_PATTERN.matcher(line);
-            if (matcher.matches()) {
-                Stack stack = extractStack(
-                        matcher.group("name"),
-                        matcher.group("daemon"),
-                        matcher.group("priority"),
-                        matcher.group("threadId"),
-                        matcher.group("nativeId"),
-                        matcher.group("stateMessage"),
-                        lineIterator,
-                        stackFoldings);
-                builder.add(stack);
-            }
-
-            matcher = THREAD_MXBEAN_THREAD_INFO_PATTERN.matcher(line);
-            if (matcher.matches()) {
-                Stack stack = extractStack(
-                        matcher.group("name"),
-                        null, // daemon
-                        "0", // priority
-                        matcher.group("threadId"),
-                        "x", // nativeId
-                        matcher.group("stateMessage"),
-                        lineIterator,
-                        stackFoldings);
-                builder.add(stack);
+    /**
+     * Renders the call tree of the groups from the outermost frame, one frame
+     * per line with its thread count and its percentage of all threads.
+     * Children are indented below their parent, with the most threads first,
+     * but a frame with a single child is followed by the child at the same
+     * indentation, so unbranched paths read like a stack trace. Children with
+     * less than {@code minPercent} of all threads are left out, and counted
+     * in a line after their siblings.
+     */
+    public static void renderCallTree(TraceGroups groups, double minPercent, Writer writer)
+            throws IOException
+    {
+        checkArgument(minPercent >= 0, "minPercent is negative");
+        CallTree tree = CallTree.build(groups);
+        Writer out = (writer instanceof BufferedWriter) ? writer : new BufferedWriter(writer);
+        out.write(Long.toString(tree.getThreadCount()));
+        out.write(" threads\n");
+        writeCallTreeChildren(out, tree, tree.getChildren(CallTree.ROOT), shownCount(tree, tree.getChildren(CallTree.ROOT), minPercent), 0, minPercent);
+        out.flush();
+    }
+
+    private static void writeCallTree(Writer out, CallTree tree, int node, int depth, double minPercent)
+            throws IOException
+    {
+        while (true) {
+            writeCallTreeLine(out, tree, tree.getCount(node), depth);
+            out.write(tree.getFrame(node).prettyPrint());
+            out.write('\n');
+
+            int[] children = tree.getChildren(node);
+            int shown = shownCount(tree, children, minPercent);
+            if (shown == 1 && children.length == 1) {
+                node = children[0];
+                continue;
             }
+            writeCallTreeChildren(out, tree, children, shown, depth + 1, minPercent);
+            return;
         }
+    }
 
-        return builder.build();
+    private static void writeCallTreeChildren(Writer out, CallTree tree, int[] children, int shown, int depth, double minPercent)
+            throws IOException
+    {
+        for (int i = 0; i < shown; i++) {
+            writeCallTree(out, tree, children[i], depth, minPercent);
+        }
+        if (shown < children.length) {
+            long prunedCount = 0;
+            for (int i = shown; i < children.length; i++) {
+                prunedCount += tree.getCount(children[i]);
+            }
+            writeCallTreeLine(out, tree, prunedCount, depth);
+            out.write(format("(%s more branches)\n", children.length - shown));
+        }
     }
 
-    private static Stack extractStack(
-            String name,
-            String daemon,
-            String priority,
-            String threadId,
-            String nativeId,
-            String stateMessage,
-            PeekingIterator<String> lineIterator,
-            List<StackFolding> stackFoldings)
-    {
-        Thread.State state = null;
-        WaitOn waitOn = null;
-        List<StackElement> trace = ImmutableList.of();
-        List<Locked> locks = new ArrayList<>();
-
-        if (lineIterator.hasNext()) {
-            String line = lineIterator.peek().trim();
-            if (line.startsWith("java.lang.Thread.State:")) {
-                String javaThreadState = line.substring("java.lang.Thread.State:".length()).trim();
-                try {
-                    state = Thread.State.valueOf(javaThreadState);
-                }
-                catch (Exception ignored) {
-                }
+    /**
+     * Returns the number of children with at least {@code minPercent} of all
+     * threads, which come first since children are sorted by thread count.
+     */
+    private static int shownCount(CallTree tree, int[] children, double minPercent)
+    {
+        int shown = 0;
+        while (shown < children.length && tree.getCount(children[shown]) * 100.0 >= minPercent * tree.getThreadCount()) {
+            shown++;
+        }
+        return shown;
+    }
+
+    private static void writeCallTreeLine(Writer out, CallTree tree, long count, int depth)
+            throws IOException
+    {
+        out.write(format("%5.1f%% %8d ", count * 100.0 / tree.getThreadCount(), count));
+        for (int i = 0; i < depth; i++) {
+            out.write("  ");
+        }
+    }
+
+    /**
+     * Renders the {@code limit} groups that used the most CPU time between
+     * the dumps, each preceded by its CPU time, its share of the CPU time of
+     * all groups, and the average number of cores it used.
+     */
+    public static void renderHotThreads(HotThreads hotThreads, int limit, PrintStream out)
+    {
+        checkArgument(limit > 0, "limit must be positive");
+        long intervalNanos = hotThreads.getIntervalNanos();
+        out.println(format("%s dumps over %.1f s, %.1f s of CPU (%.2f cores)",
+                hotThreads.getSnapshotCount(),
+                intervalNanos / 1e9,
+                hotThreads.getCpuNanos() / 1e9,
+                cores(hotThreads.getCpuNanos(), intervalNanos)));
+        out.println();
+        List<HotThreads.HotGroup> hotGroups = hotThreads.getHotGroups();
+        for (HotThreads.HotGroup hotGroup : hotGroups.subList(0, Math.min(limit, hotGroups.size()))) {
+            out.println(format("%.1f ms CPU (%.1f%%, %.2f cores)",
+                    hotGroup.getCpuNanos() / 1e6,
+                    (hotThreads.getCpuNanos() == 0) ? 0.0 : 100.0 * hotGroup.getCpuNanos() / hotThreads.getCpuNanos(),
+                    cores(hotGroup.getCpuNanos(), intervalNanos)));
+            renderGroup(hotGroup.getGroup(), out);
+        }
+        out.flush();
+    }
+
+    private static double cores(long cpuNanos, long intervalNanos)
+    {
+        return (intervalNanos == 0) ? 0 : (double) cpuNanos / intervalNanos;
+    }
 
-                // consume line
-                lineIterator.next();
+    /**
+     * Renders the stats of foldings created by {@link StackFoldings#withStats()}:
+     * the input, the wall time and allocation of each phase, the parse and
+     * fold time with their throughput, the number of groups, and the folding
+     * rules by number of hits, with a count of the rules that were never hit.
+     */
+    public static void renderStats(StackFoldings foldings, TraceGroups groups, PrintStream out)
+    {
+        FoldStats stats = foldings.getStats();
+        checkArgument(stats != null, "foldings have no stats");
+
+        out.println(format("input: %,d bytes, %,d lines, %,d threads, %,d frames", stats.getBytes(), stats.getLineCount(), stats.getThreadCount(), stats.getFrameCount()));
+        for (FoldStats.Phase phase : stats.getPhases()) {
+            String allocated = (phase.getAllocatedBytes() < 0) ? "" : format(", %,d bytes allocated", phase.getAllocatedBytes());
+            out.println(format("%s: %,d ms%s", phase.getName(), NANOSECONDS.toMillis(phase.getNanos()), allocated));
+        }
+        // recordings and JSON dumps have no lines
+        if (stats.getLineCount() > 0) {
+            out.println(format("parse: %,d ms, %,.0f lines/s", NANOSECONDS.toMillis(stats.getParseNanos()), perSecond(stats.getLineCount(), stats.getParseNanos())));
+        }
+        else if (stats.getParseNanos() > 0) {
+            out.println(format("parse: %,d ms, %,.0f threads/s", NANOSECONDS.toMillis(stats.getParseNanos()), perSecond(stats.getThreadCount(), stats.getParseNanos())));
+        }
+        out.println(format("fold: %,d ms, %,.0f threads/s", NANOSECONDS.toMillis(stats.getFoldNanos()), perSecond(stats.getThreadCount(), stats.getFoldNanos())));
+        out.println(format("groups: %,d", groups.getGroups().size()));
+
+        Integer[] rules = new Integer[stats.getRuleCount()];
+        int hitRules = 0;
+        for (int rule = 0; rule < rules.length; rule++) {
+            rules[rule] = rule;
+            if (stats.getRuleHits(rule) > 0) {
+                hitRules++;
             }
+        }
+        Arrays.sort(rules, Comparator.comparingLong(stats::getRuleHits).reversed());
+        out.println(format("folding rules: %s of %s hit", hitRules, rules.length));
+        for (int i = 0; i < hitRules; i++) {
+            int rule = rules[i];
+            out.println(format("  %,12d  #%s %s", stats.getRuleHits(rule), rule + 1, foldings.getFoldings().get(rule).getReplacement().prettyPrint()));
+        }
+    }
 
-            ImmutableList.Builder<StackElement> builder = ImmutableList.builder();
-            while (lineIterator.hasNext()) {
-                line = lineIterator.peek().trim();
-
-                // stop when we see a blank line or the start of the next thread or if its a compiler thread
-                // compiler thread spits out an extra line that does not fit the pattern in STACK_ELEMENT_PATTERN
-                if (line.isEmpty()
-                        || JSTACK_THREAD_INFO_PATTERN.matcher(line).matches()
-                        || THREAD_MXBEAN_THREAD_INFO_PATTERN.matcher(line).matches()
-                        || name.contains("CompilerThread")) {
-                    break;
-                }
+    private static double perSecond(long count, long nanos)
+    {
+        return (nanos == 0) ? 0 : count * 1e9 / nanos;
+    }
 
-                // process the line
-                if (!line.startsWith("-")) {
-                    // normal stack element
-                    builder.add(extractStackElement(line, locks));
-                    locks = new ArrayList<>();
+    private static final class RankedGroup
+    {
+        private final TraceGroup group;
+        private final int index;
+
+        private RankedGroup(TraceGroup group, int index)
+        {
+            this.group = group;
+            this.index = index;
+        }
+    }
+
+    private static void renderGroup(TraceGroup group, PrintStream out)
+    {
+        StringBuilder text = new StringBuilder();
+        appendGroup(text, group, System.lineSeparator());
+        out.print(text);
+    }
+
+    /**
+     * Appends the thread names and the trace of the group, followed by an
+     * empty line, in the format of {@link #renderStacks(TraceGroups, PrintStream)}.
+     */
+    private static void appendGroup(StringBuilder out, TraceGroup group, String lineSeparator)
+    {
+        // print thread names
+        Collection<TraceGroup.NamePattern> namePatterns = group.getNamePatterns();
+        if (namePatterns.size() < 50) {
+            for (TraceGroup.NamePattern namePattern : namePatterns) {
+                if (namePattern.getCount() == 1) {
+                    out.append(namePattern.getFirstName());
                 }
                 else {
-                    Matcher waitOnMatcher = WAIT_ON_PATTERN.matcher(line);
-                    if (waitOnMatcher.matches()) {
-                        checkState(waitOn == null, "Thread is waiting on multiple locks");
-                        waitOn = new WaitOn(waitOnMatcher.group(1), waitOnMatcher.group(2));
-                    }
-                    else {
-                        Matcher lockedMatcher = LOCKED_PATTERN.matcher(line);
-                        if (lockedMatcher.matches()) {
-                            locks.add(new Locked(lockedMatcher.group(1), lockedMatcher.group(2)));
-                        }
-                    }
+                    out.append(namePattern.getPattern()).append(" (").append(namePattern.getCount()).append(" threads)");
                 }
+                out.append(lineSeparator);
+            }
+        }
+        else {
+            out.append(group.getThreadCount()).append(" threads").append(lineSeparator);
+        }
+
+        // print stack
+        Trace trace = group.getEncodedTrace();
+        for (int i = 0; i < trace.size(); i++) {
+            out.append("    at ");
+            trace.getFrame(i).prettyPrint(out);
+            out.append(lineSeparator);
+        }
+
+        out.append(lineSeparator);
+    }
+
+    public static Set<Stack> loadStackTrace(List<String> lines, List<StackFolding> stackFoldings)
+    {
+        return loadStackTrace(lines, StackFoldings.compile(stackFoldings));
+    }
+
+    public static Set<Stack> loadStackTrace(List<String> lines, StackFoldings stackFoldings)
+    {
+        return ImmutableSet.copyOf(new StackParser(lines.iterator(), stackFoldings));
+    }
+
+    public static Iterator<Stack> streamStackTrace(Reader reader, List<StackFolding> stackFoldings)
+    {
+        return streamStackTrace(reader, StackFoldings.compile(stackFoldings));
+    }
+
+    /**
+     * Parses the thread dump lazily, returning each folded stack as soon as its
+     * thread block has been read. The reader is not closed.
+     */
+    public static Iterator<Stack> streamStackTrace(Reader reader, StackFoldings stackFoldings)
+    {
+        return new StackParser(readLines(reader), stackFoldings);
+    }
+
+    public static TraceGroups groupStackTrace(Reader reader, List<StackFolding> stackFoldings)
+    {
+        return groupStackTrace(reader, StackFoldings.compile(stackFoldings));
+    }
+
+    /**
+     * Parses and groups the thread dump in a single pass without retaining the
+     * individual stacks. The input can contain several dumps, each starting
+     * with its own header, and counts as one snapshot if it has no header.
+     * The reader is not closed.
+     */
+    public static TraceGroups groupStackTrace(Reader reader, StackFoldings stackFoldings)
+    {
+        return countSnapshots(TraceGroups.groupStacks(new StackParser(readLines(reader), stackFoldings)));
+    }
+
+    /**
+     * Parses and groups the thread dump on the pool. The result is the same as
+     * {@link #groupStackTrace(Reader, StackFoldings)}. The reader is not closed.
+     */
+    public static TraceGroups groupStackTrace(Reader reader, StackFoldings stackFoldings, ForkJoinPool pool)
+    {
+        return countSnapshots(ParallelStackParser.groupStackTrace(readLines(reader), stackFoldings, pool));
+    }
 
-                // consume line
-                lineIterator.next();
+    /**
+     * Parses and groups a thread dump file. The file is memory mapped and
+     * scanned as bytes, and only the fields that are kept are decoded.
+     * A gzip compressed file is instead decompressed on a separate thread
+     * and parsed as it is inflated. The snapshots of a {@link SnapshotFile}
+     * are loaded as they were folded when they were saved.
+     */
+    public static TraceGroups groupStackTrace(Path dump, Charset charset, StackFoldings stackFoldings)
+            throws IOException
+    {
+        if (SnapshotFile.isSnapshotFile(dump)) {
+            return loadSnapshots(dump);
+        }
+        if (PipelinedGzipInputStream.isGzip(dump)) {
+            try (Reader reader = openGzipDump(dump, charset)) {
+                return groupStackTrace(reader, stackFoldings);
+            }
+        }
+        try (FileChannel channel = FileChannel.open(dump, READ)) {
+            return groupStackTrace(channel, charset, stackFoldings);
+        }
+    }
+
+    /**
+     * Parses and groups the uncompressed thread dump file of the channel, which
+     * is not closed.
+     */
+    static TraceGroups groupStackTrace(FileChannel channel, Charset charset, StackFoldings stackFoldings)
+            throws IOException
+    {
+        return countSnapshots(TraceGroups.groupStacks(new StackParser(new MappedLineIterator(channel, 0, channel.size(), charset), stackFoldings)));
+    }
+
+    /**
+     * Parses and groups the uncompressed thread dump file of the channel on the
+     * pool. The channel is not closed.
+     */
+    static TraceGroups groupStackTrace(FileChannel channel, Charset charset, StackFoldings stackFoldings, ForkJoinPool pool)
+            throws IOException
+    {
+        return countSnapshots(ParallelStackParser.groupStackTrace(channel, charset, stackFoldings, pool));
+    }
+
+    /**
+     * Parses and groups a thread dump file on the pool, with each task mapping
+     * and scanning a part of the file. The result is the same as
+     * {@link #groupStackTrace(Path, Charset, StackFoldings)}. A gzip compressed
+     * file is decompressed on a separate thread and cut into chunks as it is
+     * inflated.
+     */
+    public static TraceGroups groupStackTrace(Path dump, Charset charset, StackFoldings stackFoldings, ForkJoinPool pool)
+            throws IOException
+    {
+        if (SnapshotFile.isSnapshotFile(dump)) {
+            return loadSnapshots(dump);
+        }
+        if (PipelinedGzipInputStream.isGzip(dump)) {
+            try (Reader reader = openGzipDump(dump, charset)) {
+                return groupStackTrace(reader, stackFoldings, pool);
+            }
+        }
+        try (FileChannel channel = FileChannel.open(dump, READ)) {
+            return groupStackTrace(channel, charset, stackFoldings, pool);
+        }
+    }
+
+    /**
+     * Groups all snapshots of a snapshot file.
+     */
+    public static TraceGroups loadSnapshots(Path file)
+            throws IOException
+    {
+        TraceGroups groups = new TraceGroups();
+        try (SnapshotFile snapshots = SnapshotFile.open(file)) {
+            for (int snapshot = 0; snapshot < snapshots.getSnapshotCount(); snapshot++) {
+                groups.merge(snapshots.readGroups(snapshot));
             }
-            trace = builder.build();
         }
+        return groups;
+    }
+
+    /**
+     * Opens a dump file for reading, decompressing it on a separate thread if
+     * it is gzip compressed.
+     */
+    public static Reader openDump(Path dump, Charset charset)
+            throws IOException
+    {
+        if (PipelinedGzipInputStream.isGzip(dump)) {
+            return openGzipDump(dump, charset);
+        }
+        return Files.newBufferedReader(dump, charset);
+    }
+
+    private static Reader openGzipDump(Path dump, Charset charset)
+            throws IOException
+    {
+        return new InputStreamReader(new PipelinedGzipInputStream(Files.newInputStream(dump)), charset);
+    }
+
+    private static TraceGroups countSnapshots(TraceGroups groups)
+    {
+        // a dump without a header, such as one from the thread mxbean, is a single snapshot
+        if (groups.getSnapshotCount() == 0 && groups.getThreadCount() > 0) {
+            groups.addSnapshots(1);
+        }
+        return groups;
+    }
+
+    static Iterator<String> readLines(Reader reader)
+    {
+        BufferedReader bufferedReader = (reader instanceof BufferedReader) ? (BufferedReader) reader : new BufferedReader(reader);
+        return new AbstractIterator<String>()
+        {
+            @Override
+            protected String computeNext()
+            {
+                try {
+                    String line = bufferedReader.readLine();
+                    return (line == null) ? endOfData() : line;
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
 
-        for (StackFolding stackFolding : stackFoldings) {
-            trace = stackFolding.foldTrace(trace);
+    /**
+     * Loads the default folding rules from the precompiled {@code folding.bin}
+     * table, or parses {@code folding.txt} if the table is not on the class path.
+     */
+    public static List<StackFolding> loadDefaultFolding()
+            throws IOException
+    {
+        try (InputStream table = StackFolder.class.getClassLoader().getResourceAsStream(FoldingTable.DEFAULT_RESOURCE)) {
+            if (table != null) {
+                return FoldingTable.read(table);
+            }
         }
+        return loadFolding(Resources.readLines(Resources.getResource("folding.txt"), UTF_8));
+    }
 
-        return new Stack(name, daemon != null, priority, threadId, nativeId, stateMessage, state, waitOn, trace);
+    /**
+     * Loads folding rules from a file, which is either a folding table or
+     * rules in the text format of {@code folding.txt}.
+     */
+    public static List<StackFolding> loadFolding(Path file)
+            throws IOException
+    {
+        if (FoldingTable.isFoldingTable(file)) {
+            try (InputStream table = Files.newInputStream(file)) {
+                return FoldingTable.read(table);
+            }
+        }
+        return loadFolding(Files.readAllLines(file, UTF_8));
     }
 
-    private static StackElement extractStackElement(String line)
+    /**
+     * Loads the default frame patterns from {@code patterns.txt}.
+     */
+    public static FramePatterns loadDefaultFramePatterns()
+            throws IOException
     {
-        return extractStackElement(line, ImmutableList.<Locked>of());
+        return FramePatterns.parse(Resources.readLines(Resources.getResource("patterns.txt"), UTF_8));
     }
 
-    private static StackElement extractStackElement(String line, List<Locked> locks)
+    public static FramePatterns loadFramePatterns(Path file)
+            throws IOException
     {
-        Matcher matcher = STACK_ELEMENT_PATTERN.matcher(line);
-        checkState(matcher.matches(), "Expected state element line but got: %s", line);
-        return new StackElement(
-                matcher.group(1),
-                matcher.group(2),
-                matcher.group(3),
-                (matcher.group(4) == null) ? -1 : parseLong(matcher.group(4)),
-                locks);
+        return FramePatterns.parse(Files.readAllLines(file, UTF_8));
     }
 
     public static List<StackFolding> loadFolding(List<String> lines)
@@ -17,17 +17,56 @@ public class StackFolding
         this.replacement = checkNotNull(replacement, "replacement is null");
     }
 
+    public List<StackElement> getSegment()
+    {
+        return segment;
+    }
+
+    public StackElement getReplacement()
+    {
+        return replacement;
+    }
+
+    /**
+     * Replaces every occurrence of the segment in the trace. To apply many
+     * foldings at once, use {@link StackFoldings}.
+     */
     public List<StackElement> foldTrace(List<StackElement> list)
     {
-        for (int i = 0; i < list.size() - segment.size() + 1; i++) {
-            if (list.subList(i, i + segment.size()).equals(segment)) {
-                return ImmutableList.<StackElement>builder()
-                        .addAll(list.subList(0, i))
-                        .add(replacement)
-                        .addAll(list.subList(i + segment.size(), list.size()))
-                        .build();
+        if (segment.isEmpty()) {
+            return list;
+        }
+
+        ImmutableList.Builder<StackElement> builder = null;
+        int copied = 0;
+        int i = 0;
+        while (i < list.size() - segment.size() + 1) {
+            if (!matchesAt(list, i)) {
+                i++;
+                continue;
+            }
+            if (builder == null) {
+                builder = ImmutableList.builder();
+            }
+            builder.addAll(list.subList(copied, i));
+            builder.add(replacement);
+            i += segment.size();
+            copied = i;
+        }
+
+        if (builder == null) {
+            return list;
+        }
+        return builder.addAll(list.subList(copied, list.size())).build();
+    }
+
+    private boolean matchesAt(List<StackElement> list, int offset)
+    {
+        for (int i = 0; i < segment.size(); i++) {
+            if (!segment.get(i).equals(list.get(offset + i))) {
+                return false;
             }
         }
-        return list;
+        return true;
     }
 }
@@ -0,0 +1,310 @@
+package io.airlift.stackfold;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.function.IntFunction;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A set of {@link StackFolding} rules compiled into a single Aho-Corasick
+ * automaton over stack elements, so a trace is folded in one left to right
+ * pass regardless of the number of rules.
+ * <p>
+ * Every non-overlapping occurrence of every segment is replaced. When
+ * segments overlap, the occurrence that starts first wins, then the longest
+ * segment, then the rule that was listed first. Replacements are not folded
+ * again, so a rule cannot match the output of another rule.
+ * <p>
+ * The {@link FramePatterns} normalize the frames of a trace before it is
+ * folded, so segments can name normalized frames, and collapse the frames
+ * of the folded trace.
+ */
+public final class StackFoldings
+{
+    private static final StackFoldings EMPTY = compile(ImmutableList.of());
+
+    private final List<StackFolding> foldings;
+    private final FramePatterns patterns;
+
+    // automaton nodes, node 0 is the root
+    private final List<Map<StackElement, Integer>> transitions;
+    private final int[] failure;
+    private final int[] depth;
+    // index of the rule whose segment ends exactly at the node, or -1
+    private final int[] output;
+    // nearest node on the failure chain with an output, or -1
+    private final int[] outputLink;
+
+    // null unless the foldings were created by withStats
+    private final FoldStats stats;
+
+    private StackFoldings(List<StackFolding> foldings, FramePatterns patterns)
+    {
+        this.foldings = ImmutableList.copyOf(checkNotNull(foldings, "foldings is null"));
+        this.patterns = checkNotNull(patterns, "patterns is null");
+        this.stats = null;
+
+        // build the trie
+        List<Map<StackElement, Integer>> transitions = new ArrayList<>();
+        List<Integer> depths = new ArrayList<>();
+        List<Integer> outputs = new ArrayList<>();
+        transitions.add(new HashMap<>());
+        depths.add(0);
+        outputs.add(-1);
+        for (int rule = 0; rule < this.foldings.size(); rule++) {
+            List<StackElement> segment = this.foldings.get(rule).getSegment();
+            if (segment.isEmpty()) {
+                continue;
+            }
+            int node = 0;
+            for (StackElement element : segment) {
+                Integer child = transitions.get(node).get(element);
+                if (child == null) {
+                    child = transitions.size();
+                    transitions.add(new HashMap<>());
+                    depths.add(depths.get(node) + 1);
+                    outputs.add(-1);
+                    transitions.get(node).put(element, child);
+                }
+                node = child;
+            }
+            // the first rule with a given segment wins
+            if (outputs.get(node) < 0) {
+                outputs.set(node, rule);
+            }
+        }
+
+        int nodes = transitions.size();
+        this.transitions = transitions;
+        this.depth = depths.stream().mapToInt(Integer::intValue).toArray();
+        this.output = outputs.stream().mapToInt(Integer::intValue).toArray();
+        this.failure = new int[nodes];
+        this.outputLink = new int[nodes];
+
+        // compute failure and output links breadth first
+        outputLink[0] = -1;
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int child : transitions.get(0).values()) {
+            failure[child] = 0;
+            outputLink[child] = -1;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int node = queue.remove();
+            for (Map.Entry<StackElement, Integer> entry : transitions.get(node).entrySet()) {
+                int child = entry.getValue();
+                int fallback = next(failure[node], entry.getKey());
+                failure[child] = fallback;
+                outputLink[child] = (output[fallback] >= 0) ? fallback : outputLink[fallback];
+                queue.add(child);
+            }
+        }
+    }
+
+    private StackFoldings(StackFoldings compiled, FoldStats stats)
+    {
+        this.foldings = compiled.foldings;
+        this.patterns = compiled.patterns;
+        this.transitions = compiled.transitions;
+        this.failure = compiled.failure;
+        this.depth = compiled.depth;
+        this.output = compiled.output;
+        this.outputLink = compiled.outputLink;
+        this.stats = stats;
+    }
+
+    public static StackFoldings compile(List<StackFolding> foldings)
+    {
+        return new StackFoldings(foldings, FramePatterns.none());
+    }
+
+    public static StackFoldings compile(List<StackFolding> foldings, FramePatterns patterns)
+    {
+        return new StackFoldings(foldings, patterns);
+    }
+
+    public static StackFoldings empty()
+    {
+        return EMPTY;
+    }
+
+    public List<StackFolding> getFoldings()
+    {
+        return foldings;
+    }
+
+    public FramePatterns getPatterns()
+    {
+        return patterns;
+    }
+
+    /**
+     * Returns the same foldings, sharing the compiled automaton, with a new
+     * {@link FoldStats} that counts the threads, frames and rule hits of
+     * every trace folded, and the time spent folding. Without stats, folding
+     * does not read the clock.
+     */
+    public StackFoldings withStats()
+    {
+        return new StackFoldings(this, new FoldStats(foldings.size()));
+    }
+
+    /**
+     * Returns the stats of foldings created by {@link #withStats()}, or null.
+     */
+    public FoldStats getStats()
+    {
+        return stats;
+    }
+
+    public List<StackElement> foldTrace(List<StackElement> trace)
+    {
+        long start = (stats == null) ? 0 : System.nanoTime();
+        List<StackElement> folded = patterns.collapseTrace(foldSegments(patterns.normalizeTrace(trace)));
+        if (stats != null) {
+            stats.recordFold(trace.size(), System.nanoTime() - start);
+        }
+        return folded;
+    }
+
+    private List<StackElement> foldSegments(List<StackElement> trace)
+    {
+        int[] matchAt = findMatches(trace.size(), trace::get);
+        if (matchAt == null) {
+            return trace;
+        }
+
+        ImmutableList.Builder<StackElement> builder = ImmutableList.builder();
+        int position = 0;
+        while (position < trace.size()) {
+            int rule = matchAt[position];
+            if (rule >= 0) {
+                recordRuleHit(rule);
+                builder.add(foldings.get(rule).getReplacement());
+                position += segmentLength(rule);
+            }
+            else {
+                builder.add(trace.get(position));
+                position++;
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Folds the first {@code length} frame ids of {@code frames}, and returns
+     * the result in a new array. Replacements are interned in the frame table.
+     */
+    public int[] foldTrace(FrameTable frameTable, int[] frames, int length)
+    {
+        long start = (stats == null) ? 0 : System.nanoTime();
+        int[] folded = foldSegments(frameTable, patterns.normalizeTrace(frameTable, frames, length), length);
+        folded = patterns.collapseTrace(frameTable, folded, folded.length);
+        if (stats != null) {
+            stats.recordFold(length, System.nanoTime() - start);
+        }
+        return folded;
+    }
+
+    private int[] foldSegments(FrameTable frameTable, int[] frames, int length)
+    {
+        int[] matchAt = findMatches(length, position -> frameTable.getFrame(frames[position]));
+        if (matchAt == null) {
+            return Arrays.copyOf(frames, length);
+        }
+
+        int[] folded = new int[length];
+        int size = 0;
+        int position = 0;
+        while (position < length) {
+            int rule = matchAt[position];
+            if (rule >= 0) {
+                recordRuleHit(rule);
+                folded[size++] = frameTable.intern(foldings.get(rule).getReplacement());
+                position += segmentLength(rule);
+            }
+            else {
+                folded[size++] = frames[position];
+                position++;
+            }
+        }
+        return Arrays.copyOf(folded, size);
+    }
+
+    /**
+     * Returns the rule of the longest match starting at each position, or
+     * null if no rule matches anywhere in the trace.
+     */
+    private int[] findMatches(int length, IntFunction<StackElement> trace)
+    {
+        if (foldings.isEmpty()) {
+            return null;
+        }
+
+        int[] matchAt = null;
+        int node = 0;
+        for (int position = 0; position < length; position++) {
+            node = next(node, trace.apply(position));
+            int match = (output[node] >= 0) ? node : outputLink[node];
+            while (match >= 0) {
+                if (matchAt == null) {
+                    matchAt = new int[length];
+                    Arrays.fill(matchAt, -1);
+                }
+                int start = position - depth[match] + 1;
+                int rule = output[match];
+                int current = matchAt[start];
+                if (current < 0 || segmentLength(rule) > segmentLength(current) || (segmentLength(rule) == segmentLength(current) && rule < current)) {
+                    matchAt[start] = rule;
+                }
+                match = outputLink[match];
+            }
+        }
+        return matchAt;
+    }
+
+    private int next(int node, StackElement element)
+    {
+        while (true) {
+            Integer child = transitions.get(node).get(element);
+            if (child != null) {
+                return child;
+            }
+            if (node == 0) {
+                return 0;
+            }
+            node = failure[node];
+        }
+    }
+
+    private void recordRuleHit(int rule)
+    {
+        if (stats != null) {
+            stats.recordRuleHit(rule);
+        }
+    }
+
+    private int segmentLength(int rule)
+    {
+        return foldings.get(rule).getSegment().size();
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("foldings", foldings.size())
+                .add("nodes", transitions.size())
+                .add("patterns", patterns)
+                .toString();
+    }
+}
@@ -0,0 +1,294 @@
+package io.airlift.stackfold;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.PeekingIterator;
+import io.airlift.stackfold.LineScanner.FrameBounds;
+import io.airlift.stackfold.LineScanner.LineType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.collect.Iterators.peekingIterator;
+import static io.airlift.stackfold.LineScanner.classify;
+import static io.airlift.stackfold.LineScanner.isOwnableSynchronizersHeader;
+import static io.airlift.stackfold.LineScanner.parseLocked;
+import static io.airlift.stackfold.LineScanner.parseOwnableSynchronizer;
+import static io.airlift.stackfold.LineScanner.parseReleasedMonitor;
+import static io.airlift.stackfold.LineScanner.parseStackElement;
+import static io.airlift.stackfold.LineScanner.parseThreadState;
+import static io.airlift.stackfold.LineScanner.parseWaitOn;
+import static io.airlift.stackfold.LineScanner.scanStackElement;
+import static io.airlift.stackfold.LineScanner.startsWith;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Lazily parses thread dump lines into folded {@link Stack}s, one thread at a time.
+ * Only the lines of the thread currently being parsed are consumed from the
+ * underlying iterator, so the dump never needs to be held in memory.
+ * <p>
+ * Lines are classified with {@link LineScanner}, and the thread info patterns
+ * are only evaluated for lines that start with a quote. Lines can be any
+ * {@link CharSequence}, such as a {@link ByteLine} over a mapped file, and
+ * only the fields that are kept are turned into strings.
+ */
+final class StackParser
+        extends AbstractIterator<Stack>
+{
+    /**
+     * Matches thread info as printed by jstack. Java 11 and later add the CPU
+     * and wall time of the thread, {@code jstack -e} adds allocation and
+     * class counts, and Java 19 and later add the native id after the number.
+     * <p>
+     * Example
+     * <pre>
+     * "Signal Dispatcher" #2 daemon prio=5 tid=0x00007fda14895800 nid=0x5003 runnable [0x0000000000000000]
+     * "Reference Handler" #9 [20723] daemon prio=10 os_prio=0 cpu=0.42ms elapsed=86.31s tid=0x00007f1a5c139000 nid=20723 waiting on condition  [0x00007f1a3c1fe000]
+     * </pre>
+     */
+    private static final Pattern JSTACK_THREAD_INFO_PATTERN = Pattern.compile("" +
+            "^\"(?<name>.*)\"\\s*(?:#(\\d+))?\\s*(?:\\[\\d+\\])?\\s*(?<daemon>daemon)?\\s*" +
+            "prio=(?<priority>\\d+)\\s*(?:os_prio=(-?\\d+))?\\s*(?:cpu=(?<cpu>[\\d.]+)ms)?\\s*(?:elapsed=(?<elapsed>[\\d.]+)s)?\\s*" +
+            "(?:allocated=\\S+\\s*)?(?:defined_classes=\\d+\\s*)?" +
+            "tid=(?<threadId>\\w+)\\s*nid=(?<nativeId>\\w+)\\s*(?<stateMessage>[^\\[]*)(?:\\[([^\\]]*)\\])?$");
+
+    /**
+     * Matches thread info as printed by {@link java.lang.management.ThreadMXBean#dumpAllThreads(boolean, boolean)}.
+     * Example
+     * <pre>
+     * "http-worker-560" Id=560 TIMED_WAITING on java.util.concurrent.SynchronousQueue$TransferStack@2a283975
+     * </pre>
+     */
+    private static final Pattern THREAD_MXBEAN_THREAD_INFO_PATTERN = Pattern.compile("" +
+            "^\"(?<name>.*)\"\\s+Id=(?<threadId>\\d+)\\s+(?<stateMessage>.*)$");
+
+    /**
+     * Starts every jstack dump, so a file with several dumps has one per snapshot.
+     * <p>
+     * Example
+     * <pre>
+     * Full thread dump Java HotSpot(TM) 64-Bit Server VM (25.66-b17 mixed mode):
+     * </pre>
+     */
+    private static final String SNAPSHOT_HEADER = "Full thread dump";
+
+    private final PeekingIterator<? extends CharSequence> lineIterator;
+    private final StackFoldings stackFoldings;
+    private final FrameTable frameTable;
+    private final FoldStats stats;
+
+    // reused between threads
+    private final FrameBounds frameBounds = new FrameBounds();
+    private int[] frames = new int[64];
+
+    private long snapshotCount;
+    private long lineCount;
+    private long parseStart;
+
+    public StackParser(Iterator<? extends CharSequence> lines, StackFoldings stackFoldings)
+    {
+        this(lines, stackFoldings, new FrameTable());
+    }
+
+    public StackParser(Iterator<? extends CharSequence> lines, StackFoldings stackFoldings, FrameTable frameTable)
+    {
+        this.lineIterator = peekingIterator(checkNotNull(lines, "lines is null"));
+        this.stackFoldings = checkNotNull(stackFoldings, "stackFoldings is null");
+        this.frameTable = checkNotNull(frameTable, "frameTable is null");
+        this.stats = stackFoldings.getStats();
+    }
+
+    @Override
+    protected Stack computeNext()
+    {
+        if (stats != null) {
+            parseStart = System.nanoTime();
+        }
+        while (lineIterator.hasNext()) {
+            CharSequence line = nextLine();
+            if (classify(line) != LineType.THREAD_INFO) {
+                if (startsWith(line, 0, SNAPSHOT_HEADER)) {
+                    snapshotCount++;
+                }
+                continue;
+            }
+
+            Matcher matcher = JSTACK_THREAD_INFO_PATTERN.matcher(line);
+            if (matcher.matches()) {
+                return extractStack(
+                        matcher.group("name"),
+                        matcher.group("daemon"),
+                        matcher.group("priority"),
+                        matcher.group("threadId"),
+                        matcher.group("nativeId"),
+                        matcher.group("stateMessage"),
+                        parseNanos(matcher.group("cpu"), MILLISECONDS),
+                        parseNanos(matcher.group("elapsed"), SECONDS));
+            }
+
+            matcher = THREAD_MXBEAN_THREAD_INFO_PATTERN.matcher(line);
+            if (matcher.matches()) {
+                return extractStack(
+                        matcher.group("name"),
+                        null, // daemon
+                        "0", // priority
+                        matcher.group("threadId"),
+                        "x", // nativeId
+                        matcher.group("stateMessage"),
+                        -1,
+                        -1);
+            }
+        }
+        if (stats != null) {
+            stats.recordParse(System.nanoTime() - parseStart);
+            stats.recordLines(lineCount);
+        }
+        return endOfData();
+    }
+
+    private CharSequence nextLine()
+    {
+        lineCount++;
+        return lineIterator.next();
+    }
+
+    /**
+     * Returns the number of dump headers read so far.
+     */
+    public long getSnapshotCount()
+    {
+        return snapshotCount;
+    }
+
+    private Stack extractStack(
+            String name,
+            String daemon,
+            String priority,
+            String threadId,
+            String nativeId,
+            String stateMessage,
+            long cpuNanos,
+            long elapsedNanos)
+    {
+        Thread.State state = null;
+        WaitOn waitOn = null;
+        String releasedMonitor = null;
+        int frameCount = 0;
+        List<Locked> locks = ImmutableList.of();
+
+        // compiler thread spits out an extra line that is not a stack element
+        boolean compilerThread = name.contains("CompilerThread");
+
+        if (lineIterator.hasNext()) {
+            CharSequence line = lineIterator.peek();
+            if (classify(line) == LineType.THREAD_STATE) {
+                state = parseThreadState(line);
+
+                // consume line
+                nextLine();
+            }
+
+            while (lineIterator.hasNext()) {
+                line = lineIterator.peek();
+                LineType type = classify(line);
+
+                // stop when we see a blank line or the start of the next thread or if its a compiler thread
+                if (type == LineType.BLANK || type == LineType.THREAD_INFO || compilerThread) {
+                    break;
+                }
+
+                // process the line
+                if (type != LineType.LOCK_INFO) {
+                    // normal stack element
+                    scanStackElement(line, frameBounds);
+                    if (frameCount == frames.length) {
+                        frames = Arrays.copyOf(frames, frameCount * 2);
+                    }
+                    frames[frameCount++] = frameTable.intern(line, frameBounds);
+                }
+                else {
+                    WaitOn lineWaitOn = parseWaitOn(line);
+                    String monitor = (lineWaitOn == null) ? parseReleasedMonitor(line) : null;
+                    Locked locked = (lineWaitOn == null && monitor == null) ? parseLocked(line) : null;
+                    if (lineWaitOn != null) {
+                        checkState(waitOn == null, "Thread is waiting on multiple locks");
+                        waitOn = lineWaitOn;
+                    }
+                    else if (monitor != null) {
+                        releasedMonitor = monitor;
+                    }
+                    else if (locked != null && !isReleased(locked, waitOn, releasedMonitor)) {
+                        locks = addLock(locks, locked);
+                    }
+                }
+
+                // consume line
+                nextLine();
+            }
+
+            // jstack -l prints the ownable synchronizers held by the thread after a blank line
+            if (lineIterator.hasNext() && classify(lineIterator.peek()) == LineType.BLANK) {
+                nextLine();
+                if (lineIterator.hasNext() && isOwnableSynchronizersHeader(lineIterator.peek())) {
+                    nextLine();
+                    while (lineIterator.hasNext() && classify(lineIterator.peek()) == LineType.LOCK_INFO) {
+                        Locked synchronizer = parseOwnableSynchronizer(nextLine());
+                        if (synchronizer != null) {
+                            locks = addLock(locks, synchronizer);
+                        }
+                    }
+                }
+            }
+        }
+
+        // the fold time is recorded separately
+        if (stats != null) {
+            stats.recordParse(System.nanoTime() - parseStart);
+        }
+        Trace trace = new Trace(frameTable, stackFoldings.foldTrace(frameTable, frames, frameCount));
+
+        return new Stack(name, daemon != null, priority, threadId, nativeId, stateMessage, state, waitOn, trace, locks, cpuNanos, elapsedNanos);
+    }
+
+    /**
+     * Parses a decimal time, such as {@code 12.34}, or returns -1 if it is absent.
+     */
+    private static long parseNanos(String value, TimeUnit unit)
+    {
+        if (value == null) {
+            return -1;
+        }
+        return Math.round(Double.parseDouble(value) * unit.toNanos(1));
+    }
+
+    /**
+     * jstack prints the monitor of a thread in {@link Object#wait()} as locked,
+     * although the thread released it and has to acquire it again.
+     */
+    private static boolean isReleased(Locked locked, WaitOn waitOn, String releasedMonitor)
+    {
+        return locked.getLockId().equals(releasedMonitor) || (waitOn != null && locked.getLockId().equals(waitOn.getLockId()));
+    }
+
+    private static List<Locked> addLock(List<Locked> locks, Locked locked)
+    {
+        if (locks.isEmpty()) {
+            locks = new ArrayList<>();
+        }
+        locks.add(locked);
+        return locks;
+    }
+
+    static StackElement extractStackElement(String line)
+    {
+        return parseStackElement(line, ImmutableList.<Locked>of());
+    }
+}
@@ -0,0 +1,220 @@
+package io.airlift.stackfold;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Periodically samples all threads of the current JVM and aggregates their
+ * folded traces in memory, so a service can expose a continuously folded
+ * thread profile. Each sample is one snapshot of the aggregate, see
+ * {@link TraceGroups}.
+ * <p>
+ * The sampling thread, the {@link ThreadInfoConverter} and its frame table
+ * are reused between samples, and memory grows with the number of distinct
+ * traces. The wall and CPU time spent sampling is recorded, so the overhead
+ * can be checked against a budget. The sampling thread itself is not sampled.
+ * <p>
+ * A scheduled sample that fails is counted and skipped, and sampling goes on,
+ * see {@link #getFailureCount()}.
+ */
+public final class StackSampler
+        implements AutoCloseable
+{
+    private final ThreadMXBean threadMXBean;
+    private final boolean lockedMonitors;
+    private final boolean lockedSynchronizers;
+    private final ThreadInfoConverter converter;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("stack-sampler-%s")
+            .setDaemon(true)
+            .build());
+
+    private TraceGroups groups = new TraceGroups();
+    private ScheduledFuture<?> task;
+
+    private long sampleCount;
+    private long sampleWallNanos;
+    private long sampleCpuNanos;
+    private long maxSampleWallNanos;
+    private long failureCount;
+    private RuntimeException lastFailure;
+
+    public StackSampler(ThreadMXBean threadMXBean, StackFoldings stackFoldings)
+    {
+        this(threadMXBean, stackFoldings, false, false);
+    }
+
+    /**
+     * Locked monitors and synchronizers are only reported when requested,
+     * because collecting them makes every sample considerably more expensive.
+     */
+    public StackSampler(ThreadMXBean threadMXBean, StackFoldings stackFoldings, boolean lockedMonitors, boolean lockedSynchronizers)
+    {
+        this.threadMXBean = checkNotNull(threadMXBean, "threadMXBean is null");
+        checkArgument(!lockedMonitors || threadMXBean.isObjectMonitorUsageSupported(), "JVM does not support monitor usage");
+        checkArgument(!lockedSynchronizers || threadMXBean.isSynchronizerUsageSupported(), "JVM does not support synchronizer usage");
+        this.converter = new ThreadInfoConverter(stackFoldings);
+        this.lockedMonitors = lockedMonitors;
+        this.lockedSynchronizers = lockedSynchronizers;
+    }
+
+    public synchronized void start(long period, TimeUnit unit)
+    {
+        checkArgument(period > 0, "period must be positive");
+        checkState(task == null, "sampler is already started");
+        checkState(!executor.isShutdown(), "sampler is closed");
+        task = executor.scheduleAtFixedRate(this::scheduledSample, 0, period, unit);
+    }
+
+    private void scheduledSample()
+    {
+        // an exception would cancel all later runs
+        try {
+            sample();
+        }
+        catch (RuntimeException e) {
+            synchronized (this) {
+                failureCount++;
+                lastFailure = e;
+            }
+        }
+    }
+
+    public synchronized void stop()
+    {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        stop();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Takes one sample of all threads, except the calling thread.
+     */
+    public synchronized void sample()
+    {
+        long startWall = System.nanoTime();
+        long startCpu = threadMXBean.getCurrentThreadCpuTime();
+
+        long currentThreadId = Thread.currentThread().getId();
+        ThreadInfo[] threadInfos = threadMXBean.dumpAllThreads(lockedMonitors, lockedSynchronizers);
+        // convert all threads before adding any, so a failed sample leaves the profile unchanged
+        List<Stack> stacks = new ArrayList<>(threadInfos.length);
+        for (ThreadInfo threadInfo : threadInfos) {
+            if (threadInfo != null && threadInfo.getThreadId() != currentThreadId) {
+                stacks.add(converter.toStack(threadInfo));
+            }
+        }
+        for (Stack stack : stacks) {
+            groups.add(stack);
+        }
+        groups.addSnapshots(1);
+
+        long wallNanos = System.nanoTime() - startWall;
+        sampleCount++;
+        sampleWallNanos += wallNanos;
+        maxSampleWallNanos = Math.max(maxSampleWallNanos, wallNanos);
+        // cpu time is -1 when it is not supported or disabled
+        if (startCpu >= 0) {
+            sampleCpuNanos += threadMXBean.getCurrentThreadCpuTime() - startCpu;
+        }
+    }
+
+    /**
+     * Returns a copy of the profile aggregated since the sampler was created
+     * or last reset.
+     */
+    public synchronized TraceGroups getProfile()
+    {
+        TraceGroups copy = new TraceGroups();
+        copy.merge(groups);
+        return copy;
+    }
+
+    /**
+     * Returns a copy of the profile aggregated so far and starts a new one.
+     * The frame table is kept, so frames seen before are not converted again.
+     */
+    public synchronized TraceGroups getProfileAndReset()
+    {
+        TraceGroups profile = getProfile();
+        groups = new TraceGroups();
+        return profile;
+    }
+
+    public synchronized long getSampleCount()
+    {
+        return sampleCount;
+    }
+
+    /**
+     * Returns the average wall time of a sample in nanoseconds.
+     */
+    public synchronized long getAverageSampleWallNanos()
+    {
+        return (sampleCount == 0) ? 0 : sampleWallNanos / sampleCount;
+    }
+
+    /**
+     * Returns the average CPU time of a sample in nanoseconds, or zero if
+     * thread CPU time is not available.
+     */
+    public synchronized long getAverageSampleCpuNanos()
+    {
+        return (sampleCount == 0) ? 0 : sampleCpuNanos / sampleCount;
+    }
+
+    public synchronized long getMaxSampleWallNanos()
+    {
+        return maxSampleWallNanos;
+    }
+
+    /**
+     * Returns the number of scheduled samples that failed. Failed samples are
+     * not part of the profile or the sample count.
+     */
+    public synchronized long getFailureCount()
+    {
+        return failureCount;
+    }
+
+    /**
+     * Returns the exception of the last failed scheduled sample, or null.
+     */
+    public synchronized RuntimeException getLastFailure()
+    {
+        return lastFailure;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return toStringHelper(this)
+                .add("sampleCount", sampleCount)
+                .add("failureCount", failureCount)
+                .add("averageSampleWallNanos", getAverageSampleWallNanos())
+                .add("averageSampleCpuNanos", getAverageSampleCpuNanos())
+                .add("groups", groups)
+                .toString();
+    }
+}
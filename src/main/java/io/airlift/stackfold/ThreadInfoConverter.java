@@ -0,0 +1,164 @@
+package io.airlift.stackfold;
+
+import com.google.common.collect.ImmutableList;
+
+import java.lang.management.LockInfo;
+import java.lang.management.MonitorInfo;
+import java.lang.management.ThreadInfo;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Converts {@link ThreadInfo}s from {@link java.lang.management.ThreadMXBean}
+ * directly into folded {@link Stack}s, without printing and parsing a dump.
+ * Names, states and frames are the same as when the text of the thread info
+ * is parsed, except that all frames are kept while the text is cut after
+ * eight frames. Locks are taken from the locked monitors and synchronizers.
+ * <p>
+ * Frames are interned in a single {@link FrameTable}, and each distinct stack
+ * trace element is only converted once, so a converter should be reused
+ * between samples. This class is not thread safe.
+ */
+public final class ThreadInfoConverter
+{
+    private final StackFoldings stackFoldings;
+    private final FrameTable frameTable;
+    private final Map<StackTraceElement, Integer> frameIds = new HashMap<>();
+
+    // reused between threads
+    private int[] frames = new int[64];
+
+    public ThreadInfoConverter(StackFoldings stackFoldings)
+    {
+        this(stackFoldings, new FrameTable());
+    }
+
+    public ThreadInfoConverter(StackFoldings stackFoldings, FrameTable frameTable)
+    {
+        this.stackFoldings = checkNotNull(stackFoldings, "stackFoldings is null");
+        this.frameTable = checkNotNull(frameTable, "frameTable is null");
+    }
+
+    public FrameTable getFrameTable()
+    {
+        return frameTable;
+    }
+
+    public List<Stack> toStacks(ThreadInfo[] threadInfos)
+    {
+        List<Stack> stacks = new ArrayList<>(threadInfos.length);
+        for (ThreadInfo threadInfo : threadInfos) {
+            // threads that ended before the dump are null
+            if (threadInfo != null) {
+                stacks.add(toStack(threadInfo));
+            }
+        }
+        return stacks;
+    }
+
+    public Stack toStack(ThreadInfo threadInfo)
+    {
+        StackTraceElement[] elements = threadInfo.getStackTrace();
+        if (elements.length > frames.length) {
+            frames = Arrays.copyOf(frames, Math.max(elements.length, frames.length * 2));
+        }
+        for (int i = 0; i < elements.length; i++) {
+            frames[i] = intern(elements[i]);
+        }
+        Trace trace = new Trace(frameTable, stackFoldings.foldTrace(frameTable, frames, elements.length));
+
+        LockInfo lockInfo = threadInfo.getLockInfo();
+        WaitOn waitOn = (lockInfo == null) ? null : new WaitOn(lockId(lockInfo), lockInfo.getClassName());
+
+        return new Stack(
+                threadInfo.getThreadName(),
+                false, // daemon is not available before Java 9
+                "0", // priority
+                String.valueOf(threadInfo.getThreadId()),
+                "x", // nativeId
+                stateMessage(threadInfo),
+                threadInfo.getThreadState(),
+                waitOn,
+                trace,
+                locks(threadInfo));
+    }
+
+    private int intern(StackTraceElement element)
+    {
+        Integer frameId = frameIds.get(element);
+        if (frameId == null) {
+            frameId = frameTable.intern(toStackElement(element));
+            frameIds.put(element, frameId);
+        }
+        return frameId;
+    }
+
+    /**
+     * Returns the element as it would be parsed from its text in a dump.
+     */
+    static StackElement toStackElement(StackTraceElement element)
+    {
+        String file;
+        long lineNumber = -1;
+        if (element.isNativeMethod()) {
+            file = "Native Method";
+        }
+        else if (element.getFileName() == null) {
+            file = "Unknown Source";
+        }
+        else {
+            file = element.getFileName();
+            if (element.getLineNumber() >= 0) {
+                lineNumber = element.getLineNumber();
+            }
+        }
+        return new StackElement(element.getClassName(), element.getMethodName(), file, lineNumber, ImmutableList.of());
+    }
+
+    /**
+     * Returns the state message as printed by {@link ThreadInfo#toString()}.
+     */
+    private static String stateMessage(ThreadInfo threadInfo)
+    {
+        StringBuilder message = new StringBuilder(threadInfo.getThreadState().name());
+        if (threadInfo.getLockName() != null) {
+            message.append(" on ").append(threadInfo.getLockName());
+        }
+        if (threadInfo.getLockOwnerName() != null) {
+            message.append(" owned by \"").append(threadInfo.getLockOwnerName()).append("\" Id=").append(threadInfo.getLockOwnerId());
+        }
+        return message.toString();
+    }
+
+    private static List<Locked> locks(ThreadInfo threadInfo)
+    {
+        MonitorInfo[] monitors = threadInfo.getLockedMonitors();
+        LockInfo[] synchronizers = threadInfo.getLockedSynchronizers();
+        if (monitors.length == 0 && synchronizers.length == 0) {
+            return ImmutableList.of();
+        }
+
+        // monitors in the order they appear in the trace, followed by ownable synchronizers
+        MonitorInfo[] sorted = monitors.clone();
+        Arrays.sort(sorted, (left, right) -> Integer.compare(left.getLockedStackDepth(), right.getLockedStackDepth()));
+        ImmutableList.Builder<Locked> locks = ImmutableList.builder();
+        for (MonitorInfo monitor : sorted) {
+            locks.add(new Locked(lockId(monitor), monitor.getClassName()));
+        }
+        for (LockInfo synchronizer : synchronizers) {
+            locks.add(new Locked(lockId(synchronizer), synchronizer.getClassName()));
+        }
+        return locks.build();
+    }
+
+    private static String lockId(LockInfo lockInfo)
+    {
+        // the identity hash code, as printed in the lock name
+        return Integer.toHexString(lockInfo.getIdentityHashCode());
+    }
+}
@@ -0,0 +1,84 @@
+package io.airlift.stackfold;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Turns thread names into name patterns by replacing every run of digits
+ * with {@code *}, so {@code http-worker-123} becomes {@code http-worker-*}.
+ * This is what {@code name.replaceAll("\\d+", "*")} does, but without a
+ * regex: names without digits are returned as is, and others are copied
+ * once.
+ * <p>
+ * Patterns are cached by name, which pays off when the same threads are seen
+ * in many snapshots. The cache is cleared when it reaches its maximum size.
+ * This class is not thread safe.
+ */
+final class ThreadNamePatterns
+{
+    private static final int DEFAULT_MAX_CACHE_SIZE = 16 * 1024;
+
+    private final int maxCacheSize;
+    private final Map<String, String> cache = new HashMap<>();
+
+    public ThreadNamePatterns()
+    {
+        this(DEFAULT_MAX_CACHE_SIZE);
+    }
+
+    public ThreadNamePatterns(int maxCacheSize)
+    {
+        checkArgument(maxCacheSize > 0, "maxCacheSize must be positive");
+        this.maxCacheSize = maxCacheSize;
+    }
+
+    public String get(String name)
+    {
+        String pattern = cache.get(name);
+        if (pattern == null) {
+            pattern = toPattern(name);
+            if (cache.size() >= maxCacheSize) {
+                cache.clear();
+            }
+            cache.put(name, pattern);
+        }
+        return pattern;
+    }
+
+    public static String toPattern(String name)
+    {
+        int firstDigit = 0;
+        while (firstDigit < name.length() && !isDigit(name.charAt(firstDigit))) {
+            firstDigit++;
+        }
+        if (firstDigit == name.length()) {
+            return name;
+        }
+
+        char[] pattern = new char[name.length()];
+        name.getChars(0, firstDigit, pattern, 0);
+        int length = firstDigit;
+        int position = firstDigit;
+        while (position < name.length()) {
+            char c = name.charAt(position++);
+            if (isDigit(c)) {
+                pattern[length++] = '*';
+                while (position < name.length() && isDigit(name.charAt(position))) {
+                    position++;
+                }
+            }
+            else {
+                pattern[length++] = c;
+            }
+        }
+        return new String(pattern, 0, length);
+    }
+
+    private static boolean isDigit(char c)
+    {
+        // same as \d in a regex without UNICODE_CHARACTER_CLASS
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,177 @@
+package io.airlift.stackfold;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A trace encoded as frame ids of a {@link FrameTable}, with a precomputed
+ * 64-bit fingerprint of the class and method of every frame.
+ * <p>
+ * Like a {@code List<StackElement>}, two traces are equal when they have the
+ * same classes and methods in the same order; file and line are ignored.
+ * Traces with different fingerprints are never equal, so most comparisons
+ * are decided without looking at the frames.
+ */
+public final class Trace
+{
+    private static final long FINGERPRINT_MULTIPLIER = 0x9e3779b97f4a7c15L;
+
+    private final FrameTable frameTable;
+    private final int[] frames;
+    private final long fingerprint;
+
+    /**
+     * Takes ownership of the frames array.
+     */
+    Trace(FrameTable frameTable, int[] frames)
+    {
+        this.frameTable = checkNotNull(frameTable, "frameTable is null");
+        this.frames = checkNotNull(frames, "frames is null");
+
+        long fingerprint = frames.length;
+        for (int frame : frames) {
+            fingerprint = fingerprint * FINGERPRINT_MULTIPLIER + frameTable.getMethodFingerprint(frame);
+        }
+        this.fingerprint = mix(fingerprint);
+    }
+
+    public static Trace copyOf(List<StackElement> elements)
+    {
+        return copyOf(new FrameTable(), elements);
+    }
+
+    public static Trace copyOf(FrameTable frameTable, List<StackElement> elements)
+    {
+        int[] frames = new int[elements.size()];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = frameTable.intern(elements.get(i));
+        }
+        return new Trace(frameTable, frames);
+    }
+
+    public FrameTable getFrameTable()
+    {
+        return frameTable;
+    }
+
+    public int size()
+    {
+        return frames.length;
+    }
+
+    public boolean isEmpty()
+    {
+        return frames.length == 0;
+    }
+
+    public int getFrameId(int position)
+    {
+        return frames[position];
+    }
+
+    public StackElement getFrame(int position)
+    {
+        return frameTable.getFrame(frames[position]);
+    }
+
+    /**
+     * Returns a copy of the frame ids.
+     */
+    public int[] getFrameIds()
+    {
+        return frames.clone();
+    }
+
+    public long getFingerprint()
+    {
+        return fingerprint;
+    }
+
+    /**
+     * Returns a view of the frames as stack elements.
+     */
+    public List<StackElement> getElements()
+    {
+        return new Elements();
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Long.hashCode(fingerprint);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj) {
+            return true;
+        }
+        if ((obj == null) || (getClass() != obj.getClass())) {
+            return false;
+        }
+        Trace o = (Trace) obj;
+        if (fingerprint != o.fingerprint || frames.length != o.frames.length) {
+            return false;
+        }
+        if (frameTable == o.frameTable) {
+            if (frames == o.frames) {
+                return true;
+            }
+            for (int i = 0; i < frames.length; i++) {
+                if (frames[i] != o.frames[i] && frameTable.getMethodId(frames[i]) != frameTable.getMethodId(o.frames[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        for (int i = 0; i < frames.length; i++) {
+            if (!getFrame(i).equals(o.getFrame(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("fingerprint", Long.toHexString(fingerprint))
+                .add("frames", Arrays.toString(frames))
+                .toString();
+    }
+
+    private static long mix(long value)
+    {
+        // murmur3 finalizer
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb93e7fe1ecb5L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    private class Elements
+            extends AbstractList<StackElement>
+            implements RandomAccess
+    {
+        @Override
+        public StackElement get(int index)
+        {
+            return getFrame(index);
+        }
+
+        @Override
+        public int size()
+        {
+            return frames.length;
+        }
+    }
+}
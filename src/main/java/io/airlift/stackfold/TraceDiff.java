@@ -0,0 +1,135 @@
+package io.airlift.stackfold;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Comparator.comparing;
+
+/**
+ * Difference between the groups of two dumps folded with the same rules.
+ * Groups are matched by hash lookup of their folded trace, so the diff takes
+ * time linear in the number of groups, plus sorting the groups that changed.
+ */
+public final class TraceDiff
+{
+    private final TraceGroups before;
+    private final TraceGroups after;
+    private final List<Change> changes;
+
+    private TraceDiff(TraceGroups before, TraceGroups after, List<Change> changes)
+    {
+        this.before = before;
+        this.after = after;
+        this.changes = ImmutableList.copyOf(changes);
+    }
+
+    public static TraceDiff compare(TraceGroups before, TraceGroups after)
+    {
+        List<Change> changes = new ArrayList<>();
+        for (TraceGroup group : before.getGroups()) {
+            TraceGroup afterGroup = after.getGroup(group.getEncodedTrace());
+            long afterCount = (afterGroup == null) ? 0 : afterGroup.getThreadCount();
+            if (afterCount != group.getThreadCount()) {
+                changes.add(new Change(group, afterGroup));
+            }
+        }
+        for (TraceGroup group : after.getGroups()) {
+            if (before.getGroup(group.getEncodedTrace()) == null) {
+                changes.add(new Change(null, group));
+            }
+        }
+        changes.sort(comparing((Change change) -> Math.abs(change.getDelta())).reversed());
+        return new TraceDiff(before, after, changes);
+    }
+
+    public TraceGroups getBefore()
+    {
+        return before;
+    }
+
+    public TraceGroups getAfter()
+    {
+        return after;
+    }
+
+    /**
+     * Returns the groups whose thread count changed, including those that
+     * only exist in one of the dumps, with the largest absolute change first.
+     */
+    public List<Change> getChanges()
+    {
+        return changes;
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("before", before)
+                .add("after", after)
+                .add("changes", changes.size())
+                .toString();
+    }
+
+    public static final class Change
+    {
+        private final TraceGroup before;
+        private final TraceGroup after;
+
+        private Change(TraceGroup before, TraceGroup after)
+        {
+            checkArgument(before != null || after != null, "before and after are null");
+            this.before = before;
+            this.after = after;
+        }
+
+        /**
+         * Returns the group in the first dump, or null if the trace appeared.
+         */
+        public TraceGroup getBefore()
+        {
+            return before;
+        }
+
+        /**
+         * Returns the group in the second dump, or null if the trace disappeared.
+         */
+        public TraceGroup getAfter()
+        {
+            return after;
+        }
+
+        public List<StackElement> getTrace()
+        {
+            return (after != null) ? after.getTrace() : before.getTrace();
+        }
+
+        public long getBeforeCount()
+        {
+            return (before == null) ? 0 : before.getThreadCount();
+        }
+
+        public long getAfterCount()
+        {
+            return (after == null) ? 0 : after.getThreadCount();
+        }
+
+        public long getDelta()
+        {
+            return getAfterCount() - getBeforeCount();
+        }
+
+        @Override
+        public String toString()
+        {
+            return toStringHelper(this)
+                    .add("before", getBeforeCount())
+                    .add("after", getAfterCount())
+                    .toString();
+        }
+    }
+}
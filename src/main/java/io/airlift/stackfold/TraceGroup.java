@@ -0,0 +1,182 @@
+package io.airlift.stackfold;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * All threads that share the same folded trace. Only the trace itself and a
+ * count per thread name pattern and per thread state are retained, never the
+ * individual stacks.
+ */
+public class TraceGroup
+{
+    private static final Thread.State[] STATES = Thread.State.values();
+
+    private final Trace trace;
+    private final Map<String, NamePattern> namePatterns = new TreeMap<>();
+    // indexed by state ordinal, with threads without a state line at the end
+    private final long[] stateCounts = new long[STATES.length + 1];
+    private long threadCount;
+
+    public TraceGroup(Trace trace)
+    {
+        this.trace = checkNotNull(trace, "trace is null");
+    }
+
+    public List<StackElement> getTrace()
+    {
+        return trace.getElements();
+    }
+
+    public Trace getEncodedTrace()
+    {
+        return trace;
+    }
+
+    public long getThreadCount()
+    {
+        return threadCount;
+    }
+
+    /**
+     * Thread name patterns of the threads in this group, sorted by pattern.
+     */
+    public Collection<NamePattern> getNamePatterns()
+    {
+        return Collections.unmodifiableCollection(namePatterns.values());
+    }
+
+    /**
+     * Returns the number of threads in each state, in state order, with only
+     * the states that occur. Threads without a state are not included.
+     */
+    public Map<Thread.State, Long> getStateCounts()
+    {
+        Map<Thread.State, Long> counts = new EnumMap<>(Thread.State.class);
+        for (Thread.State state : STATES) {
+            if (stateCounts[state.ordinal()] > 0) {
+                counts.put(state, stateCounts[state.ordinal()]);
+            }
+        }
+        return counts;
+    }
+
+    void add(Stack stack, String namePattern)
+    {
+        add(namePattern, stack.getName(), 1);
+        stateCounts[(stack.getState() == null) ? STATES.length : stack.getState().ordinal()]++;
+    }
+
+    void add(String pattern, String name, long count)
+    {
+        NamePattern namePattern = namePatterns.get(pattern);
+        if (namePattern == null) {
+            namePattern = new NamePattern(pattern, name);
+            namePatterns.put(pattern, namePattern);
+        }
+        namePattern.count += count;
+        threadCount += count;
+    }
+
+    void merge(TraceGroup other)
+    {
+        for (NamePattern namePattern : other.namePatterns.values()) {
+            add(namePattern.pattern, namePattern.firstName, namePattern.count);
+        }
+        for (int i = 0; i < stateCounts.length; i++) {
+            stateCounts[i] += other.stateCounts[i];
+        }
+    }
+
+    void subtract(TraceGroup other)
+    {
+        for (NamePattern namePattern : other.namePatterns.values()) {
+            NamePattern existing = namePatterns.get(namePattern.pattern);
+            checkArgument(existing != null && existing.count >= namePattern.count, "name pattern was not merged: %s", namePattern);
+            existing.count -= namePattern.count;
+            threadCount -= namePattern.count;
+            if (existing.count == 0) {
+                namePatterns.remove(namePattern.pattern);
+            }
+        }
+        for (int i = 0; i < stateCounts.length; i++) {
+            stateCounts[i] -= other.stateCounts[i];
+        }
+    }
+
+    /**
+     * Returns the first name of the pattern, or null if no thread has it.
+     */
+    String getFirstName(String pattern)
+    {
+        NamePattern namePattern = namePatterns.get(pattern);
+        return (namePattern == null) ? null : namePattern.firstName;
+    }
+
+    void setFirstName(String pattern, String name)
+    {
+        NamePattern namePattern = namePatterns.get(pattern);
+        checkArgument(namePattern != null, "no threads with name pattern: %s", pattern);
+        namePattern.firstName = name;
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("threadCount", threadCount)
+                .add("namePatterns", namePatterns.keySet())
+                .add("trace", trace)
+                .toString();
+    }
+
+    public static class NamePattern
+    {
+        private final String pattern;
+        private String firstName;
+        private long count;
+
+        private NamePattern(String pattern, String firstName)
+        {
+            this.pattern = pattern;
+            this.firstName = firstName;
+        }
+
+        public String getPattern()
+        {
+            return pattern;
+        }
+
+        /**
+         * Name of the first thread seen with this pattern, which is the only
+         * name when {@link #getCount()} is one.
+         */
+        public String getFirstName()
+        {
+            return firstName;
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+
+        @Override
+        public String toString()
+        {
+            return toStringHelper(this)
+                    .add("pattern", pattern)
+                    .add("firstName", firstName)
+                    .add("count", count)
+                    .toString();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package io.airlift.stackfold;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Comparator.comparing;
+
+/**
+ * Running grouping of stacks by folded trace. Groups are kept in the order the
+ * trace was first seen, and memory grows with the number of distinct traces
+ * rather than with the number of stacks added.
+ * <p>
+ * Groupings of several snapshots of the same process can be merged, in which
+ * case the thread count of a group is its number of samples, that is the
+ * number of threads across all snapshots that had the trace.
+ */
+public class TraceGroups
+{
+    private final Map<Trace, TraceGroup> groups = new LinkedHashMap<>();
+    // frames of merged groups are copied here, so the source tables can be released
+    private final FrameTable frameTable = new FrameTable();
+    private final ThreadNamePatterns namePatterns = new ThreadNamePatterns();
+    private long threadCount;
+    private long snapshotCount;
+
+    public static TraceGroups groupStacks(Iterable<Stack> stacks)
+    {
+        return groupStacks(stacks.iterator());
+    }
+
+    public static TraceGroups groupStacks(Iterator<Stack> stacks)
+    {
+        TraceGroups groups = new TraceGroups();
+        while (stacks.hasNext()) {
+            groups.add(stacks.next());
+        }
+        return groups;
+    }
+
+    static TraceGroups groupStacks(StackParser parser)
+    {
+        TraceGroups groups = groupStacks((Iterator<Stack>) parser);
+        groups.snapshotCount = parser.getSnapshotCount();
+        return groups;
+    }
+
+    public void add(Stack stack)
+    {
+        getOrCreateGroup(stack.getEncodedTrace()).add(stack, namePatterns.get(stack.getName()));
+        threadCount++;
+    }
+
+    /**
+     * Adds all groups of {@code other} to this grouping, after the groups already present.
+     */
+    public void merge(TraceGroups other)
+    {
+        for (TraceGroup group : other.groups.values()) {
+            TraceGroup existing = groups.get(group.getEncodedTrace());
+            if (existing == null) {
+                Trace trace = Trace.copyOf(frameTable, group.getTrace());
+                existing = new TraceGroup(trace);
+                groups.put(trace, existing);
+            }
+            existing.merge(group);
+        }
+        threadCount += other.threadCount;
+        snapshotCount += other.snapshotCount;
+    }
+
+    /**
+     * Removes the groups of {@code other}, which must have been merged into
+     * this grouping before, and drops the groups and name patterns that have
+     * no threads left. A name pattern keeps its first name, which can belong
+     * to a thread that was removed, but always matches the pattern.
+     */
+    public void subtract(TraceGroups other)
+    {
+        for (TraceGroup group : other.groups.values()) {
+            TraceGroup existing = groups.get(group.getEncodedTrace());
+            checkArgument(existing != null && existing.getThreadCount() >= group.getThreadCount(), "group was not merged: %s", group);
+            existing.subtract(group);
+            if (existing.getThreadCount() == 0) {
+                groups.remove(group.getEncodedTrace());
+            }
+        }
+        threadCount -= other.threadCount;
+        snapshotCount -= other.snapshotCount;
+    }
+
+    /**
+     * Records that the stacks added so far span {@code count} more snapshots.
+     */
+    public void addSnapshots(long count)
+    {
+        checkArgument(count >= 0, "count is negative");
+        snapshotCount += count;
+    }
+
+    public Collection<TraceGroup> getGroups()
+    {
+        return Collections.unmodifiableCollection(groups.values());
+    }
+
+    /**
+     * Returns the group with the trace, which can be from any frame table, or null.
+     */
+    public TraceGroup getGroup(Trace trace)
+    {
+        return groups.get(trace);
+    }
+
+    public long getThreadCount()
+    {
+        return threadCount;
+    }
+
+    public long getSnapshotCount()
+    {
+        return snapshotCount;
+    }
+
+    /**
+     * Returns the groups sorted by descending thread count. Groups with the
+     * same count are in the order the trace was first seen.
+     */
+    public List<TraceGroup> getGroupsByThreadCount()
+    {
+        List<TraceGroup> sorted = new ArrayList<>(groups.values());
+        sorted.sort(comparing(TraceGroup::getThreadCount).reversed());
+        return sorted;
+    }
+
+    private TraceGroup getOrCreateGroup(Trace trace)
+    {
+        TraceGroup group = groups.get(trace);
+        if (group == null) {
+            group = new TraceGroup(trace);
+            groups.put(trace, group);
+        }
+        return group;
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("groups", groups.size())
+                .add("threadCount", threadCount)
+                .add("snapshotCount", snapshotCount)
+                .toString();
+    }
+}
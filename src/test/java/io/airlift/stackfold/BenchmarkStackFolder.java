@@ -0,0 +1,85 @@
+package io.airlift.stackfold;
+
+import com.google.common.io.ByteStreams;
+import io.airlift.stackfold.SyntheticThreadDump.Format;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Set;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+@State(Scope.Thread)
+@OutputTimeUnit(MILLISECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkStackFolder
+{
+    @Param({"1000", "10000", "100000"})
+    private int threads = 1000;
+
+    @Param({"JSTACK", "THREAD_MXBEAN"})
+    private String format = "JSTACK";
+
+    private List<String> lines;
+    private StackFoldings foldings;
+    private TraceGroups groups;
+    private PrintStream out;
+
+    @Setup
+    public void setup()
+    {
+        lines = SyntheticThreadDump.generate(Format.valueOf(format), threads, 42);
+        foldings = StackFoldings.compile(SyntheticThreadDump.loadDefaultFoldings());
+        groups = TraceGroups.groupStacks(new StackParser(lines.iterator(), foldings));
+        out = new PrintStream(ByteStreams.nullOutputStream());
+    }
+
+    @Benchmark
+    public Set<Stack> loadStackTrace()
+    {
+        return StackFolder.loadStackTrace(lines, foldings);
+    }
+
+    @Benchmark
+    public TraceGroups groupStackTrace()
+    {
+        return TraceGroups.groupStacks(new StackParser(lines.iterator(), foldings));
+    }
+
+    @Benchmark
+    public PrintStream renderStacks()
+    {
+        StackFolder.renderStacks(groups, out);
+        return out;
+    }
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        Options options = new OptionsBuilder()
+                .verbosity(VerboseMode.NORMAL)
+                .include(".*" + BenchmarkStackFolder.class.getSimpleName() + ".*")
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,107 @@
+package io.airlift.stackfold;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Resources;
+import io.airlift.stackfold.SyntheticThreadDump.Format;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+@State(Scope.Thread)
+@OutputTimeUnit(NANOSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkStackFolding
+{
+    private static final int TRACES = 10_000;
+
+    private List<String> foldingLines;
+    private byte[] foldingTable;
+    private List<StackFolding> foldingRules;
+    private StackFoldings foldings;
+    private List<List<StackElement>> traces;
+
+    @Setup
+    public void setup()
+            throws Exception
+    {
+        foldingLines = Resources.readLines(Resources.getResource("folding.txt"), UTF_8);
+        foldingRules = StackFolder.loadFolding(foldingLines);
+        foldingTable = Resources.toByteArray(Resources.getResource(FoldingTable.DEFAULT_RESOURCE));
+        foldings = StackFoldings.compile(foldingRules);
+
+        // unfolded traces of one thread each
+        List<String> lines = SyntheticThreadDump.generate(Format.JSTACK, TRACES, 42);
+        ImmutableList.Builder<List<StackElement>> traces = ImmutableList.builder();
+        new StackParser(lines.iterator(), StackFoldings.empty()).forEachRemaining(stack -> traces.add(ImmutableList.copyOf(stack.getTrace())));
+        this.traces = traces.build();
+    }
+
+    @Benchmark
+    public List<StackFolding> loadFolding()
+    {
+        return StackFolder.loadFolding(foldingLines);
+    }
+
+    @Benchmark
+    public List<StackFolding> loadFoldingTable()
+            throws IOException
+    {
+        return FoldingTable.read(new ByteArrayInputStream(foldingTable));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TRACES)
+    public void foldTraceEachRule(Blackhole blackhole)
+    {
+        for (List<StackElement> trace : traces) {
+            for (StackFolding folding : foldingRules) {
+                trace = folding.foldTrace(trace);
+            }
+            blackhole.consume(trace);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TRACES)
+    public void foldTraceCompiled(Blackhole blackhole)
+    {
+        for (List<StackElement> trace : traces) {
+            blackhole.consume(foldings.foldTrace(trace));
+        }
+    }
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        Options options = new OptionsBuilder()
+                .verbosity(VerboseMode.NORMAL)
+                .include(".*" + BenchmarkStackFolding.class.getSimpleName() + ".*")
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,136 @@
+package io.airlift.stackfold;
+
+import com.google.common.io.Resources;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Measures the first invocation in a fresh JVM, which is what a script
+ * running the command line tool on a small dump pays every time. Every fork
+ * runs each benchmark exactly once without warmup.
+ * <p>
+ * The executable jar benchmark runs the jar built by {@code mvn package},
+ * or the one in the {@code stackfold.jar} system property, on a dump with a
+ * single thread, and includes the startup of its JVM.
+ */
+@OutputTimeUnit(MILLISECONDS)
+@BenchmarkMode(Mode.SingleShotTime)
+@Fork(20)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+public class BenchmarkStartup
+{
+    private static final String DUMP = "" +
+            "\"main\" #1 prio=5 os_prio=0 tid=0x00007f1c4800a000 nid=0x1c03 runnable [0x00007f1c4f1fe000]\n" +
+            "   java.lang.Thread.State: RUNNABLE\n" +
+            "\tat java.lang.Thread.sleep(Native Method)\n" +
+            "\tat com.example.Main.main(Main.java:10)\n" +
+            "\n";
+
+    @Benchmark
+    public List<StackFolding> loadFoldingText()
+            throws IOException
+    {
+        return StackFolder.loadFolding(Resources.readLines(Resources.getResource("folding.txt"), UTF_8));
+    }
+
+    @Benchmark
+    public List<StackFolding> loadFoldingTable()
+            throws IOException
+    {
+        try (InputStream table = Resources.getResource(FoldingTable.DEFAULT_RESOURCE).openStream()) {
+            return FoldingTable.read(table);
+        }
+    }
+
+    @Benchmark
+    public int executableJar(ExecutableJar jar)
+            throws Exception
+    {
+        Process process = new ProcessBuilder(jar.jar.toString())
+                .redirectInput(jar.dump.toFile())
+                .redirectOutput(jar.output.toFile())
+                .redirectErrorStream(true)
+                .start();
+        int exitCode = process.waitFor();
+        if (exitCode != 0) {
+            throw new IllegalStateException("stackfold exited with " + exitCode + ": " + new String(Files.readAllBytes(jar.output), UTF_8));
+        }
+        return exitCode;
+    }
+
+    @State(Scope.Benchmark)
+    public static class ExecutableJar
+    {
+        private Path jar;
+        private Path dump;
+        private Path output;
+
+        @Setup
+        public void setup()
+                throws IOException
+        {
+            jar = findExecutableJar();
+            dump = Files.createTempFile("stack", ".txt");
+            Files.write(dump, DUMP.getBytes(UTF_8));
+            output = Files.createTempFile("stackfold", ".out");
+        }
+
+        @TearDown
+        public void tearDown()
+                throws IOException
+        {
+            Files.deleteIfExists(dump);
+            Files.deleteIfExists(output);
+        }
+
+        private static Path findExecutableJar()
+                throws IOException
+        {
+            String property = System.getProperty("stackfold.jar");
+            if (property != null) {
+                return Paths.get(property);
+            }
+            try (DirectoryStream<Path> jars = Files.newDirectoryStream(Paths.get("target"), "stackfold-*-executable.jar")) {
+                for (Path jar : jars) {
+                    return jar.toAbsolutePath();
+                }
+            }
+            throw new IllegalStateException("Executable jar not found, run mvn package or set -Dstackfold.jar");
+        }
+    }
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        Options options = new OptionsBuilder()
+                .verbosity(VerboseMode.NORMAL)
+                .include(".*" + BenchmarkStartup.class.getSimpleName() + ".*")
+                .build();
+        new Runner(options).run();
+    }
+}
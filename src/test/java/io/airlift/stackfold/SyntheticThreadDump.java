@@ -0,0 +1,155 @@
+package io.airlift.stackfold;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Resources;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Generates deterministic thread dumps that look like those of a busy server:
+ * a few thread pools, traces that are 10 to 80 frames deep, and many threads
+ * sharing a small number of traces. Part of the idle threads have exactly the
+ * traces folded by the default folding rules.
+ */
+final class SyntheticThreadDump
+{
+    enum Format
+    {
+        JSTACK,
+        THREAD_MXBEAN,
+    }
+
+    private static final String[] POOLS = {"http-worker-%s", "pool-%s-thread-%s", "query-execution-%s", "scheduler-%s", "client-io-%s"};
+
+    private static final String[][] LEAVES = {
+            {"java.net.SocketInputStream", "socketRead0", "Native Method", "-1"},
+            {"sun.nio.ch.EPollArrayWrapper", "epollWait", "Native Method", "-1"},
+            {"java.lang.Object", "wait", "Native Method", "-1"},
+            {"java.util.HashMap", "getNode", "HashMap.java", "571"},
+            {"java.lang.String", "indexOf", "String.java", "1769"},
+            {"java.util.regex.Pattern$Curly", "match0", "Pattern.java", "4260"},
+    };
+
+    private static final String[][] WORKER_BOTTOM = {
+            {"java.util.concurrent.ThreadPoolExecutor", "runWorker", "ThreadPoolExecutor.java", "1149"},
+            {"java.util.concurrent.ThreadPoolExecutor$Worker", "run", "ThreadPoolExecutor.java", "624"},
+            {"java.lang.Thread", "run", "Thread.java", "748"},
+    };
+
+    private SyntheticThreadDump() {}
+
+    public static List<String> generate(Format format, int threads, long seed)
+    {
+        Random random = new Random(seed);
+
+        // about 20 threads per distinct trace
+        List<List<String>> traces = new ArrayList<>();
+        List<StackFolding> foldings = loadDefaultFoldings();
+        int traceCount = Math.max(10, threads / 20);
+        for (int i = 0; i < traceCount; i++) {
+            if (random.nextInt(3) == 0) {
+                traces.add(foldedTrace(foldings.get(random.nextInt(foldings.size()))));
+            }
+            else {
+                traces.add(busyTrace(random));
+            }
+        }
+
+        List<String> lines = new ArrayList<>();
+        if (format == Format.JSTACK) {
+            lines.add("2019-03-04 11:22:33");
+            lines.add("Full thread dump Java HotSpot(TM) 64-Bit Server VM (25.201-b09 mixed mode):");
+            lines.add("");
+        }
+        for (int thread = 0; thread < threads; thread++) {
+            // skewed so a few traces are much more common than the others
+            double skew = random.nextDouble();
+            List<String> trace = traces.get((int) (skew * skew * traces.size()));
+            String pool = POOLS[random.nextInt(POOLS.length)];
+            String name = format(pool, random.nextInt(8), thread);
+            boolean idle = trace.get(0).contains("park");
+
+            if (format == Format.JSTACK) {
+                lines.add(format("\"%s\" #%s daemon prio=5 os_prio=0 tid=0x00007f%010x nid=0x%x %s [0x00007f%010x]",
+                        name, thread + 10, random.nextInt() & 0x7fffffff, thread + 100, idle ? "waiting on condition" : "runnable", random.nextInt() & 0x7fffffff));
+                lines.add(idle ? "   java.lang.Thread.State: WAITING (parking)" : "   java.lang.Thread.State: RUNNABLE");
+                for (int i = 0; i < trace.size(); i++) {
+                    lines.add("\tat " + trace.get(i));
+                    if (i == 0 && idle) {
+                        lines.add(format("\t- parking to wait for  <0x00000006%08x> (a java.util.concurrent.SynchronousQueue$TransferStack)", random.nextInt() & 0x7fffffff));
+                    }
+                    else if (i == 2 && !idle) {
+                        lines.add(format("\t- locked <0x00000006%08x> (a java.lang.Object)", random.nextInt() & 0x7fffffff));
+                    }
+                }
+                lines.add("");
+            }
+            else {
+                String lock = format("java.util.concurrent.SynchronousQueue$TransferStack@%x", random.nextInt() & 0x7fffffff);
+                lines.add(idle ? format("\"%s\" Id=%s WAITING on %s", name, thread + 10, lock) : format("\"%s\" Id=%s RUNNABLE", name, thread + 10));
+                for (int i = 0; i < trace.size(); i++) {
+                    lines.add("\tat " + trace.get(i));
+                    if (i == 0 && idle) {
+                        lines.add("\t-  waiting on " + lock);
+                    }
+                }
+                lines.add("");
+                lines.add("");
+            }
+        }
+        return lines;
+    }
+
+    static List<StackFolding> loadDefaultFoldings()
+    {
+        try {
+            return StackFolder.loadFolding(Resources.readLines(Resources.getResource("folding.txt"), UTF_8));
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static List<String> foldedTrace(StackFolding folding)
+    {
+        ImmutableList.Builder<String> trace = ImmutableList.builder();
+        for (StackElement element : folding.getSegment()) {
+            trace.add(element.prettyPrint());
+        }
+        return trace.build();
+    }
+
+    private static List<String> busyTrace(Random random)
+    {
+        ImmutableList.Builder<String> trace = ImmutableList.builder();
+        String[] leaf = LEAVES[random.nextInt(LEAVES.length)];
+        trace.add(frame(leaf));
+
+        int depth = 10 + random.nextInt(70);
+        int module = random.nextInt(20);
+        for (int i = 0; i < depth; i++) {
+            int type = random.nextInt(40);
+            trace.add(format("com.example.module%s.Type%s.method%s(Type%s.java:%s)", module, type, random.nextInt(10), type, 20 + random.nextInt(500)));
+        }
+
+        for (String[] frame : WORKER_BOTTOM) {
+            trace.add(frame(frame));
+        }
+        return trace.build();
+    }
+
+    private static String frame(String[] frame)
+    {
+        if (frame[3].equals("-1")) {
+            return format("%s.%s(%s)", frame[0], frame[1], frame[2]);
+        }
+        return format("%s.%s(%s:%s)", frame[0], frame[1], frame[2], frame[3]);
+    }
+}
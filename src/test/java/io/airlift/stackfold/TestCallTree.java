@@ -0,0 +1,112 @@
+package io.airlift.stackfold;
+
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.Test;
+
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+public class TestCallTree
+{
+    private static final StackElement RUN = frame("java.lang.Thread", "run", 750);
+    private static final StackElement WORK = frame("com.example.Worker", "work", 10);
+    private static final StackElement READ = frame("com.example.Worker", "read", 20);
+    private static final StackElement WRITE = frame("com.example.Worker", "write", 30);
+    private static final StackElement IDLE = frame("com.example.Worker", "idle", 40);
+
+    @Test
+    public void testBuild()
+    {
+        CallTree tree = CallTree.build(createGroups());
+        assertEquals(tree.getThreadCount(), 10);
+        assertNull(tree.getFrame(CallTree.ROOT));
+        // root, run, work, read, write and idle
+        assertEquals(tree.size(), 6);
+
+        int[] roots = tree.getChildren(CallTree.ROOT);
+        assertEquals(roots.length, 1);
+        assertEquals(tree.getFrame(roots[0]), RUN);
+        assertEquals(tree.getCount(roots[0]), 10);
+
+        int[] children = tree.getChildren(roots[0]);
+        assertEquals(children.length, 2);
+        assertEquals(tree.getFrame(children[0]), WORK);
+        assertEquals(tree.getCount(children[0]), 9);
+        assertEquals(tree.getFrame(children[1]), IDLE);
+        assertEquals(tree.getCount(children[1]), 1);
+
+        int[] leaves = tree.getChildren(children[0]);
+        assertEquals(tree.getFrame(leaves[0]), READ);
+        assertEquals(tree.getCount(leaves[0]), 6);
+        assertEquals(tree.getFrame(leaves[1]), WRITE);
+        assertEquals(tree.getCount(leaves[1]), 3);
+        assertEquals(tree.getChildren(leaves[0]).length, 0);
+    }
+
+    @Test
+    public void testRender()
+            throws Exception
+    {
+        StringWriter out = new StringWriter();
+        StackFolder.renderCallTree(createGroups(), 0, out);
+        assertEquals(out.toString(), "" +
+                "10 threads\n" +
+                "100.0%       10 java.lang.Thread.run(Thread.java:750)\n" +
+                " 90.0%        9   com.example.Worker.work(Worker.java:10)\n" +
+                " 60.0%        6     com.example.Worker.read(Worker.java:20)\n" +
+                " 30.0%        3     com.example.Worker.write(Worker.java:30)\n" +
+                " 10.0%        1   com.example.Worker.idle(Worker.java:40)\n");
+
+        // pruned siblings are counted, and a single remaining child is not indented
+        out = new StringWriter();
+        StackFolder.renderCallTree(createGroups(), 50, out);
+        assertEquals(out.toString(), "" +
+                "10 threads\n" +
+                "100.0%       10 java.lang.Thread.run(Thread.java:750)\n" +
+                " 90.0%        9   com.example.Worker.work(Worker.java:10)\n" +
+                " 60.0%        6     com.example.Worker.read(Worker.java:20)\n" +
+                " 30.0%        3     (1 more branches)\n" +
+                " 10.0%        1   (1 more branches)\n");
+
+        // pruned outermost frames are counted too
+        TraceGroups groups = TraceGroups.groupStacks(ImmutableList.of(
+                stack("worker-1", ImmutableList.of(WORK, RUN)),
+                stack("worker-2", ImmutableList.of(WORK, RUN)),
+                stack("worker-3", ImmutableList.of(WORK, RUN)),
+                stack("idle", ImmutableList.of(IDLE))));
+        out = new StringWriter();
+        StackFolder.renderCallTree(groups, 50, out);
+        assertEquals(out.toString(), "" +
+                "4 threads\n" +
+                " 75.0%        3 java.lang.Thread.run(Thread.java:750)\n" +
+                " 75.0%        3 com.example.Worker.work(Worker.java:10)\n" +
+                " 25.0%        1 (1 more branches)\n");
+    }
+
+    private static TraceGroups createGroups()
+    {
+        ImmutableList.Builder<Stack> stacks = ImmutableList.builder();
+        for (int i = 0; i < 6; i++) {
+            stacks.add(stack("reader-" + i, ImmutableList.of(READ, WORK, RUN)));
+        }
+        for (int i = 0; i < 3; i++) {
+            stacks.add(stack("writer-" + i, ImmutableList.of(WRITE, WORK, RUN)));
+        }
+        stacks.add(stack("idle", ImmutableList.of(IDLE, RUN)));
+        return TraceGroups.groupStacks(stacks.build());
+    }
+
+    private static Stack stack(String name, List<StackElement> trace)
+    {
+        return new Stack(name, false, null, null, null, null, Thread.State.RUNNABLE, null, trace);
+    }
+
+    private static StackElement frame(String className, String method, int line)
+    {
+        String file = className.substring(className.lastIndexOf('.') + 1) + ".java";
+        return new StackElement(className, method, file, line, ImmutableList.of());
+    }
+}
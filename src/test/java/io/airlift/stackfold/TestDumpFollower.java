@@ -0,0 +1,126 @@
+package io.airlift.stackfold;
+
+import com.google.common.base.Joiner;
+import com.google.common.io.Resources;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestDumpFollower
+{
+    private static final long THREADS_PER_DUMP = 19;
+
+    @Test
+    public void testStream()
+            throws Exception
+    {
+        StackFoldings foldings = StackFoldings.compile(StackFolder.loadDefaultFolding());
+        String dumps = dump("2013-08-15 18:20:57") + dump("2013-08-15 18:20:58") + dump("2013-08-15 18:20:59") +
+                // a dump without a timestamp or trailer, ended by the end of the input
+                Joiner.on('\n').join(stackLines().subList(1, stackLines().size() - 1));
+
+        RollingTraceGroups window = new RollingTraceGroups(Long.MAX_VALUE, 100);
+        int completed = 0;
+        try (DumpFollower follower = DumpFollower.followStream(new ByteArrayInputStream(dumps.getBytes(UTF_8)), UTF_8, foldings, window)) {
+            while (true) {
+                int count = follower.process(10, SECONDS);
+                if (count < 0) {
+                    break;
+                }
+                completed += count;
+            }
+        }
+        assertEquals(completed, 4);
+        assertEquals(window.getSnapshotCount(), 4);
+        assertEquals(window.getGroups().getSnapshotCount(), 4);
+        assertEquals(window.getGroups().getThreadCount(), 4 * THREADS_PER_DUMP);
+    }
+
+    @Test
+    public void testTimestampWindow()
+            throws Exception
+    {
+        StackFoldings foldings = StackFoldings.compile(StackFolder.loadDefaultFolding());
+        String dumps = dump("2013-08-15 18:20:57") + dump("2013-08-15 18:20:58") + dump("2013-08-15 18:21:07") + dump("2013-08-15 18:21:08");
+
+        RollingTraceGroups window = new RollingTraceGroups(SECONDS.toMillis(5), 100);
+        try (DumpFollower follower = DumpFollower.followStream(new ByteArrayInputStream(dumps.getBytes(UTF_8)), UTF_8, foldings, window)) {
+            while (follower.process(10, SECONDS) >= 0) {
+                // keep going
+            }
+        }
+        // the first two dumps are more than five seconds older than the last one
+        assertEquals(window.getSnapshotCount(), 2);
+        assertEquals(window.getGroups().getThreadCount(), 2 * THREADS_PER_DUMP);
+    }
+
+    @Test
+    public void testFile()
+            throws Exception
+    {
+        StackFoldings foldings = StackFoldings.compile(StackFolder.loadDefaultFolding());
+        Path file = Files.createTempFile("dumps", ".log");
+        try {
+            // the end of a dump that was written before following started is ignored
+            List<String> lines = stackLines();
+            Files.write(file, lines.subList(0, 30), UTF_8);
+
+            RollingTraceGroups window = new RollingTraceGroups(Long.MAX_VALUE, 100);
+            try (DumpFollower follower = DumpFollower.followFile(file, UTF_8, foldings, window)) {
+                Files.write(file, (Joiner.on('\n').join(lines.subList(30, lines.size())) + "\n").getBytes(UTF_8), APPEND);
+                Files.write(file, (dump("2013-08-15 18:20:58") + dump("2013-08-15 18:20:59").substring(0, 500)).getBytes(UTF_8), APPEND);
+                assertEquals(processUntil(follower, 1), 1);
+
+                // the rest of the dump completes it
+                Files.write(file, dump("2013-08-15 18:20:59").substring(500).getBytes(UTF_8), APPEND);
+                assertEquals(processUntil(follower, 1), 1);
+                assertEquals(window.getSnapshotCount(), 2);
+
+                // a truncated file is read from the start
+                Files.write(file, dump("2013-08-15 18:21:00").getBytes(UTF_8), TRUNCATE_EXISTING);
+                assertEquals(processUntil(follower, 1), 1);
+                assertEquals(window.getSnapshotCount(), 3);
+                assertEquals(window.getGroups().getThreadCount(), 3 * THREADS_PER_DUMP);
+            }
+        }
+        finally {
+            Files.delete(file);
+        }
+    }
+
+    private static int processUntil(DumpFollower follower, int dumps)
+            throws Exception
+    {
+        int completed = 0;
+        long deadline = System.nanoTime() + SECONDS.toNanos(10);
+        while (completed < dumps) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            completed += follower.process(50, MILLISECONDS);
+        }
+        return completed;
+    }
+
+    private static String dump(String timestamp)
+            throws Exception
+    {
+        List<String> lines = stackLines();
+        return timestamp + "\n" + Joiner.on('\n').join(lines.subList(1, lines.size())) + "\n";
+    }
+
+    private static List<String> stackLines()
+            throws Exception
+    {
+        return Resources.readLines(Resources.getResource("stack.txt"), UTF_8);
+    }
+}
@@ -0,0 +1,86 @@
+package io.airlift.stackfold;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Resources;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static io.airlift.stackfold.StackFolder.groupStackTrace;
+import static io.airlift.stackfold.StackFolder.loadFolding;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestFoldStats
+{
+    @Test
+    public void testCounters()
+            throws Exception
+    {
+        List<String> lines = Resources.readLines(Resources.getResource("stack.txt"), UTF_8);
+        StackFoldings compiled = StackFoldings.compile(loadFolding(Resources.readLines(Resources.getResource("folding.txt"), UTF_8)));
+        assertNull(compiled.getStats());
+
+        StackFoldings foldings = compiled.withStats();
+        assertEquals(foldings.getFoldings(), compiled.getFoldings());
+        FoldStats stats = foldings.getStats();
+
+        TraceGroups groups;
+        try (FoldStats.Phase ignored = stats.startPhase("read")) {
+            groups = groupStackTrace(new StringReader(String.join("\n", lines)), foldings);
+        }
+        assertEquals(stats.getLineCount(), lines.size());
+        assertEquals(stats.getThreadCount(), groups.getThreadCount());
+        assertTrue(stats.getParseNanos() > 0);
+        assertTrue(stats.getFoldNanos() > 0);
+
+        List<StackElement> unfolded = ImmutableList.copyOf(StackFolder.streamStackTrace(new StringReader(String.join("\n", lines)), StackFoldings.empty()))
+                .stream()
+                .flatMap(stack -> stack.getTrace().stream())
+                .collect(ImmutableList.toImmutableList());
+        assertEquals(stats.getFrameCount(), unfolded.size());
+
+        // replacements are not folded again, so each hit leaves its replacement in a trace
+        Map<StackElement, Long> hitsByReplacement = new HashMap<>();
+        long hits = 0;
+        for (int rule = 0; rule < stats.getRuleCount(); rule++) {
+            hitsByReplacement.merge(foldings.getFoldings().get(rule).getReplacement(), stats.getRuleHits(rule), Long::sum);
+            hits += stats.getRuleHits(rule);
+        }
+        for (Map.Entry<StackElement, Long> entry : hitsByReplacement.entrySet()) {
+            long replacements = groups.getGroups().stream()
+                    .mapToLong(group -> group.getThreadCount() * group.getTrace().stream().filter(entry.getKey()::equals).count())
+                    .sum();
+            assertEquals(entry.getValue().longValue(), replacements, entry.getKey().toString());
+        }
+        assertTrue(hits > 0);
+
+        FoldStats.Phase phase = stats.getPhases().get(0);
+        assertEquals(phase.getName(), "read");
+        assertTrue(phase.getNanos() > 0);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PrintStream stream = new PrintStream(out, false, UTF_8.name())) {
+            StackFolder.renderStats(foldings, groups, stream);
+        }
+        String report = out.toString(UTF_8.name());
+        assertTrue(report.contains(String.format("groups: %,d", groups.getGroups().size())), report);
+        assertTrue(report.contains("folding rules: "), report);
+        assertTrue(report.contains(" lines/s"), report);
+
+        // nothing was parsed
+        out.reset();
+        try (PrintStream stream = new PrintStream(out, false, UTF_8.name())) {
+            StackFolder.renderStats(compiled.withStats(), new TraceGroups(), stream);
+        }
+        assertFalse(out.toString(UTF_8.name()).contains("parse:"), out.toString(UTF_8.name()));
+    }
+}
@@ -0,0 +1,95 @@
+package io.airlift.stackfold;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Resources;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static io.airlift.stackfold.StackFolder.loadFolding;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestFoldingTable
+{
+    @Test
+    public void testRoundTrip()
+            throws Exception
+    {
+        List<StackFolding> foldings = ImmutableList.<StackFolding>builder()
+                .addAll(loadFolding(Resources.readLines(Resources.getResource("folding.txt"), UTF_8)))
+                .add(new StackFolding(ImmutableList.of(), new StackElement("Empty", "segment", null, -1, ImmutableList.of())))
+                .build();
+        assertFoldingsEqual(FoldingTable.read(new ByteArrayInputStream(toTable(foldings))), foldings);
+    }
+
+    @Test
+    public void testDefaultTableIsCurrent()
+            throws Exception
+    {
+        // regenerate with: FoldingTable src/main/resources/folding.txt src/main/resources/folding.bin
+        List<StackFolding> text = loadFolding(Resources.readLines(Resources.getResource("folding.txt"), UTF_8));
+        assertEquals(Resources.toByteArray(Resources.getResource(FoldingTable.DEFAULT_RESOURCE)), toTable(text), "folding.bin is out of date");
+        assertFoldingsEqual(StackFolder.loadDefaultFolding(), text);
+    }
+
+    @Test
+    public void testLoadFile()
+            throws Exception
+    {
+        List<String> lines = Resources.readLines(Resources.getResource("folding.txt"), UTF_8);
+        List<StackFolding> expected = loadFolding(lines);
+
+        Path file = Files.createTempFile("folding", ".txt");
+        try {
+            Files.write(file, lines, UTF_8);
+            assertFalse(FoldingTable.isFoldingTable(file));
+            assertFoldingsEqual(loadFolding(file), expected);
+
+            Files.write(file, toTable(expected));
+            assertTrue(FoldingTable.isFoldingTable(file));
+            assertFoldingsEqual(loadFolding(file), expected);
+
+            Files.write(file, new byte[0]);
+            assertFalse(FoldingTable.isFoldingTable(file));
+            assertEquals(loadFolding(file), ImmutableList.of());
+        }
+        finally {
+            Files.delete(file);
+        }
+    }
+
+    private static byte[] toTable(List<StackFolding> foldings)
+            throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FoldingTable.write(foldings, out);
+        return out.toByteArray();
+    }
+
+    private static void assertFoldingsEqual(List<StackFolding> actual, List<StackFolding> expected)
+    {
+        // stack elements are equal by class and method only, so compare the printed form
+        assertEquals(actual.size(), expected.size());
+        for (int i = 0; i < actual.size(); i++) {
+            assertEquals(actual.get(i).getReplacement().prettyPrint(), expected.get(i).getReplacement().prettyPrint());
+            assertEquals(prettyPrint(actual.get(i).getSegment()), prettyPrint(expected.get(i).getSegment()));
+        }
+    }
+
+    private static List<String> prettyPrint(List<StackElement> elements)
+    {
+        ImmutableList.Builder<String> printed = ImmutableList.builder();
+        for (StackElement element : elements) {
+            printed.add(element.prettyPrint());
+        }
+        return printed.build();
+    }
+}
@@ -0,0 +1,112 @@
+package io.airlift.stackfold;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Resources;
+import io.airlift.stackfold.SyntheticThreadDump.Format;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import static io.airlift.stackfold.StackFolder.loadFolding;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toSet;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestFrameIndex
+{
+    @Test
+    public void testQuery()
+            throws Exception
+    {
+        StackFoldings foldings = StackFoldings.compile(loadFolding(Resources.readLines(Resources.getResource("folding.txt"), UTF_8)));
+        TraceGroups groups = TraceGroups.groupStacks(new StackParser(Resources.readLines(Resources.getResource("stack.txt"), UTF_8).iterator(), foldings));
+        FrameIndex index = FrameIndex.build(groups);
+
+        assertEquals(firstNames(index.findMethod("java.lang.Object", "wait")), ImmutableSet.of("Finalizer", "Reference Handler"));
+        assertEquals(firstNames(index.findClass("java.lang.ref.Reference")), ImmutableSet.of("Reference Handler"));
+        assertEquals(firstNames(index.findPackage("java.lang.ref")), ImmutableSet.of("Finalizer", "Reference Handler"));
+        assertEquals(firstNames(index.findPackage("java.lang.re")), ImmutableSet.of());
+        // the threads without a trace are one group
+        assertEquals(firstNames(index.findNamePattern("GC task thread#3 (ParallelGC)")), ImmutableSet.of("Attach Listener"));
+        assertEquals(firstNames(index.query("java.lang.ref.ReferenceQueue.remove state:waiting")), ImmutableSet.of("Finalizer"));
+        assertEquals(firstNames(index.query("java.lang name:Finalizer")), ImmutableSet.of("Finalizer"));
+        assertEquals(index.query("method:java.lang.Object.notify").size(), 0);
+
+        for (String query : new String[] {"", "state:SLEEPING", "frame:java", "class:"}) {
+            try {
+                index.query(query);
+                fail("expected IllegalArgumentException for " + query);
+            }
+            catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testCountThreads()
+    {
+        StringBuilder dump = new StringBuilder();
+        String[][] threads = {{"worker-1", "BLOCKED"}, {"worker-2", "RUNNABLE"}, {"worker-3", "RUNNABLE"}, {"io-1", "RUNNABLE"}};
+        for (String[] thread : threads) {
+            dump.append("\"").append(thread[0]).append("\" #1 prio=5 os_prio=0 tid=0x00007f1a5c300000 nid=0x5104 runnable [0x0]\n")
+                    .append("   java.lang.Thread.State: ").append(thread[1]).append("\n")
+                    .append("\tat com.example.Cache.get(Cache.java:42)\n")
+                    .append("\tat com.example.Worker.run(Worker.java:20)\n")
+                    .append("\n");
+        }
+        TraceGroups groups = TraceGroups.groupStacks(new StackParser(Splitter.on('\n').split(dump).iterator(), StackFoldings.empty()));
+        assertEquals(groups.getGroups().size(), 1);
+        FrameIndex index = FrameIndex.build(groups);
+
+        // the group matches, but only its threads in the state or with the name count
+        assertEquals(index.query("state:BLOCKED").size(), 1);
+        assertEquals(index.countThreads("state:BLOCKED"), 1);
+        assertEquals(index.countThreads("com.example.Cache state:RUNNABLE"), 3);
+        assertEquals(index.countThreads("name:worker-9"), 3);
+        assertEquals(index.countThreads("name:worker-9 state:BLOCKED"), 1);
+        assertEquals(index.countThreads("state:BLOCKED state:RUNNABLE"), 0);
+        assertEquals(index.countThreads("state:WAITING"), 0);
+        assertEquals(index.countThreads("com.example.Cache"), 4);
+    }
+
+    @Test
+    public void testMatchesScan()
+    {
+        StackFoldings foldings = StackFoldings.compile(SyntheticThreadDump.loadDefaultFoldings());
+        TraceGroups groups = TraceGroups.groupStacks(new StackParser(SyntheticThreadDump.generate(Format.JSTACK, 5000, 7).iterator(), foldings));
+        FrameIndex index = FrameIndex.build(groups);
+
+        assertEquals(ImmutableSet.copyOf(index.findMethod("com.example.module3.Type7", "method2")),
+                scan(groups, group -> group.getTrace().stream().anyMatch(frame -> frame.getClassName().equals("com.example.module3.Type7") && frame.getMethod().equals("method2"))));
+        assertEquals(ImmutableSet.copyOf(index.findPackage("com.example.module3")),
+                scan(groups, group -> group.getTrace().stream().anyMatch(frame -> frame.getClassName().startsWith("com.example.module3."))));
+        assertEquals(ImmutableSet.copyOf(index.query("package:java.util.concurrent state:WAITING name:http-worker-1")),
+                scan(groups, group -> group.getTrace().stream().anyMatch(frame -> frame.getClassName().startsWith("java.util.concurrent.")) &&
+                        group.getStateCounts().containsKey(Thread.State.WAITING) &&
+                        group.getNamePatterns().stream().anyMatch(namePattern -> namePattern.getPattern().equals("http-worker-*"))));
+
+        // most threads first
+        List<TraceGroup> matches = index.query("java.lang.Thread.run");
+        assertTrue(matches.size() > 10);
+        for (int i = 1; i < matches.size(); i++) {
+            assertTrue(matches.get(i - 1).getThreadCount() >= matches.get(i).getThreadCount());
+        }
+    }
+
+    private static Set<TraceGroup> scan(TraceGroups groups, Predicate<TraceGroup> filter)
+    {
+        return groups.getGroups().stream().filter(filter).collect(toSet());
+    }
+
+    private static Set<String> firstNames(List<TraceGroup> groups)
+    {
+        return groups.stream()
+                .map(group -> group.getNamePatterns().iterator().next().getFirstName())
+                .collect(toSet());
+    }
+}
@@ -0,0 +1,148 @@
+package io.airlift.stackfold;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Resources;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static io.airlift.stackfold.StackFolder.loadDefaultFramePatterns;
+import static io.airlift.stackfold.StackFolder.loadFolding;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestFramePatterns
+{
+    private static final StackElement JETTY_SELECT = element("org.eclipse.jetty.io.ManagedSelector.select");
+    private static final StackElement JETTY_RUN = element("org.eclipse.jetty.util.thread.QueuedThreadPool$Runner.run");
+    private static final StackElement NETTY_RUN = element("io.netty.util.concurrent.SingleThreadEventExecutor$4.run");
+    private static final StackElement THREAD_RUN = element("java.lang.Thread.run");
+
+    @Test
+    public void testNormalize()
+    {
+        FramePatterns patterns = FramePatterns.parse(ImmutableList.of(
+                "# comment",
+                "",
+                "normalize *$$Lambda*",
+                "normalize com.sun.proxy.$Proxy*"));
+
+        assertEquals(patterns.normalize(element("org.testcontainers.utility.ResourceReaper$$Lambda$310/337431476.run")), element("org.testcontainers.utility.ResourceReaper$$Lambda*.run"));
+        assertEquals(patterns.normalize(element("Foo$$Lambda$14/0x0000000800c03000.run")), element("Foo$$Lambda*.run"));
+        assertEquals(patterns.normalize(element("Foo$$Lambda/0x0000000800c03000.run")), element("Foo$$Lambda*.run"));
+        assertEquals(patterns.normalize(element("com.sun.proxy.$Proxy12.invoke")), element("com.sun.proxy.$Proxy*.invoke"));
+
+        // already normalized, or not matched
+        StackElement normalized = element("Foo$$Lambda*.run");
+        assertSame(patterns.normalize(normalized), normalized);
+        assertSame(patterns.normalize(THREAD_RUN), THREAD_RUN);
+        assertEquals(patterns.normalize(element("com.sun.proxy.Other.invoke")).getClassName(), "com.sun.proxy.Other");
+    }
+
+    @Test
+    public void testCollapse()
+    {
+        FramePatterns patterns = FramePatterns.parse(ImmutableList.of(
+                "collapse org.eclipse.jetty.*",
+                "collapse io.netty.*"));
+        StackElement jetty = element("org.eclipse.jetty.*");
+        StackElement netty = element("io.netty.*");
+
+        assertEquals(patterns.collapseTrace(ImmutableList.of(JETTY_SELECT, JETTY_RUN, THREAD_RUN)), ImmutableList.of(jetty, THREAD_RUN));
+        assertEquals(patterns.collapseTrace(ImmutableList.of(JETTY_SELECT, THREAD_RUN, JETTY_RUN)), ImmutableList.of(jetty, THREAD_RUN, jetty));
+        assertEquals(patterns.collapseTrace(ImmutableList.of(JETTY_SELECT, NETTY_RUN, JETTY_RUN)), ImmutableList.of(jetty, netty, jetty));
+
+        List<StackElement> trace = ImmutableList.of(THREAD_RUN);
+        assertSame(patterns.collapseTrace(trace), trace);
+    }
+
+    @Test
+    public void testGlob()
+    {
+        FramePatterns patterns = FramePatterns.parse(ImmutableList.of(
+                "collapse *.Exact",
+                "collapse a.*.b*c",
+                "collapse x.y.Z"));
+
+        assertEquals(patterns.findCollapseRule(element("a.b.Exact.run")), 0);
+        assertEquals(patterns.findCollapseRule(element("a.b.Exactly.run")), -1);
+        assertEquals(patterns.findCollapseRule(element("a.x.y.bc.run")), 1);
+        assertEquals(patterns.findCollapseRule(element("a.x.b.y.c.run")), 1);
+        assertEquals(patterns.findCollapseRule(element("a.bc.run")), -1);
+        assertEquals(patterns.findCollapseRule(element("x.y.Z.run")), 2);
+        assertEquals(patterns.findCollapseRule(element("x.y.Z2.run")), -1);
+    }
+
+    @Test
+    public void testInvalid()
+    {
+        for (String line : ImmutableList.of("collapse", "normalize Foo$$Lambda", "fold org.*")) {
+            try {
+                FramePatterns.parse(ImmutableList.of(line));
+                fail("expected IllegalArgumentException for " + line);
+            }
+            catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testFrameTable()
+    {
+        FramePatterns patterns = FramePatterns.parse(ImmutableList.of(
+                "normalize *$$Lambda*",
+                "collapse org.eclipse.jetty.*"));
+        StackFoldings foldings = StackFoldings.compile(
+                ImmutableList.of(new StackFolding(ImmutableList.of(element("Foo$$Lambda*.run"), THREAD_RUN), element("Foo.task"))),
+                patterns);
+
+        List<StackElement> trace = ImmutableList.of(JETTY_SELECT, JETTY_RUN, element("Foo$$Lambda$3/123.run"), THREAD_RUN);
+        List<StackElement> expected = ImmutableList.of(element("org.eclipse.jetty.*"), element("Foo.task"));
+        assertEquals(foldings.foldTrace(trace), expected);
+
+        // twice, for the cached results
+        FrameTable frameTable = new FrameTable();
+        for (int i = 0; i < 2; i++) {
+            int[] frames = trace.stream().mapToInt(frameTable::intern).toArray();
+            int[] folded = foldings.foldTrace(frameTable, frames, frames.length);
+            assertEquals(new Trace(frameTable, folded).getElements(), expected);
+        }
+    }
+
+    @Test
+    public void testGrouping()
+            throws Exception
+    {
+        // the same thread with the lambda classes of another JVM
+        List<String> lines = ImmutableList.<String>builder()
+                .addAll(Resources.readLines(Resources.getResource("thread_mxbean_stack.txt"), UTF_8))
+                .add("")
+                .add("\"testcontainers-ryuk\" Id=23 TIMED_WAITING on java.util.ArrayList@278f71fa")
+                .add("\tat java.lang.Object.wait(Native Method)")
+                .add("\t-  waiting on java.util.ArrayList@278f71fa")
+                .add("\tat org.testcontainers.utility.ResourceReaper.lambda$null$1(ResourceReaper.java:128)")
+                .add("\tat org.testcontainers.utility.ResourceReaper$$Lambda$312/96639997.run(Unknown Source)")
+                .add("\tat org.rnorth.ducttape.ratelimits.RateLimiter.doWhenReady(RateLimiter.java:27)")
+                .add("\tat org.testcontainers.utility.ResourceReaper.lambda$start$2(ResourceReaper.java:119)")
+                .add("\tat org.testcontainers.utility.ResourceReaper$$Lambda$311/1207140081.run(Unknown Source)")
+                .add("\tat java.lang.Thread.run(Thread.java:748)")
+                .build();
+        List<StackFolding> folding = loadFolding(Resources.readLines(Resources.getResource("folding.txt"), UTF_8));
+
+        TraceGroups exact = TraceGroups.groupStacks(new StackParser(lines.iterator(), StackFoldings.compile(folding)));
+        TraceGroups normalized = TraceGroups.groupStacks(new StackParser(lines.iterator(), StackFoldings.compile(folding, loadDefaultFramePatterns())));
+        assertEquals(normalized.getThreadCount(), exact.getThreadCount());
+        assertEquals(normalized.getGroups().size(), exact.getGroups().size() - 1);
+        assertTrue(normalized.getGroups().stream()
+                .anyMatch(group -> group.getThreadCount() == 2 && group.getTrace().contains(element("org.testcontainers.utility.ResourceReaper$$Lambda*.run"))));
+    }
+
+    private static StackElement element(String qualifiedMethod)
+    {
+        int dot = qualifiedMethod.lastIndexOf('.');
+        return new StackElement(qualifiedMethod.substring(0, dot), qualifiedMethod.substring(dot + 1), null, -1, ImmutableList.of());
+    }
+}
@@ -0,0 +1,112 @@
+package io.airlift.stackfold;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import io.airlift.stackfold.LineScanner.FrameBounds;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static io.airlift.stackfold.LineScanner.scanStackElement;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class TestFrameTable
+{
+    @Test
+    public void testIntern()
+    {
+        FrameTable table = new FrameTable();
+        int remove135 = intern(table, "\tat java.lang.ref.ReferenceQueue.remove(ReferenceQueue.java:135)");
+        int remove151 = intern(table, "\tat java.lang.ref.ReferenceQueue.remove(ReferenceQueue.java:151)");
+        int park = intern(table, "\tat sun.misc.Unsafe.park(Native Method)");
+        int run = intern(table, "java.util.concurrent.ThreadPoolExecutor$Worker.run");
+
+        assertEquals(intern(table, "    at java.lang.ref.ReferenceQueue.remove(ReferenceQueue.java:135)  "), remove135);
+        assertEquals(table.intern(element("java.lang.ref.ReferenceQueue.remove(ReferenceQueue.java:151)")), remove151);
+        assertEquals(intern(table, "\tat sun.misc.Unsafe.park(Native Method)"), park);
+        assertEquals(table.intern(element("java.util.concurrent.ThreadPoolExecutor$Worker.run")), run);
+        assertEquals(table.size(), 4);
+        assertEquals(table.getMethodCount(), 3);
+
+        // frames of the same method share the method id and strings
+        assertNotEquals(remove135, remove151);
+        assertEquals(table.getMethodId(remove135), table.getMethodId(remove151));
+        assertEquals(table.getMethodFingerprint(remove135), table.getMethodFingerprint(remove151));
+        assertSame(table.getFrame(remove135).getClassName(), table.getFrame(remove151).getClassName());
+        assertSame(table.getFrame(remove135).getFile(), table.getFrame(remove151).getFile());
+        assertNotEquals(table.getMethodId(remove135), table.getMethodId(park));
+
+        assertEquals(table.getFrame(remove151).prettyPrint(), "java.lang.ref.ReferenceQueue.remove(ReferenceQueue.java:151)");
+        assertEquals(table.getFrame(park).prettyPrint(), "sun.misc.Unsafe.park(Native Method)");
+        assertNull(table.getFrame(run).getFile());
+        assertEquals(table.getFrame(run).getLineNumber(), -1);
+    }
+
+    @Test
+    public void testGrow()
+    {
+        FrameTable table = new FrameTable();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(intern(table, "\tat Foo" + (i % 100) + ".bar(Foo.java:" + i + ")"), i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(intern(table, "\tat Foo" + (i % 100) + ".bar(Foo.java:" + i + ")"), i);
+        }
+        assertEquals(table.size(), 1000);
+        assertEquals(table.getMethodCount(), 100);
+    }
+
+    @Test
+    public void testTraceEquality()
+    {
+        List<StackElement> elements = ImmutableList.of(
+                element("java.lang.Object.wait(Native Method)"),
+                element("java.lang.ref.ReferenceQueue.remove(ReferenceQueue.java:135)"),
+                element("java.lang.ref.Finalizer$FinalizerThread.run(Finalizer.java:189)"));
+        List<StackElement> otherLines = ImmutableList.of(
+                element("java.lang.Object.wait(Native Method)"),
+                element("java.lang.ref.ReferenceQueue.remove(ReferenceQueue.java:151)"),
+                element("java.lang.ref.Finalizer$FinalizerThread.run(Finalizer.java:189)"));
+
+        FrameTable table = new FrameTable();
+        Trace trace = Trace.copyOf(table, elements);
+        assertEquals(trace.getElements(), elements);
+
+        // same table, lines are ignored like in StackElement.equals
+        assertTraceEquals(trace, Trace.copyOf(table, otherLines));
+
+        // different tables compare by element
+        assertTraceEquals(trace, Trace.copyOf(otherLines));
+
+        Trace shorter = Trace.copyOf(table, elements.subList(0, 2));
+        assertFalse(trace.equals(shorter));
+        assertNotEquals(trace.getFingerprint(), shorter.getFingerprint());
+        Trace reversed = Trace.copyOf(table, Lists.reverse(elements));
+        assertFalse(trace.equals(reversed));
+        assertNotEquals(trace.getFingerprint(), reversed.getFingerprint());
+    }
+
+    private static void assertTraceEquals(Trace actual, Trace expected)
+    {
+        assertTrue(actual.equals(expected));
+        assertEquals(actual.getFingerprint(), expected.getFingerprint());
+        assertEquals(actual.hashCode(), expected.hashCode());
+    }
+
+    private static int intern(FrameTable table, String line)
+    {
+        FrameBounds bounds = new FrameBounds();
+        scanStackElement(line, bounds);
+        return table.intern(line, bounds);
+    }
+
+    private static StackElement element(String line)
+    {
+        return StackParser.extractStackElement(line);
+    }
+}
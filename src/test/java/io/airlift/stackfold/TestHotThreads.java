@@ -0,0 +1,156 @@
+package io.airlift.stackfold;
+
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.List;
+
+import static io.airlift.stackfold.StackFolder.streamStackTrace;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestHotThreads
+{
+    private static final String FIRST = "" +
+            "2024-03-01 10:15:30\n" +
+            "Full thread dump OpenJDK 64-Bit Server VM (21.0.2+13-58 mixed mode, sharing):\n" +
+            "\n" +
+            "\"main\" #1 [20710] prio=5 os_prio=0 cpu=1200.50ms elapsed=100.00s tid=0x00007f1a5c02a000 nid=20710 waiting on condition  [0x00007f1a62f4e000]\n" +
+            "   java.lang.Thread.State: TIMED_WAITING (sleeping)\n" +
+            "\tat java.lang.Thread.sleep0(java.base@21.0.2/Native Method)\n" +
+            "\tat com.example.Main.main(Main.java:10)\n" +
+            "\n" +
+            "\"worker-1\" #30 [20740] daemon prio=5 os_prio=0 cpu=5000.00ms elapsed=90.00s tid=0x00007f1a5c300000 nid=20740 runnable  [0x00007f1a3c0fd000]\n" +
+            "   java.lang.Thread.State: RUNNABLE\n" +
+            "\tat com.example.Hash.compute(Hash.java:42)\n" +
+            "\tat com.example.Worker.run(Worker.java:20)\n" +
+            "\n" +
+            "\"worker-2\" #31 [20741] daemon prio=5 os_prio=0 cpu=3000.00ms elapsed=90.00s tid=0x00007f1a5c301000 nid=20741 runnable  [0x00007f1a3c0fe000]\n" +
+            "   java.lang.Thread.State: RUNNABLE\n" +
+            "\tat com.example.Hash.compute(Hash.java:42)\n" +
+            "\tat com.example.Worker.run(Worker.java:20)\n" +
+            "\n" +
+            "\"io-1\" #40 daemon prio=5 os_prio=0 cpu=100.00ms elapsed=80.00s allocated=12K defined_classes=3 tid=0x00007f1a5c400000 nid=0x5104 runnable  [0x00007f1a3c0ff000]\n" +
+            "   java.lang.Thread.State: RUNNABLE\n" +
+            "\tat sun.nio.ch.EPoll.wait(java.base@21.0.2/Native Method)\n" +
+            "\tat com.example.Io.poll(Io.java:7)\n" +
+            "\n" +
+            "\"worker-0\" #29 [20739] daemon prio=5 os_prio=0 cpu=2000.00ms elapsed=50.00s tid=0x00007f1a5c2ff000 nid=20739 runnable  [0x00007f1a3c0fc000]\n" +
+            "   java.lang.Thread.State: RUNNABLE\n" +
+            "\tat com.example.Hash.compute(Hash.java:42)\n" +
+            "\tat com.example.Worker.run(Worker.java:20)\n" +
+            "\n";
+
+    private static final String SECOND = "" +
+            "2024-03-01 10:15:40\n" +
+            "Full thread dump OpenJDK 64-Bit Server VM (21.0.2+13-58 mixed mode, sharing):\n" +
+            "\n" +
+            "\"main\" #1 [20710] prio=5 os_prio=0 cpu=1200.60ms elapsed=110.00s tid=0x00007f1a5c02a000 nid=20710 waiting on condition  [0x00007f1a62f4e000]\n" +
+            "   java.lang.Thread.State: TIMED_WAITING (sleeping)\n" +
+            "\tat java.lang.Thread.sleep0(java.base@21.0.2/Native Method)\n" +
+            "\tat com.example.Main.main(Main.java:10)\n" +
+            "\n" +
+            "\"worker-1\" #30 [20740] daemon prio=5 os_prio=0 cpu=14000.00ms elapsed=100.00s tid=0x00007f1a5c300000 nid=20740 runnable  [0x00007f1a3c0fd000]\n" +
+            "   java.lang.Thread.State: RUNNABLE\n" +
+            "\tat com.example.Hash.compute(Hash.java:42)\n" +
+            "\tat com.example.Worker.run(Worker.java:20)\n" +
+            "\n" +
+            "\"worker-2\" #31 [20741] daemon prio=5 os_prio=0 cpu=9000.00ms elapsed=100.00s tid=0x00007f1a5c301000 nid=20741 runnable  [0x00007f1a3c0fe000]\n" +
+            "   java.lang.Thread.State: RUNNABLE\n" +
+            "\tat com.example.Hash.compute(Hash.java:42)\n" +
+            "\tat com.example.Worker.run(Worker.java:20)\n" +
+            "\n" +
+            "\"io-1\" #40 daemon prio=5 os_prio=0 cpu=600.00ms elapsed=90.00s allocated=20K defined_classes=3 tid=0x00007f1a5c400000 nid=0x5104 runnable  [0x00007f1a3c0ff000]\n" +
+            "   java.lang.Thread.State: RUNNABLE\n" +
+            "\tat sun.nio.ch.EPoll.wait(java.base@21.0.2/Native Method)\n" +
+            "\tat com.example.Io.poll(Io.java:7)\n" +
+            "\n" +
+            // worker-0 ended and a new thread got its ids, so its cpu went up but its elapsed went down
+            "\"worker-3\" #50 [20739] daemon prio=5 os_prio=0 cpu=2500.00ms elapsed=1.00s tid=0x00007f1a5c2ff000 nid=20739 runnable  [0x00007f1a3c0fc000]\n" +
+            "   java.lang.Thread.State: RUNNABLE\n" +
+            "\tat com.example.Hash.compute(Hash.java:42)\n" +
+            "\tat com.example.Worker.run(Worker.java:20)\n" +
+            "\n";
+
+    @Test
+    public void testParseHeaders()
+    {
+        List<Stack> stacks = ImmutableList.copyOf(streamStackTrace(new StringReader(FIRST), StackFoldings.empty()));
+        assertEquals(stacks.size(), 5);
+
+        Stack main = stacks.get(0);
+        assertEquals(main.getName(), "main");
+        assertEquals(main.getThreadId(), "0x00007f1a5c02a000");
+        assertEquals(main.getNativeId(), "20710");
+        assertEquals(main.getState(), Thread.State.TIMED_WAITING);
+        assertEquals(main.getCpuNanos(), MILLISECONDS.toNanos(1200) + 500_000);
+        assertEquals(main.getElapsedNanos(), SECONDS.toNanos(100));
+        assertEquals(main.getTrace().size(), 2);
+
+        Stack worker = stacks.get(1);
+        assertTrue(worker.isDaemon());
+        assertEquals(worker.getPriority(), "5");
+
+        Stack io = stacks.get(3);
+        assertEquals(io.getNativeId(), "0x5104");
+        assertEquals(io.getCpuNanos(), MILLISECONDS.toNanos(100));
+
+        // dumps of Java 8 have no times
+        Stack old = StackFolder.streamStackTrace(new StringReader("" +
+                "\"Signal Dispatcher\" #2 daemon prio=5 tid=0x00007fda14895800 nid=0x5003 runnable [0x0000000000000000]\n" +
+                "   java.lang.Thread.State: RUNNABLE\n"), StackFoldings.empty()).next();
+        assertEquals(old.getNativeId(), "0x5003");
+        assertEquals(old.getCpuNanos(), -1);
+        assertEquals(old.getElapsedNanos(), -1);
+    }
+
+    @Test
+    public void testHotThreads()
+            throws Exception
+    {
+        HotThreads hotThreads = new HotThreads();
+        hotThreads.addDumps(new StringReader(FIRST + SECOND), StackFoldings.empty());
+        assertEquals(hotThreads.getSnapshotCount(), 2);
+        assertEquals(hotThreads.getIntervalNanos(), SECONDS.toNanos(10));
+
+        List<HotThreads.HotGroup> hotGroups = hotThreads.getHotGroups();
+        assertEquals(hotGroups.size(), 3);
+
+        // the workers used 9 s and 6 s, and the 500 ms of the thread that reused the ids of worker-0 are not counted
+        HotThreads.HotGroup workers = hotGroups.get(0);
+        assertEquals(workers.getCpuNanos(), SECONDS.toNanos(15));
+        assertEquals(workers.getGroup().getThreadCount(), 2);
+        assertTrue(workers.getGroup().getNamePatterns().stream().allMatch(namePattern -> namePattern.getFirstName().equals("worker-1")));
+        assertEquals(workers.getGroup().getTrace().get(0).getMethod(), "compute");
+
+        assertEquals(hotGroups.get(1).getCpuNanos(), MILLISECONDS.toNanos(500));
+        assertEquals(hotGroups.get(2).getCpuNanos(), MICROSECONDS.toNanos(100));
+        assertEquals(hotThreads.getCpuNanos(), SECONDS.toNanos(15) + MILLISECONDS.toNanos(500) + MICROSECONDS.toNanos(100));
+
+        // the same dumps added one at a time
+        HotThreads separate = new HotThreads();
+        separate.addSnapshot(streamStackTrace(new StringReader(FIRST), StackFoldings.empty()));
+        separate.addSnapshot(streamStackTrace(new StringReader(SECOND), StackFoldings.empty()));
+        assertEquals(separate.getCpuNanos(), hotThreads.getCpuNanos());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PrintStream stream = new PrintStream(out, false, UTF_8.name())) {
+            StackFolder.renderHotThreads(hotThreads, 1, stream);
+        }
+        assertEquals(out.toString(UTF_8.name()), "" +
+                "2 dumps over 10.0 s, 15.5 s of CPU (1.55 cores)\n" +
+                "\n" +
+                "15000.0 ms CPU (96.8%, 1.50 cores)\n" +
+                "worker-* (2 threads)\n" +
+                "    at com.example.Hash.compute(Hash.java:42)\n" +
+                "    at com.example.Worker.run(Worker.java:20)\n" +
+                "\n");
+    }
+}
@@ -0,0 +1,224 @@
+package io.airlift.stackfold;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.testng.annotations.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestJcmdThreadDump
+{
+    private static final String JSON = "" +
+            "{\n" +
+            "  \"threadDump\": {\n" +
+            "    \"processId\": \"4242\",\n" +
+            "    \"time\": \"2024-03-01T10:15:30.123Z\",\n" +
+            "    \"runtimeVersion\": \"21.0.2+13-58\",\n" +
+            "    \"threadContainers\": [\n" +
+            "      {\n" +
+            "        \"container\": \"<root>\",\n" +
+            "        \"parent\": null,\n" +
+            "        \"owner\": null,\n" +
+            "        \"threads\": [\n" +
+            "          {\n" +
+            "            \"tid\": \"1\",\n" +
+            "            \"name\": \"main \\\"quoted\\\" \\u00e9\",\n" +
+            "            \"stack\": [\n" +
+            "              \"java.base\\/java.lang.Thread.sleep0(Native Method)\",\n" +
+            "              \"java.base\\/java.lang.Thread.sleep(Thread.java:509)\",\n" +
+            "              \"app\\/\\/com.example.Main.main(Main.java:10)\"\n" +
+            "            ]\n" +
+            "          }\n" +
+            "        ],\n" +
+            "        \"threadCount\": \"1\"\n" +
+            "      },\n" +
+            "      {\n" +
+            "        \"container\": \"java.util.concurrent.ThreadPerTaskExecutor@6d06d69c\",\n" +
+            "        \"parent\": \"<root>\",\n" +
+            "        \"owner\": null,\n" +
+            "        \"threads\": [\n" +
+            "          {\n" +
+            "            \"tid\": \"31\",\n" +
+            "            \"name\": \"\",\n" +
+            "            \"state\": \"WAITING\",\n" +
+            "            \"virtual\": true,\n" +
+            "            \"stack\": [\n" +
+            "              \"java.base\\/java.lang.VirtualThread.park(VirtualThread.java:582)\",\n" +
+            "              \"java.base\\/java.util.concurrent.locks.LockSupport.park(LockSupport.java:369)\",\n" +
+            "              \"com.example.Handler$$Lambda\\/0x000001d0c1003e88.run(Unknown Source)\",\n" +
+            "              \"java.base\\/java.lang.VirtualThread.run(VirtualThread.java:309)\"\n" +
+            "            ]\n" +
+            "          },\n" +
+            "          {\n" +
+            "            \"tid\": \"32\",\n" +
+            "            \"name\": \"\",\n" +
+            "            \"state\": \"WAITING\",\n" +
+            "            \"virtual\": true,\n" +
+            "            \"stack\": [\n" +
+            "              \"java.base\\/java.lang.VirtualThread.park(VirtualThread.java:582)\",\n" +
+            "              \"java.base\\/java.util.concurrent.locks.LockSupport.park(LockSupport.java:369)\",\n" +
+            "              \"com.example.Handler$$Lambda\\/0x000001d0c1003e88.run(Unknown Source)\",\n" +
+            "              \"java.base\\/java.lang.VirtualThread.run(VirtualThread.java:309)\"\n" +
+            "            ]\n" +
+            "          }\n" +
+            "        ],\n" +
+            "        \"threadCount\": \"2\"\n" +
+            "      }\n" +
+            "    ]\n" +
+            "  }\n" +
+            "}\n";
+
+    private static final String TEXT = "" +
+            "4242\n" +
+            "2024-03-01T10:15:30.123Z\n" +
+            "21.0.2+13-58\n" +
+            "\n" +
+            "#1 \"main\"\n" +
+            "      java.base/java.lang.Thread.sleep0(Native Method)\n" +
+            "      java.base/java.lang.Thread.sleep(Thread.java:509)\n" +
+            "      app//com.example.Main.main(Main.java:10)\n" +
+            "\n" +
+            "#31 \"\" virtual\n" +
+            "      java.base/java.lang.VirtualThread.park(VirtualThread.java:582)\n" +
+            "      java.base/java.util.concurrent.locks.LockSupport.park(LockSupport.java:369)\n" +
+            "      com.example.Handler$$Lambda/0x000001d0c1003e88.run(Unknown Source)\n" +
+            "      java.base/java.lang.VirtualThread.run(VirtualThread.java:309)\n" +
+            "\n" +
+            "#32 \"\" virtual\n" +
+            "      java.base/java.lang.VirtualThread.park(VirtualThread.java:582)\n" +
+            "      java.base/java.util.concurrent.locks.LockSupport.park(LockSupport.java:369)\n" +
+            "      com.example.Handler$$Lambda/0x000001d0c1003e88.run(Unknown Source)\n" +
+            "      java.base/java.lang.VirtualThread.run(VirtualThread.java:309)\n" +
+            "\n";
+
+    private static final StackElement MAIN = new StackElement("com.example.Main", "main", "Main.java", 10, ImmutableList.of());
+    private static final StackElement LAMBDA = new StackElement("com.example.Handler$$Lambda/0x000001d0c1003e88", "run", "Unknown Source", -1, ImmutableList.of());
+    private static final StackElement PARK = new StackElement("java.lang.VirtualThread", "park", "VirtualThread.java", 582, ImmutableList.of());
+    private static final StackElement FOLDED_PARK = new StackElement("java.lang.VirtualThread", "park", null, -1, ImmutableList.of());
+
+    @Test
+    public void testIsJcmdDump()
+            throws Exception
+    {
+        assertTrue(JcmdThreadDump.isJcmdDump(JSON));
+        assertTrue(JcmdThreadDump.isJcmdDump(TEXT));
+        assertFalse(JcmdThreadDump.isJcmdDump("2024-03-01 10:15:30\nFull thread dump OpenJDK 64-Bit Server VM:\n"));
+        assertFalse(JcmdThreadDump.isJcmdDump("{\"other\": 1}"));
+
+        BufferedReader reader = new BufferedReader(new StringReader(JSON));
+        assertTrue(JcmdThreadDump.isJcmdDump(reader));
+        assertEquals(reader.readLine(), "{");
+
+        InputStream in = new ByteArrayInputStream(TEXT.getBytes(UTF_8));
+        assertTrue(JcmdThreadDump.isJcmdDump(in));
+        assertEquals(in.read(), '4');
+        assertFalse(JcmdThreadDump.isJcmdDump(new ByteArrayInputStream(new byte[] {'F', 'L', 'R', 0})));
+
+        Path file = Files.createTempFile("thread-dump", ".json");
+        try {
+            Files.write(file, JSON.getBytes(UTF_8));
+            try (FileChannel channel = FileChannel.open(file)) {
+                assertTrue(JcmdThreadDump.isJcmdDump(channel));
+                assertEquals(channel.position(), 0);
+            }
+        }
+        finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testGroupByContainer()
+            throws Exception
+    {
+        Map<String, TraceGroups> containers = JcmdThreadDump.groupByContainer(new StringReader(JSON), StackFoldings.empty());
+        assertEquals(containers.keySet(), ImmutableSet.of(JcmdThreadDump.ROOT_CONTAINER, "java.util.concurrent.ThreadPerTaskExecutor@6d06d69c"));
+
+        TraceGroup main = getOnlyGroup(containers.get(JcmdThreadDump.ROOT_CONTAINER));
+        assertEquals(main.getTrace().get(main.getTrace().size() - 1), MAIN);
+        assertEquals(main.getTrace().get(0).getFile(), "Native Method");
+        assertEquals(main.getNamePatterns().iterator().next().getPattern(), ThreadNamePatterns.toPattern("main \"quoted\" \u00e9"));
+
+        TraceGroup executor = getOnlyGroup(containers.get("java.util.concurrent.ThreadPerTaskExecutor@6d06d69c"));
+        assertEquals(executor.getThreadCount(), 2);
+        assertEquals(executor.getTrace().get(0), PARK);
+        assertEquals(executor.getTrace().get(2), LAMBDA);
+        assertEquals(executor.getStateCounts().keySet(), ImmutableSet.of(Thread.State.WAITING));
+        assertEquals(containers.get(JcmdThreadDump.ROOT_CONTAINER).getSnapshotCount(), 1);
+    }
+
+    @Test
+    public void testTextMatchesJson()
+            throws Exception
+    {
+        // fold the park frames of the virtual threads
+        StackFoldings foldings = StackFoldings.compile(ImmutableList.of(new StackFolding(
+                ImmutableList.of(
+                        new StackElement("java.lang.VirtualThread", "park", null, -1, ImmutableList.of()),
+                        new StackElement("java.util.concurrent.locks.LockSupport", "park", null, -1, ImmutableList.of())),
+                FOLDED_PARK)));
+
+        TraceGroups json = JcmdThreadDump.groupStacks(new StringReader(JSON), foldings);
+        TraceGroups text = JcmdThreadDump.groupStacks(new StringReader(TEXT), foldings);
+        assertEquals(json.getThreadCount(), 3);
+        assertEquals(json.getSnapshotCount(), 1);
+        assertEquals(text.getThreadCount(), 3);
+        assertEquals(text.getGroups().size(), 2);
+        for (TraceGroup group : json.getGroups()) {
+            assertTrue(text.getGroups().stream().anyMatch(other -> other.getTrace().equals(group.getTrace()) && other.getThreadCount() == group.getThreadCount()));
+        }
+        assertTrue(json.getGroups().stream().anyMatch(group -> group.getTrace().get(0).equals(FOLDED_PARK) && group.getTrace().size() == 3));
+
+        StackFoldings withStats = foldings.withStats();
+        JcmdThreadDump.groupStacks(new StringReader(TEXT), withStats);
+        assertEquals(withStats.getStats().getLineCount(), TEXT.chars().filter(c -> c == '\n').count());
+        assertEquals(withStats.getStats().getThreadCount(), 3);
+        assertTrue(withStats.getStats().getParseNanos() > 0);
+
+        withStats = foldings.withStats();
+        JcmdThreadDump.groupStacks(new StringReader(JSON), withStats);
+        assertEquals(withStats.getStats().getLineCount(), 0);
+        assertEquals(withStats.getStats().getThreadCount(), 3);
+        assertTrue(withStats.getStats().getParseNanos() > 0);
+    }
+
+    @Test
+    public void testTextState()
+            throws Exception
+    {
+        String text = "" +
+                "4242\n" +
+                "2024-03-01T10:15:30.123Z\n" +
+                "25+36-3489\n" +
+                "\n" +
+                "#31 \"\" virtual WAITING 2024-03-01T10:15:30.120Z\n" +
+                "      java.base/java.lang.VirtualThread.park(VirtualThread.java:582)\n" +
+                "\n" +
+                "#32 \"\" virtual WAITING\n" +
+                "      java.base/java.lang.VirtualThread.park(VirtualThread.java:582)\n" +
+                "\n";
+        TraceGroup group = getOnlyGroup(JcmdThreadDump.groupStacks(new StringReader(text), StackFoldings.empty()));
+        assertEquals(group.getThreadCount(), 2);
+        assertEquals(group.getStateCounts(), ImmutableMap.of(Thread.State.WAITING, 2L));
+        assertEquals(group.getTrace(), ImmutableList.of(PARK));
+    }
+
+    private static TraceGroup getOnlyGroup(TraceGroups groups)
+    {
+        assertEquals(groups.getGroups().size(), 1);
+        return groups.getGroups().iterator().next();
+    }
+}
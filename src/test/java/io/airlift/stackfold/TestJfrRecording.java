@@ -0,0 +1,160 @@
+package io.airlift.stackfold;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordingFile;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestJfrRecording
+{
+    private static final StackElement FOLDED_PARK = new StackElement("io.airlift.stackfold.TestJfrRecording", "parked", null, -1, ImmutableList.of());
+
+    // keeps the spin loop from being optimized away
+    private static volatile long sink;
+
+    private Path recording;
+
+    @BeforeClass
+    public void record()
+            throws Exception
+    {
+        recording = Files.createTempFile("stackfold", ".jfr");
+        try (Recording jfr = new Recording()) {
+            jfr.enable(JfrRecording.EXECUTION_SAMPLE).withPeriod(Duration.ofMillis(10));
+            jfr.enable(JfrRecording.THREAD_PARK).withThreshold(Duration.ZERO).withStackTrace();
+            jfr.start();
+
+            AtomicBoolean sampled = new AtomicBoolean();
+            Thread spinner = new Thread(() -> spin(sampled), "spinner-1");
+            Thread parker = new Thread(TestJfrRecording::park, "parker-1");
+            spinner.start();
+            parker.start();
+            parker.join();
+
+            // the sampler cannot walk every period, so spin until it has a sample of the spinner
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (!hasSpinSample(jfr) && System.nanoTime() < deadline) {
+                Thread.sleep(100);
+            }
+            sampled.set(true);
+            spinner.join();
+
+            jfr.stop();
+            jfr.dump(recording);
+        }
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void deleteRecording()
+            throws Exception
+    {
+        Files.deleteIfExists(recording);
+    }
+
+    @Test
+    public void testIsRecording()
+            throws Exception
+    {
+        assertTrue(JfrRecording.isRecording(recording));
+        Path text = Files.createTempFile("stack", ".txt");
+        try {
+            Files.write(text, "FL".getBytes());
+            assertFalse(JfrRecording.isRecording(text));
+        }
+        finally {
+            Files.delete(text);
+        }
+    }
+
+    @Test
+    public void testGroupByEventType()
+            throws Exception
+    {
+        // fold the park frames below the test method
+        StackFoldings foldings = StackFoldings.compile(ImmutableList.of(new StackFolding(
+                ImmutableList.of(
+                        new StackElement("java.util.concurrent.locks.LockSupport", "parkNanos", null, -1, ImmutableList.of()),
+                        new StackElement("io.airlift.stackfold.TestJfrRecording", "park", null, -1, ImmutableList.of())),
+                FOLDED_PARK)));
+        Map<String, TraceGroups> groups = JfrRecording.groupByEventType(recording, foldings, ImmutableSet.of(JfrRecording.EXECUTION_SAMPLE, JfrRecording.THREAD_PARK));
+        assertEquals(groups.keySet(), ImmutableSet.of(JfrRecording.EXECUTION_SAMPLE, JfrRecording.THREAD_PARK));
+
+        TraceGroups samples = groups.get(JfrRecording.EXECUTION_SAMPLE);
+        assertTrue(samples.getGroups().stream().anyMatch(group -> hasNamePattern(group, "spinner-1") &&
+                group.getStateCounts().containsKey(Thread.State.RUNNABLE) &&
+                group.getTrace().stream().anyMatch(frame -> frame.getMethod().equals("spin"))));
+
+        TraceGroups parks = groups.get(JfrRecording.THREAD_PARK);
+        TraceGroup parked = parks.getGroups().stream()
+                .filter(group -> group.getTrace().contains(FOLDED_PARK))
+                .findFirst()
+                .orElseThrow(AssertionError::new);
+        assertEquals(parked.getThreadCount(), 20);
+        assertTrue(hasNamePattern(parked, "parker-1"));
+        assertEquals(parked.getStateCounts().keySet(), ImmutableSet.of(Thread.State.TIMED_WAITING));
+
+        TraceGroups all = JfrRecording.groupStacks(recording, foldings, ImmutableSet.of(JfrRecording.EXECUTION_SAMPLE, JfrRecording.THREAD_PARK));
+        assertEquals(all.getThreadCount(), samples.getThreadCount() + parks.getThreadCount());
+        assertEquals(all.getSnapshotCount(), 1);
+
+        StackFoldings withStats = foldings.withStats();
+        JfrRecording.groupStacks(recording, withStats, ImmutableSet.of(JfrRecording.EXECUTION_SAMPLE, JfrRecording.THREAD_PARK));
+        assertEquals(withStats.getStats().getThreadCount(), all.getThreadCount());
+        assertTrue(withStats.getStats().getParseNanos() > 0);
+    }
+
+    private static boolean hasNamePattern(TraceGroup group, String name)
+    {
+        String pattern = ThreadNamePatterns.toPattern(name);
+        return group.getNamePatterns().stream().anyMatch(namePattern -> namePattern.getPattern().equals(pattern));
+    }
+
+    private static boolean hasSpinSample(Recording jfr)
+            throws Exception
+    {
+        Path copy = Files.createTempFile("stackfold", ".jfr");
+        try (Recording snapshot = jfr.copy(false)) {
+            snapshot.dump(copy);
+            return RecordingFile.readAllEvents(copy).stream()
+                    .filter(event -> event.getEventType().getName().equals(JfrRecording.EXECUTION_SAMPLE))
+                    .filter(event -> event.getStackTrace() != null)
+                    .flatMap(event -> event.getStackTrace().getFrames().stream())
+                    .anyMatch(frame -> frame.getMethod().getName().equals("spin"));
+        }
+        finally {
+            Files.deleteIfExists(copy);
+        }
+    }
+
+    private static void spin(AtomicBoolean sampled)
+    {
+        // calls and allocations give the sampler walkable frames, which a tight arithmetic loop does not
+        long value = 0;
+        while (!sampled.get()) {
+            value = value * 31 + Long.toString(value).length();
+        }
+        sink = value;
+    }
+
+    private static void park()
+    {
+        for (int i = 0; i < 20; i++) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package io.airlift.stackfold;
+
+import com.google.common.collect.ImmutableList;
+import io.airlift.stackfold.LineScanner.LineType;
+import org.testng.annotations.Test;
+
+import static io.airlift.stackfold.LineScanner.classify;
+import static io.airlift.stackfold.LineScanner.isOwnableSynchronizersHeader;
+import static io.airlift.stackfold.LineScanner.parseLocked;
+import static io.airlift.stackfold.LineScanner.parseOwnableSynchronizer;
+import static io.airlift.stackfold.LineScanner.parseReleasedMonitor;
+import static io.airlift.stackfold.LineScanner.parseStackElement;
+import static io.airlift.stackfold.LineScanner.parseThreadState;
+import static io.airlift.stackfold.LineScanner.parseWaitOn;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestLineScanner
+{
+    @Test
+    public void testClassify()
+    {
+        assertEquals(classify(""), LineType.BLANK);
+        assertEquals(classify(" \t"), LineType.BLANK);
+        assertEquals(classify("\"main\" prio=5 tid=0x00007fda14801000 nid=0x1703 runnable"), LineType.THREAD_INFO);
+        assertEquals(classify("   java.lang.Thread.State: RUNNABLE"), LineType.THREAD_STATE);
+        assertEquals(classify("\tat java.lang.Object.wait(Native Method)"), LineType.STACK_ELEMENT);
+        assertEquals(classify("\t- locked <0x000000015cf05320> (a java.lang.ref.Reference$Lock)"), LineType.LOCK_INFO);
+        assertEquals(classify("\t..."), LineType.STACK_ELEMENT);
+    }
+
+    @Test
+    public void testParseThreadState()
+    {
+        assertEquals(parseThreadState("   java.lang.Thread.State: RUNNABLE"), Thread.State.RUNNABLE);
+        assertEquals(parseThreadState("   java.lang.Thread.State: TIMED_WAITING (parking)"), Thread.State.TIMED_WAITING);
+        assertNull(parseThreadState("   java.lang.Thread.State: UNKNOWN"));
+    }
+
+    @Test
+    public void testParseStackElement()
+    {
+        assertStackElement("\tat java.lang.ref.ReferenceQueue.remove(ReferenceQueue.java:135)", "java.lang.ref.ReferenceQueue.remove(ReferenceQueue.java:135)");
+        assertStackElement("\tat sun.misc.Unsafe.park(Native Method)", "sun.misc.Unsafe.park(Native Method)");
+        assertStackElement("java.util.concurrent.ThreadPoolExecutor$Worker.run", "java.util.concurrent.ThreadPoolExecutor$Worker.run");
+        assertStackElement("\tat Foo$$Lambda$310/337431476.run(Unknown Source)  ", "Foo$$Lambda$310/337431476.run(Unknown Source)");
+        assertStackElement("\t...", "...");
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testParseInvalidStackElement()
+    {
+        parseStackElement("\tat NoMethod", ImmutableList.of());
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testParseInvalidLineNumber()
+    {
+        parseStackElement("\tat Foo.bar(Foo.java:x)", ImmutableList.of());
+    }
+
+    @Test
+    public void testParseLockInfo()
+    {
+        assertEquals(
+                parseWaitOn("\t- parking to wait for  <0x00000001523af848> (a java.util.concurrent.SynchronousQueue$TransferStack)").toString(),
+                new WaitOn("0x00000001523af848", "java.util.concurrent.SynchronousQueue$TransferStack").toString());
+        assertEquals(
+                parseLocked("\t- locked <0x000000015cf18eb8> (a java.io.BufferedInputStream)").toString(),
+                new Locked("0x000000015cf18eb8", "java.io.BufferedInputStream").toString());
+        assertNull(parseLocked("\t-  locked java.io.BufferedInputStream@48ccad19"));
+        assertNull(parseLocked("\t- locked <> (a java.io.BufferedInputStream)"));
+        assertNull(parseWaitOn("\t- waiting on <0x000000015cf05320> (a java.lang.ref.Reference$Lock)"));
+
+        assertEquals(
+                parseWaitOn("\t- waiting to lock <0x000000076ab00020> (a com.example.Account)").toString(),
+                new WaitOn("0x000000076ab00020", "com.example.Account").toString());
+        assertEquals(
+                parseWaitOn("\t- waiting to re-lock in wait() <0x000000076ab00040> (a java.lang.Object)").toString(),
+                new WaitOn("0x000000076ab00040", "java.lang.Object").toString());
+        assertEquals(parseReleasedMonitor("\t- waiting on <0x000000015cf05320> (a java.lang.ref.Reference$Lock)"), "0x000000015cf05320");
+        assertNull(parseReleasedMonitor("\t- waiting on <no object reference available>"));
+        assertNull(parseReleasedMonitor("\t- locked <0x000000015cf18eb8> (a java.io.BufferedInputStream)"));
+
+        assertTrue(isOwnableSynchronizersHeader("   Locked ownable synchronizers:"));
+        assertEquals(
+                parseOwnableSynchronizer("\t- <0x000000076ab00030> (a java.util.concurrent.locks.ReentrantLock$NonfairSync)").toString(),
+                new Locked("0x000000076ab00030", "java.util.concurrent.locks.ReentrantLock$NonfairSync").toString());
+        assertNull(parseOwnableSynchronizer("\t- None"));
+    }
+
+    private static void assertStackElement(String line, String expected)
+    {
+        assertEquals(parseStackElement(line, ImmutableList.of()).prettyPrint(), expected);
+    }
+}
@@ -0,0 +1,148 @@
+package io.airlift.stackfold;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Resources;
+import io.airlift.stackfold.LockContention.LockState;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestLockContention
+{
+    @Test
+    public void testAnalyze()
+            throws Exception
+    {
+        List<Stack> stacks = ImmutableList.copyOf(new StackParser(Resources.readLines(Resources.getResource("locks.txt"), UTF_8).iterator(), StackFoldings.empty()));
+        LockContention contention = LockContention.analyze(stacks);
+
+        // the monitor released by Object.wait is not held by the waiter
+        Stack monitorWaiter = stack(stacks, "monitor-waiter");
+        assertTrue(monitorWaiter.getLocks().isEmpty());
+        assertNull(monitorWaiter.getWaitOn());
+
+        // ownable synchronizers are held locks
+        assertEquals(stack(stacks, "cache-owner").getLocks().stream().map(Locked::getLockId).collect(toList()), ImmutableList.of("0x000000076ab00030"));
+
+        List<LockState> contended = contention.getContendedLocks();
+        assertEquals(contended.size(), 3);
+        LockState cacheLock = contended.get(0);
+        assertEquals(cacheLock.getLockId(), "0x000000076ab00030");
+        assertEquals(cacheLock.getType(), "java.util.concurrent.locks.ReentrantLock$NonfairSync");
+        assertEquals(cacheLock.getOwner().getName(), "cache-owner");
+        assertEquals(names(cacheLock.getWaiters()), ImmutableList.of("cache-reader-1", "cache-reader-2", "cache-reader-3"));
+        assertEquals(contended.get(1).getWaiterCount(), 1);
+        assertEquals(contended.get(2).getWaiterCount(), 1);
+
+        // the idle worker waits on a condition nobody holds
+        LockState condition = contention.getLocks().stream()
+                .filter(lock -> lock.getLockId().equals("0x000000076ab00050"))
+                .findFirst()
+                .get();
+        assertNull(condition.getOwner());
+        assertEquals(condition.getWaiterCount(), 1);
+
+        assertEquals(contention.getDeadlocks().size(), 1);
+        assertEquals(names(contention.getDeadlocks().get(0)), ImmutableList.of("deadlock-1", "deadlock-2"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PrintStream stream = new PrintStream(out, false, UTF_8.name())) {
+            StackFolder.renderLockContention(contention, stream);
+        }
+        assertTrue(out.toString(UTF_8.name()).startsWith("" +
+                "Deadlock\n" +
+                "    \"deadlock-1\" waits for <0x000000076ab00020> (a com.example.Account)\n" +
+                "    \"deadlock-2\" waits for <0x000000076ab00010> (a com.example.Account)\n" +
+                "\n" +
+                "<0x000000076ab00030> (a java.util.concurrent.locks.ReentrantLock$NonfairSync) held by \"cache-owner\" with 3 waiters\n" +
+                "    at com.example.Cache.reload(Cache.java:88)\n" +
+                "    at com.example.Cache.get(Cache.java:40)\n" +
+                "    at java.lang.Thread.run(Thread.java:748)\n" +
+                "    waiting: cache-reader-1\n" +
+                "    waiting: cache-reader-2\n" +
+                "    waiting: cache-reader-3\n" +
+                "\n"));
+    }
+
+    @Test
+    public void testAnalyzeDumps()
+    {
+        // each dump alone has one waiter, together they would be a deadlock
+        String dumps = "" +
+                dump("transfer-1", "0x000000076ab00010", "0x000000076ab00020") +
+                dump("transfer-2", "0x000000076ab00020", "0x000000076ab00010");
+        List<LockContention> contentions = LockContention.analyzeDumps(new StringReader(dumps), StackFoldings.empty());
+        assertEquals(contentions.size(), 2);
+        for (LockContention contention : contentions) {
+            assertEquals(contention.getDeadlocks().size(), 0);
+            assertEquals(contention.getLocks().size(), 2);
+            assertEquals(contention.getContendedLocks().size(), 0);
+        }
+        assertEquals(LockContention.analyze(new StackParser(Splitter.on('\n').split(dumps).iterator(), StackFoldings.empty())).getDeadlocks().size(), 1);
+    }
+
+    @Test
+    public void testLongChain()
+    {
+        // thread i waits for a lock held by thread i + 1, and the last one closes the cycle
+        int threads = 100_000;
+        ImmutableList.Builder<Stack> stacks = ImmutableList.builder();
+        for (int i = 0; i < threads; i++) {
+            stacks.add(new Stack(
+                    "thread-" + i,
+                    false,
+                    "5",
+                    String.valueOf(i),
+                    "x",
+                    "waiting",
+                    Thread.State.BLOCKED,
+                    new WaitOn("lock-" + ((i + 1) % threads), "java.lang.Object"),
+                    Trace.copyOf(ImmutableList.of()),
+                    ImmutableList.of(new Locked("lock-" + i, "java.lang.Object"))));
+        }
+        LockContention contention = LockContention.analyze(stacks.build());
+        assertEquals(contention.getContendedLocks().size(), threads);
+        assertEquals(contention.getDeadlocks().size(), 1);
+        assertEquals(contention.getDeadlocks().get(0).size(), threads);
+    }
+
+    private static Stack stack(List<Stack> stacks, String name)
+    {
+        return stacks.stream()
+                .filter(stack -> stack.getName().equals(name))
+                .findFirst()
+                .get();
+    }
+
+    private static List<String> names(List<Stack> stacks)
+    {
+        return stacks.stream()
+                .map(Stack::getName)
+                .collect(toList());
+    }
+
+    private static String dump(String name, String locked, String waitingFor)
+    {
+        return "" +
+                "2019-03-04 11:22:33\n" +
+                "Full thread dump Java HotSpot(TM) 64-Bit Server VM (25.201-b09 mixed mode):\n" +
+                "\n" +
+                "\"" + name + "\" #20 prio=5 os_prio=0 tid=0x00007f8a3c001000 nid=0x4e21 waiting for monitor entry [0x00007f8a2b7f6000]\n" +
+                "   java.lang.Thread.State: BLOCKED (on object monitor)\n" +
+                "\tat com.example.Transfer.debit(Transfer.java:31)\n" +
+                "\t- waiting to lock <" + waitingFor + "> (a com.example.Account)\n" +
+                "\tat com.example.Transfer.run(Transfer.java:20)\n" +
+                "\t- locked <" + locked + "> (a com.example.Account)\n" +
+                "\n";
+    }
+}
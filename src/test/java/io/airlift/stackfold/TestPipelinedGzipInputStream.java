@@ -0,0 +1,110 @@
+package io.airlift.stackfold;
+
+import com.google.common.io.ByteStreams;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static io.airlift.stackfold.PipelinedGzipInputStream.decompressIfGzip;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestPipelinedGzipInputStream
+{
+    @Test
+    public void testRead()
+            throws Exception
+    {
+        byte[] data = randomText(1_000_000);
+        byte[] compressed = gzip(data);
+
+        for (int bufferSize : new int[] {1, 100, 64 * 1024}) {
+            for (int bufferCount : new int[] {1, 4}) {
+                try (InputStream in = new PipelinedGzipInputStream(new ByteArrayInputStream(compressed), bufferSize, bufferCount)) {
+                    assertEquals(ByteStreams.toByteArray(in), data);
+                    assertEquals(in.read(), -1);
+                }
+            }
+        }
+
+        // single byte reads
+        try (InputStream in = new PipelinedGzipInputStream(new ByteArrayInputStream(gzip(Arrays.copyOf(data, 1000))), 7, 2)) {
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(in.read(), data[i] & 0xFF);
+            }
+            assertEquals(in.read(), -1);
+        }
+    }
+
+    @Test
+    public void testDetect()
+            throws Exception
+    {
+        byte[] data = randomText(10_000);
+
+        InputStream plain = decompressIfGzip(new ByteArrayInputStream(data));
+        assertTrue(!(plain instanceof PipelinedGzipInputStream));
+        assertEquals(ByteStreams.toByteArray(plain), data);
+
+        try (InputStream compressed = decompressIfGzip(new ByteArrayInputStream(gzip(data)))) {
+            assertTrue(compressed instanceof PipelinedGzipInputStream);
+            assertEquals(ByteStreams.toByteArray(compressed), data);
+        }
+
+        assertEquals(ByteStreams.toByteArray(decompressIfGzip(new ByteArrayInputStream(new byte[] {0x1f}))), new byte[] {0x1f});
+    }
+
+    @Test
+    public void testTruncated()
+            throws Exception
+    {
+        byte[] data = randomText(100_000);
+        byte[] compressed = gzip(data);
+        byte[] truncated = Arrays.copyOf(compressed, compressed.length / 2);
+
+        try (InputStream in = new PipelinedGzipInputStream(new ByteArrayInputStream(truncated), 1024, 2)) {
+            ByteStreams.toByteArray(in);
+            fail("expected IOException");
+        }
+        catch (IOException e) {
+            assertEquals(e.getMessage(), "Failed to decompress gzip stream");
+        }
+    }
+
+    @Test
+    public void testCloseBeforeEnd()
+            throws Exception
+    {
+        InputStream in = new PipelinedGzipInputStream(new ByteArrayInputStream(gzip(randomText(1_000_000))), 1024, 2);
+        assertTrue(in.read() >= 0);
+        in.close();
+        in.close();
+    }
+
+    private static byte[] randomText(int size)
+    {
+        Random random = new Random(42);
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) ((random.nextInt(10) == 0) ? '\n' : 'a' + random.nextInt(26));
+        }
+        return data;
+    }
+
+    private static byte[] gzip(byte[] data)
+            throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,108 @@
+package io.airlift.stackfold;
+
+import io.airlift.stackfold.SyntheticThreadDump.Format;
+import org.testng.annotations.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.collect.Iterables.getOnlyElement;
+import static org.testng.Assert.assertEquals;
+
+public class TestRollingTraceGroups
+{
+    @Test
+    public void testWindow()
+    {
+        StackFoldings foldings = StackFoldings.compile(SyntheticThreadDump.loadDefaultFoldings());
+        List<TraceGroups> snapshots = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            TraceGroups snapshot = TraceGroups.groupStacks(new StackParser(SyntheticThreadDump.generate(Format.JSTACK, 200, i % 4).iterator(), foldings));
+            assertEquals(snapshot.getSnapshotCount(), 1);
+            snapshots.add(snapshot);
+        }
+
+        // one snapshot per second, with a window of five seconds
+        RollingTraceGroups window = new RollingTraceGroups(5000, 100);
+        for (int i = 0; i < snapshots.size(); i++) {
+            window.add(snapshots.get(i), i * 1000L);
+
+            TraceGroups expected = new TraceGroups();
+            for (TraceGroups snapshot : snapshots.subList(Math.max(0, i - 4), i + 1)) {
+                expected.merge(snapshot);
+            }
+            assertEquals(window.getSnapshotCount(), Math.min(i + 1, 5));
+            assertEquals(window.getGroups().getSnapshotCount(), expected.getSnapshotCount());
+            assertEquals(window.getGroups().getThreadCount(), expected.getThreadCount());
+            assertEquals(summarize(window.getGroups()), summarize(expected));
+        }
+
+        // a snapshot from before the window is ignored
+        window.add(snapshots.get(0), 0);
+        assertEquals(window.getSnapshotCount(), 5);
+        assertEquals(window.getGroups().getSnapshotCount(), 5);
+    }
+
+    @Test
+    public void testMaxSnapshots()
+    {
+        StackFoldings foldings = StackFoldings.compile(SyntheticThreadDump.loadDefaultFoldings());
+        TraceGroups snapshot = TraceGroups.groupStacks(new StackParser(SyntheticThreadDump.generate(Format.THREAD_MXBEAN, 50, 1).iterator(), foldings));
+        snapshot.addSnapshots(1);
+
+        RollingTraceGroups window = new RollingTraceGroups(Long.MAX_VALUE, 3);
+        for (int i = 0; i < 10; i++) {
+            window.add(snapshot, i);
+        }
+        assertEquals(window.getSnapshotCount(), 3);
+        assertEquals(window.getGroups().getSnapshotCount(), 3);
+        assertEquals(window.getGroups().getThreadCount(), 150);
+    }
+
+    @Test
+    public void testFirstNameAfterEviction()
+    {
+        RollingTraceGroups window = new RollingTraceGroups(Long.MAX_VALUE, 2);
+        window.add(snapshot("worker-1", "compute"), 0);
+        window.add(snapshot("io-1", "poll"), 1);
+        window.add(snapshot("worker-3", "compute"), 2);
+        assertEquals(window.getSnapshotCount(), 2);
+
+        // worker-1 left the window, so the only thread computing is worker-3
+        TraceGroup workers = window.getGroups().getGroupsByThreadCount().stream()
+                .filter(group -> group.getTrace().get(0).getMethod().equals("compute"))
+                .findFirst()
+                .get();
+        TraceGroup.NamePattern namePattern = getOnlyElement(workers.getNamePatterns());
+        assertEquals(namePattern.getCount(), 1);
+        assertEquals(namePattern.getFirstName(), "worker-3");
+    }
+
+    private static TraceGroups snapshot(String name, String method)
+    {
+        String dump = "" +
+                "\"" + name + "\" #30 daemon prio=5 tid=0x00007f1a5c300000 nid=0x5003 runnable [0x00007f1a3c0fd000]\n" +
+                "   java.lang.Thread.State: RUNNABLE\n" +
+                "\tat com.example.Worker." + method + "(Worker.java:20)\n" +
+                "\n";
+        TraceGroups groups = TraceGroups.groupStacks(StackFolder.streamStackTrace(new StringReader(dump), StackFoldings.empty()));
+        groups.addSnapshots(1);
+        return groups;
+    }
+
+    private static Map<String, String> summarize(TraceGroups groups)
+    {
+        Map<String, String> summary = new HashMap<>();
+        for (TraceGroup group : groups.getGroups()) {
+            StringBuilder counts = new StringBuilder().append(group.getThreadCount()).append(group.getStateCounts());
+            for (TraceGroup.NamePattern namePattern : group.getNamePatterns()) {
+                counts.append(' ').append(namePattern.getPattern()).append('=').append(namePattern.getCount());
+            }
+            summary.put(group.getTrace().toString(), counts.toString());
+        }
+        return summary;
+    }
+}
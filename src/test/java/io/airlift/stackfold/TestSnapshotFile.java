@@ -0,0 +1,172 @@
+package io.airlift.stackfold;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Resources;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static io.airlift.stackfold.StackFolder.loadFolding;
+import static io.airlift.stackfold.StackFolder.streamStackTrace;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestSnapshotFile
+{
+    @Test
+    public void testRoundTrip()
+            throws Exception
+    {
+        StackFoldings foldings = StackFoldings.compile(loadFolding(Resources.readLines(Resources.getResource("folding.txt"), UTF_8)));
+        List<Stack> first = readStacks("stack.txt", foldings);
+        List<Stack> second = readStacks("thread_mxbean_stack.txt", foldings);
+
+        Path file = Files.createTempFile("snapshots", ".bin");
+        try {
+            Files.delete(file);
+            SnapshotFile.append(file, 1000, first.iterator());
+            SnapshotFile.append(file, 2000, second.iterator());
+            assertTrue(SnapshotFile.isSnapshotFile(file));
+
+            try (SnapshotFile snapshots = SnapshotFile.open(file)) {
+                assertEquals(snapshots.getSnapshotCount(), 2);
+                assertEquals(snapshots.getTimeMillis(0), 1000);
+                assertEquals(snapshots.getTimeMillis(1), 2000);
+                assertEquals(snapshots.getThreadCount(0), first.size());
+                assertEquals(snapshots.getThreadCount(1), second.size());
+
+                assertStacksEqual(snapshots.readStacks(0), first);
+                assertStacksEqual(snapshots.readStacks(1), second);
+
+                TraceGroups groups = snapshots.readGroups(1);
+                assertEquals(groups.getSnapshotCount(), 1);
+                assertEquals(render(groups), render(TraceGroups.groupStacks(second)));
+            }
+
+            TraceGroups all = StackFolder.groupStackTrace(file, UTF_8, StackFoldings.empty());
+            assertEquals(all.getThreadCount(), first.size() + second.size());
+            assertEquals(all.getSnapshotCount(), 2);
+            TraceGroups expected = TraceGroups.groupStacks(first);
+            expected.merge(TraceGroups.groupStacks(second));
+            assertEquals(render(all), render(expected));
+        }
+        finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testThreadTimes()
+            throws Exception
+    {
+        List<Stack> stacks = ImmutableList.copyOf(streamStackTrace(new StringReader("" +
+                "\"worker-1\" #30 [20740] daemon prio=5 os_prio=0 cpu=5000.50ms elapsed=90.00s tid=0x00007f1a5c300000 nid=20740 runnable  [0x00007f1a3c0fd000]\n" +
+                "   java.lang.Thread.State: RUNNABLE\n" +
+                "\tat com.example.Hash.compute(Hash.java:42)\n" +
+                "\n" +
+                "\"Signal Dispatcher\" #2 daemon prio=5 tid=0x00007fda14895800 nid=0x5003 runnable [0x0000000000000000]\n" +
+                "   java.lang.Thread.State: RUNNABLE\n" +
+                "\n"), StackFoldings.empty()));
+        assertEquals(stacks.get(0).getCpuNanos(), MILLISECONDS.toNanos(5000) + 500_000);
+        assertEquals(stacks.get(1).getCpuNanos(), -1);
+
+        Path file = Files.createTempFile("snapshots", ".bin");
+        try {
+            Files.delete(file);
+            SnapshotFile.append(file, 1000, stacks.iterator());
+            try (SnapshotFile snapshots = SnapshotFile.open(file)) {
+                assertEquals(snapshots.readStacks(0), stacks);
+            }
+        }
+        finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testInvalidFile()
+            throws Exception
+    {
+        Path file = Files.createTempFile("snapshots", ".bin");
+        try {
+            Files.write(file, Resources.toByteArray(Resources.getResource("stack.txt")));
+            assertFalse(SnapshotFile.isSnapshotFile(file));
+            assertOpenFails(file);
+
+            Files.delete(file);
+            SnapshotFile.append(file, 0, readStacks("stack.txt", StackFoldings.empty()).iterator());
+            byte[] bytes = Files.readAllBytes(file);
+            Files.write(file, Arrays.copyOf(bytes, bytes.length - 1));
+            assertTrue(SnapshotFile.isSnapshotFile(file));
+            assertOpenFails(file);
+
+            // the first version had no thread times
+            bytes[7] = 1;
+            Files.write(file, bytes);
+            assertOpenFails(file);
+            try {
+                SnapshotFile.append(file, 0, readStacks("stack.txt", StackFoldings.empty()).iterator());
+                fail("expected IOException");
+            }
+            catch (IOException expected) {
+            }
+        }
+        finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void assertOpenFails(Path file)
+    {
+        try (SnapshotFile ignored = SnapshotFile.open(file)) {
+            fail("expected IOException");
+        }
+        catch (IOException expected) {
+        }
+    }
+
+    private static void assertStacksEqual(List<Stack> actual, List<Stack> expected)
+    {
+        // wait on and locks have no equals, and the string form covers all fields but the trace
+        assertEquals(actual.size(), expected.size());
+        for (int i = 0; i < actual.size(); i++) {
+            Stack stack = actual.get(i);
+            assertEquals(stack.toString(), expected.get(i).toString());
+            assertEquals(stack.getTrace(), expected.get(i).getTrace());
+            assertEquals(stack.getLocks().toString(), expected.get(i).getLocks().toString());
+            for (int position = 0; position < stack.getTrace().size(); position++) {
+                assertEquals(stack.getTrace().get(position).prettyPrint(), expected.get(i).getTrace().get(position).prettyPrint());
+            }
+        }
+    }
+
+    private static List<Stack> readStacks(String resource, StackFoldings foldings)
+            throws IOException
+    {
+        try (Reader reader = Resources.asCharSource(Resources.getResource(resource), UTF_8).openStream()) {
+            return ImmutableList.copyOf(streamStackTrace(reader, foldings));
+        }
+    }
+
+    private static String render(TraceGroups groups)
+            throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PrintStream stream = new PrintStream(out, false, UTF_8.name())) {
+            StackFolder.renderStacks(groups, stream);
+        }
+        return out.toString(UTF_8.name());
+    }
+}
@@ -0,0 +1,204 @@
+package io.airlift.stackfold;
+
+import com.google.common.base.Joiner;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Resources;
+import io.airlift.stackfold.StackFolder.CollapsedPrefix;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestStackFoldServer
+{
+    private StackFoldings foldings;
+    private byte[] dump;
+    private TraceGroups expected;
+    private StackFoldServer server;
+
+    @BeforeClass
+    public void setUp()
+            throws Exception
+    {
+        foldings = StackFoldings.compile(StackFolder.loadDefaultFolding());
+        List<String> lines = Resources.readLines(Resources.getResource("stack.txt"), UTF_8);
+        dump = Joiner.on('\n').join(lines).getBytes(UTF_8);
+        expected = StackFolder.groupStackTrace(new StringReader(new String(dump, UTF_8)), foldings);
+        server = new StackFoldServer(foldings, 0, 4);
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void tearDown()
+    {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testRender()
+            throws Exception
+    {
+        ByteArrayOutputStream stacks = new ByteArrayOutputStream();
+        StackFolder.renderStacks(expected, new PrintStream(stacks, false, UTF_8.name()));
+        assertEquals(post("/stacks", dump), new Response(200, stacks.toString(UTF_8.name())));
+
+        StringWriter collapsed = new StringWriter();
+        StackFolder.renderCollapsed(expected, CollapsedPrefix.NAME_PATTERN, collapsed);
+        assertEquals(post("/collapsed?prefix=names", dump), new Response(200, collapsed.toString()));
+
+        StringWriter top = new StringWriter();
+        StackFolder.renderTopStacks(expected, 2, top);
+        assertEquals(post("/top?limit=2", dump), new Response(200, top.toString()));
+
+        assertTrue(post("/samples", dump).body.startsWith("19 samples in 1 snapshots\n"));
+        assertEquals(post("/locks", dump), new Response(200, ""));
+
+        // gzip bodies are decompressed
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(dump);
+        }
+        assertEquals(post("/stacks", compressed.toByteArray()), new Response(200, stacks.toString(UTF_8.name())));
+    }
+
+    @Test
+    public void testLocksOfSeveralDumps()
+            throws Exception
+    {
+        // each dump has one waiter, together they would be a deadlock
+        String dumps = "" +
+                lockDump("t1", "0x0000000000000001", "0x0000000000000002") +
+                lockDump("t2", "0x0000000000000002", "0x0000000000000001");
+        List<LockContention> contentions = LockContention.analyzeDumps(new StringReader(dumps), foldings);
+        assertEquals(contentions.size(), 2);
+
+        ByteArrayOutputStream locks = new ByteArrayOutputStream();
+        StackFolder.renderLockContentions(null, contentions, new PrintStream(locks, false, UTF_8.name()));
+        assertEquals(locks.toString(UTF_8.name()), "dump 1\n\ndump 2\n\n");
+        assertEquals(post("/locks", dumps.getBytes(UTF_8)), new Response(200, locks.toString(UTF_8.name())));
+    }
+
+    @Test
+    public void testErrors()
+            throws Exception
+    {
+        assertEquals(post("/unknown", dump).status, 404);
+        assertEquals(post("/top", dump), new Response(400, "Parameter limit is required\n"));
+        assertEquals(post("/top?limit=x", dump), new Response(400, "Invalid limit x\n"));
+        assertEquals(post("/collapsed?prefix=x", dump), new Response(400, "Invalid prefix x\n"));
+        assertEquals(post("/stacks", "\"main\" Id=1 RUNNABLE\n\tat notAFrame\n".getBytes(UTF_8)).status, 400);
+
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + server.getPort() + "/stacks").openConnection();
+        assertEquals(connection.getResponseCode(), 405);
+        connection.disconnect();
+    }
+
+    @Test
+    public void testConcurrentRequests()
+            throws Exception
+    {
+        Response expected = post("/stacks", dump);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Response>> responses = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                responses.add(executor.submit(() -> post("/stacks", dump)));
+            }
+            for (Future<Response> response : responses) {
+                assertEquals(response.get(), expected);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Response post(String path, byte[] body)
+            throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + server.getPort() + path).openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+            int status = connection.getResponseCode();
+            try (InputStream in = (status < 400) ? connection.getInputStream() : connection.getErrorStream()) {
+                return new Response(status, (in == null) ? "" : new String(ByteStreams.toByteArray(in), UTF_8));
+            }
+        }
+        finally {
+            connection.disconnect();
+        }
+    }
+
+    private static String lockDump(String name, String locked, String waitingFor)
+    {
+        return "" +
+                "2019-03-04 11:22:33\n" +
+                "Full thread dump Java HotSpot(TM) 64-Bit Server VM (25.201-b09 mixed mode):\n" +
+                "\n" +
+                "\"" + name + "\" #20 prio=5 os_prio=0 tid=0x00007f8a3c001000 nid=0x4e21 waiting for monitor entry [0x00007f8a2b7f6000]\n" +
+                "   java.lang.Thread.State: BLOCKED (on object monitor)\n" +
+                "\tat com.example.Transfer.debit(Transfer.java:31)\n" +
+                "\t- waiting to lock <" + waitingFor + "> (a com.example.Account)\n" +
+                "\tat com.example.Transfer.run(Transfer.java:20)\n" +
+                "\t- locked <" + locked + "> (a com.example.Account)\n" +
+                "\n";
+    }
+
+    private static final class Response
+    {
+        private final int status;
+        private final String body;
+
+        private Response(int status, String body)
+        {
+            this.status = status;
+            this.body = body;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Response)) {
+                return false;
+            }
+            Response other = (Response) obj;
+            return status == other.status && body.equals(other.body);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * status + body.hashCode();
+        }
+
+        @Override
+        public String toString()
+        {
+            return status + " " + body;
+        }
+    }
+}
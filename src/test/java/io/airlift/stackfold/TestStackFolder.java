@@ -1,19 +1,37 @@
 package io.airlift.stackfold;
 
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.io.Resources;
+import io.airlift.stackfold.StackFolder.CollapsedPrefix;
 import org.testng.annotations.Test;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.GZIPOutputStream;
 
+import static io.airlift.stackfold.StackFolder.groupStackTrace;
 import static io.airlift.stackfold.StackFolder.loadFolding;
 import static io.airlift.stackfold.StackFolder.loadStackTrace;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
 
 public class TestStackFolder
 {
@@ -73,12 +91,249 @@ public class TestStackFolder
         assertEquals(renderStacks(stacks), String.join("\n", readResourceLines("thread_mxbean_stack_folded.txt")));
     }
 
+    @Test
+    public void testStreaming()
+            throws Exception
+    {
+        List<StackFolding> foldings = loadFolding(readResourceLines("folding.txt"));
+        for (String resource : ImmutableList.of("stack.txt", "thread_mxbean_stack.txt")) {
+            TraceGroups groups;
+            try (Reader reader = Resources.asCharSource(Resources.getResource(resource), UTF_8).openStream()) {
+                groups = groupStackTrace(reader, foldings);
+            }
+            Set<Stack> stacks = loadStackTrace(readResourceLines(resource), foldings);
+            assertEquals(groups.getThreadCount(), stacks.size());
+            assertEquals(renderStacks(groups), renderStacks(stacks));
+        }
+    }
+
+    @Test
+    public void testParallel()
+            throws Exception
+    {
+        StackFoldings foldings = StackFoldings.compile(loadFolding(readResourceLines("folding.txt")));
+        List<String> lines = ImmutableList.<String>builder()
+                .addAll(readResourceLines("stack.txt"))
+                .add("")
+                .addAll(readResourceLines("thread_mxbean_stack.txt"))
+                .add("")
+                .addAll(readResourceLines("stack.txt"))
+                .build();
+
+        TraceGroups sequential = TraceGroups.groupStacks(new StackParser(lines.iterator(), foldings));
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int chunkLines : new int[] {1, 7, 50, 1000}) {
+                TraceGroups parallel = ParallelStackParser.groupStackTrace(lines.iterator(), foldings, pool, chunkLines);
+                assertEquals(parallel.getThreadCount(), sequential.getThreadCount());
+                assertEquals(renderStacks(parallel), renderStacks(sequential));
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testMappedFile()
+            throws Exception
+    {
+        StackFoldings foldings = StackFoldings.compile(loadFolding(readResourceLines("folding.txt")));
+        List<String> lines = ImmutableList.<String>builder()
+                .addAll(readResourceLines("stack.txt"))
+                .add("")
+                .addAll(readResourceLines("thread_mxbean_stack.txt"))
+                .add("")
+                .addAll(readResourceLines("stack.txt"))
+                .build();
+        TraceGroups expected = TraceGroups.groupStacks(new StackParser(lines.iterator(), foldings));
+
+        Path dump = Files.createTempFile("stack", ".txt");
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Files.write(dump, lines, UTF_8);
+            assertEquals(renderStacks(StackFolder.groupStackTrace(dump, UTF_8, foldings)), renderStacks(expected));
+
+            try (FileChannel channel = FileChannel.open(dump, READ)) {
+                for (int windowSize : new int[] {256, 1000, 1 << 20}) {
+                    TraceGroups groups = TraceGroups.groupStacks(new StackParser(new MappedLineIterator(channel, 0, channel.size(), UTF_8, windowSize), foldings));
+                    assertEquals(renderStacks(groups), renderStacks(expected));
+                }
+                for (long chunkBytes : new long[] {1, 500, 10_000, 1 << 20}) {
+                    TraceGroups groups = ParallelStackParser.groupStackTrace(channel, UTF_8, foldings, pool, chunkBytes, 256);
+                    assertEquals(groups.getThreadCount(), expected.getThreadCount());
+                    assertEquals(renderStacks(groups), renderStacks(expected));
+                }
+            }
+        }
+        finally {
+            pool.shutdown();
+            Files.delete(dump);
+        }
+    }
+
+    @Test
+    public void testGzipFile()
+            throws Exception
+    {
+        StackFoldings foldings = StackFoldings.compile(loadFolding(readResourceLines("folding.txt")));
+        List<String> lines = readResourceLines("stack.txt");
+        TraceGroups expected = TraceGroups.groupStacks(new StackParser(lines.iterator(), foldings));
+
+        Path dump = Files.createTempFile("stack", ".txt.gz");
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(dump)), UTF_8)) {
+                writer.write(Joiner.on('\n').join(lines));
+            }
+            assertEquals(renderStacks(StackFolder.groupStackTrace(dump, UTF_8, foldings)), renderStacks(expected));
+            assertEquals(renderStacks(StackFolder.groupStackTrace(dump, UTF_8, foldings, pool)), renderStacks(expected));
+            try (Reader reader = StackFolder.openDump(dump, UTF_8)) {
+                assertEquals(renderStacks(StackFolder.groupStackTrace(reader, foldings)), renderStacks(expected));
+            }
+        }
+        finally {
+            pool.shutdown();
+            Files.delete(dump);
+        }
+    }
+
+    @Test
+    public void testAggregate()
+            throws Exception
+    {
+        StackFoldings foldings = StackFoldings.compile(loadFolding(readResourceLines("folding.txt")));
+        TraceGroups single = groupStackTrace(new StringReader(Joiner.on('\n').join(readResourceLines("stack.txt"))), foldings);
+        assertEquals(single.getSnapshotCount(), 1);
+
+        List<String> lines = ImmutableList.<String>builder()
+                .addAll(readResourceLines("stack.txt"))
+                .add("")
+                .addAll(readResourceLines("stack.txt"))
+                .add("")
+                .addAll(readResourceLines("stack.txt"))
+                .build();
+        TraceGroups samples = groupStackTrace(new StringReader(Joiner.on('\n').join(lines)), foldings);
+        assertEquals(samples.getSnapshotCount(), 3);
+        assertEquals(samples.getThreadCount(), single.getThreadCount() * 3);
+        assertEquals(samples.getGroups().size(), single.getGroups().size());
+
+        List<TraceGroup> sorted = samples.getGroupsByThreadCount();
+        for (int i = 1; i < sorted.size(); i++) {
+            assertTrue(sorted.get(i - 1).getThreadCount() >= sorted.get(i).getThreadCount());
+        }
+
+        TraceGroups mxBean = groupStackTrace(new StringReader(Joiner.on('\n').join(readResourceLines("thread_mxbean_stack.txt"))), foldings);
+        assertEquals(mxBean.getSnapshotCount(), 1);
+        samples.merge(mxBean);
+        assertEquals(samples.getSnapshotCount(), 4);
+        assertEquals(samples.getThreadCount(), single.getThreadCount() * 3 + mxBean.getThreadCount());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PrintStream stream = new PrintStream(out, false, UTF_8.name())) {
+            StackFolder.renderSamples(samples, stream);
+        }
+        String rendered = out.toString(UTF_8.name());
+        assertTrue(rendered.startsWith(samples.getThreadCount() + " samples in 4 snapshots\n\n" + sorted.get(0).getThreadCount() + " samples ("), rendered);
+    }
+
+    @Test
+    public void testCollapsed()
+            throws Exception
+    {
+        StackFoldings foldings = StackFoldings.compile(loadFolding(readResourceLines("folding.txt")));
+        TraceGroups groups = TraceGroups.groupStacks(new StackParser(readResourceLines("stack.txt").iterator(), foldings));
+
+        String collapsed = renderCollapsed(groups, CollapsedPrefix.NONE);
+        assertTrue(collapsed.startsWith("" +
+                "java.lang.ref.Finalizer$FinalizerThread.run;java.lang.ref.ReferenceQueue.remove;java.lang.ref.ReferenceQueue.remove;java.lang.Object.wait 1\n" +
+                "java.lang.ref.Reference$ReferenceHandler.run;java.lang.Object.wait;java.lang.Object.wait 1\n"), collapsed);
+
+        String names = renderCollapsed(groups, CollapsedPrefix.NAME_PATTERN);
+        assertTrue(names.startsWith("" +
+                "Attach Listener 1\n" +
+                "C* CompilerThread* 2\n" +
+                "GC task thread#* (ParallelGC) 8\n"), names);
+
+        String states = renderCollapsed(groups, CollapsedPrefix.THREAD_STATE);
+        assertTrue(states.contains("\nWAITING;java.lang.ref.Reference$ReferenceHandler.run;java.lang.Object.wait;java.lang.Object.wait 1\n"), states);
+
+        // every thread is counted once in every mode, and only threads without frames are missing without a prefix
+        long threadsWithoutFrames = groups.getGroups().stream()
+                .filter(group -> group.getTrace().isEmpty())
+                .mapToLong(TraceGroup::getThreadCount)
+                .sum();
+        assertEquals(totalCount(collapsed), groups.getThreadCount() - threadsWithoutFrames);
+        assertEquals(totalCount(names), groups.getThreadCount());
+        assertEquals(totalCount(states), groups.getThreadCount());
+    }
+
+    @Test
+    public void testTopStacks()
+            throws Exception
+    {
+        StackFoldings foldings = StackFoldings.compile(loadFolding(readResourceLines("folding.txt")));
+        TraceGroups groups = TraceGroups.groupStacks(new StackParser(readResourceLines("stack.txt").iterator(), foldings));
+
+        assertEquals(renderTopStacks(groups, 2), "" +
+                "Attach Listener\n" +
+                "C* CompilerThread* (2 threads)\n" +
+                "GC task thread#* (ParallelGC) (8 threads)\n" +
+                "Service Thread\n" +
+                "Signal Dispatcher\n" +
+                "VM Periodic Task Thread\n" +
+                "VM Thread\n" +
+                "\n" +
+                "Finalizer\n" +
+                "    at java.lang.Object.wait(Native Method)\n" +
+                "    at java.lang.ref.ReferenceQueue.remove(ReferenceQueue.java:135)\n" +
+                "    at java.lang.ref.ReferenceQueue.remove(ReferenceQueue.java:151)\n" +
+                "    at java.lang.ref.Finalizer$FinalizerThread.run(Finalizer.java:189)\n" +
+                "\n" +
+                "3 more groups with 3 threads\n");
+
+        // with room for every group, the same groups as the full rendering, largest first
+        String all = renderTopStacks(groups, groups.getGroups().size());
+        assertEquals(ImmutableSet.copyOf(Splitter.on("\n\n").split(all)), ImmutableSet.copyOf(Splitter.on("\n\n").split(renderStacks(groups))));
+        assertEquals(renderTopStacks(groups, Integer.MAX_VALUE), all);
+    }
+
+    private static String renderTopStacks(TraceGroups groups, int limit)
+            throws IOException
+    {
+        StringWriter writer = new StringWriter();
+        StackFolder.renderTopStacks(groups, limit, writer);
+        return writer.toString();
+    }
+
+    private static String renderCollapsed(TraceGroups groups, CollapsedPrefix prefix)
+            throws IOException
+    {
+        StringWriter writer = new StringWriter();
+        StackFolder.renderCollapsed(groups, prefix, writer);
+        return writer.toString();
+    }
+
+    private static long totalCount(String collapsed)
+    {
+        long total = 0;
+        for (String line : Splitter.on('\n').omitEmptyStrings().split(collapsed)) {
+            total += Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+        }
+        return total;
+    }
+
     private static String renderStacks(Set<Stack> stacks)
+    {
+        return renderStacks(TraceGroups.groupStacks(stacks));
+    }
+
+    private static String renderStacks(TraceGroups groups)
     {
         try {
             ByteArrayOutputStream out = new ByteArrayOutputStream();
             try (PrintStream stream = new PrintStream(out, false, UTF_8.name())) {
-                StackFolder.renderStacks(stacks, stream);
+                StackFolder.renderStacks(groups, stream);
             }
             return out.toString(UTF_8.name());
         }
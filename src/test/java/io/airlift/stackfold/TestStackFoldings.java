@@ -0,0 +1,84 @@
+package io.airlift.stackfold;
+
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+
+public class TestStackFoldings
+{
+    private static final StackElement A = element("A.a");
+    private static final StackElement B = element("B.b");
+    private static final StackElement C = element("C.c");
+    private static final StackElement D = element("D.d");
+    private static final StackElement X = element("X.x");
+    private static final StackElement Y = element("Y.y");
+
+    @Test
+    public void testNoMatch()
+    {
+        StackFoldings foldings = StackFoldings.compile(ImmutableList.of(new StackFolding(ImmutableList.of(A, B), X)));
+        List<StackElement> trace = ImmutableList.of(B, A, C);
+        assertSame(foldings.foldTrace(trace), trace);
+        assertSame(StackFoldings.empty().foldTrace(trace), trace);
+    }
+
+    @Test
+    public void testEveryOccurrence()
+    {
+        StackFolding folding = new StackFolding(ImmutableList.of(A, B), X);
+        List<StackElement> trace = ImmutableList.of(A, B, C, A, B, A);
+        List<StackElement> expected = ImmutableList.of(X, C, X, A);
+        assertEquals(folding.foldTrace(trace), expected);
+        assertEquals(StackFoldings.compile(ImmutableList.of(folding)).foldTrace(trace), expected);
+    }
+
+    @Test
+    public void testMultipleRules()
+    {
+        StackFoldings foldings = StackFoldings.compile(ImmutableList.of(
+                new StackFolding(ImmutableList.of(A, B), X),
+                new StackFolding(ImmutableList.of(C, D), Y)));
+        assertEquals(foldings.foldTrace(ImmutableList.of(C, D, A, B, D)), ImmutableList.of(Y, X, D));
+    }
+
+    @Test
+    public void testOverlappingRules()
+    {
+        // longest match wins at the same start
+        StackFoldings foldings = StackFoldings.compile(ImmutableList.of(
+                new StackFolding(ImmutableList.of(A, B), X),
+                new StackFolding(ImmutableList.of(A, B, C), Y)));
+        assertEquals(foldings.foldTrace(ImmutableList.of(A, B, C)), ImmutableList.of(Y));
+        assertEquals(foldings.foldTrace(ImmutableList.of(A, B, D)), ImmutableList.of(X, D));
+
+        // leftmost match wins, even when a segment is a suffix of another
+        foldings = StackFoldings.compile(ImmutableList.of(
+                new StackFolding(ImmutableList.of(B, C), X),
+                new StackFolding(ImmutableList.of(A, B), Y)));
+        assertEquals(foldings.foldTrace(ImmutableList.of(A, B, C)), ImmutableList.of(Y, C));
+
+        // first rule wins for identical segments
+        foldings = StackFoldings.compile(ImmutableList.of(
+                new StackFolding(ImmutableList.of(A, B), X),
+                new StackFolding(ImmutableList.of(A, B), Y)));
+        assertEquals(foldings.foldTrace(ImmutableList.of(C, A, B)), ImmutableList.of(C, X));
+    }
+
+    @Test
+    public void testFailureTransitions()
+    {
+        StackFoldings foldings = StackFoldings.compile(ImmutableList.of(
+                new StackFolding(ImmutableList.of(A, A, B), X),
+                new StackFolding(ImmutableList.of(A, C), Y)));
+        assertEquals(foldings.foldTrace(ImmutableList.of(A, A, A, B, A, A, C)), ImmutableList.of(A, X, A, Y));
+    }
+
+    private static StackElement element(String line)
+    {
+        return StackParser.extractStackElement(line);
+    }
+}
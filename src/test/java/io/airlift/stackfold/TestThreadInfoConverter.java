@@ -0,0 +1,168 @@
+package io.airlift.stackfold;
+
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static io.airlift.stackfold.StackParser.extractStackElement;
+import static io.airlift.stackfold.ThreadInfoConverter.toStackElement;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertThrows;
+import static org.testng.Assert.assertTrue;
+
+public class TestThreadInfoConverter
+{
+    @Test
+    public void testStackElement()
+    {
+        assertSameElement(new StackTraceElement("com.example.Foo", "bar", "Foo.java", 42));
+        assertSameElement(new StackTraceElement("com.example.Foo", "bar", "Foo.java", -1));
+        assertSameElement(new StackTraceElement("com.example.Foo", "bar", null, -1));
+        assertSameElement(new StackTraceElement("sun.misc.Unsafe", "park", null, -2));
+    }
+
+    @Test
+    public void testCurrentThread()
+    {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        ThreadInfoConverter converter = new ThreadInfoConverter(StackFoldings.empty());
+        Object monitor = new Object();
+
+        Stack stack;
+        synchronized (monitor) {
+            ThreadInfo threadInfo = threadMXBean.getThreadInfo(new long[] {Thread.currentThread().getId()}, true, false)[0];
+            stack = converter.toStack(threadInfo);
+        }
+
+        assertEquals(stack.getName(), Thread.currentThread().getName());
+        assertEquals(stack.getThreadId(), String.valueOf(Thread.currentThread().getId()));
+        assertEquals(stack.getState(), Thread.State.RUNNABLE);
+        assertNull(stack.getWaitOn());
+        assertTrue(stack.getTrace().contains(new StackElement(getClass().getName(), "testCurrentThread", null, -1, ImmutableList.of())));
+
+        assertEquals(stack.getLocks().size(), 1);
+        assertEquals(stack.getLocks().get(0).getType(), Object.class.getName());
+        assertEquals(stack.getLocks().get(0).getLockId(), Integer.toHexString(System.identityHashCode(monitor)));
+    }
+
+    @Test
+    public void testSampler()
+            throws Exception
+    {
+        CountDownLatch done = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> awaitUninterruptibly(done), "sampled-waiter");
+        waiter.start();
+        try (StackSampler sampler = new StackSampler(ManagementFactory.getThreadMXBean(), StackFoldings.empty())) {
+            while (waiter.getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+            for (int i = 0; i < 3; i++) {
+                sampler.sample();
+            }
+
+            TraceGroups profile = sampler.getProfile();
+            assertEquals(profile.getSnapshotCount(), 3);
+            assertEquals(sampler.getSampleCount(), 3);
+            assertTrue(sampler.getAverageSampleWallNanos() > 0);
+            assertEquals(waiterSamples(profile), 3);
+
+            // the scheduled sampler adds to the same profile
+            sampler.start(1, TimeUnit.MILLISECONDS);
+            while (sampler.getSampleCount() < 6) {
+                Thread.sleep(1);
+            }
+            sampler.stop();
+            profile = sampler.getProfileAndReset();
+            assertTrue(profile.getSnapshotCount() >= 6);
+            assertEquals(waiterSamples(profile), profile.getSnapshotCount());
+            assertEquals(sampler.getProfile().getSnapshotCount(), 0);
+        }
+        finally {
+            done.countDown();
+            waiter.join();
+        }
+    }
+
+    @Test
+    public void testSamplerFailures()
+            throws Exception
+    {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        AtomicInteger failures = new AtomicInteger(2);
+        ThreadMXBean failing = (ThreadMXBean) Proxy.newProxyInstance(
+                ThreadMXBean.class.getClassLoader(),
+                new Class<?>[] {ThreadMXBean.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("dumpAllThreads") && failures.getAndDecrement() > 0) {
+                        throw new UnsupportedOperationException("monitor usage");
+                    }
+                    if (method.getName().endsWith("UsageSupported")) {
+                        return false;
+                    }
+                    try {
+                        return method.invoke(threadMXBean, args);
+                    }
+                    catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+
+        assertThrows(IllegalArgumentException.class, () -> new StackSampler(failing, StackFoldings.empty(), true, false));
+        assertThrows(IllegalArgumentException.class, () -> new StackSampler(failing, StackFoldings.empty(), false, true));
+
+        // the failed samples neither stop the schedule nor change the profile
+        try (StackSampler sampler = new StackSampler(failing, StackFoldings.empty())) {
+            sampler.start(1, TimeUnit.MILLISECONDS);
+            while (sampler.getSampleCount() < 3) {
+                Thread.sleep(1);
+            }
+            sampler.stop();
+            assertEquals(sampler.getFailureCount(), 2);
+            assertTrue(sampler.getLastFailure() instanceof UnsupportedOperationException);
+            assertEquals(sampler.getProfile().getSnapshotCount(), sampler.getSampleCount());
+        }
+    }
+
+    private static long waiterSamples(TraceGroups profile)
+    {
+        StackElement waiterFrame = new StackElement(TestThreadInfoConverter.class.getName(), "awaitUninterruptibly", null, -1, ImmutableList.of());
+        long samples = 0;
+        for (TraceGroup group : profile.getGroups()) {
+            if (group.getTrace().contains(waiterFrame)) {
+                samples += group.getThreadCount();
+            }
+        }
+        return samples;
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch)
+    {
+        while (true) {
+            try {
+                latch.await();
+                return;
+            }
+            catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    private static void assertSameElement(StackTraceElement element)
+    {
+        StackElement expected = extractStackElement("\tat " + element);
+        StackElement actual = toStackElement(element);
+        assertEquals(actual.getClassName(), expected.getClassName());
+        assertEquals(actual.getMethod(), expected.getMethod());
+        assertEquals(actual.getFile(), expected.getFile());
+        assertEquals(actual.getLineNumber(), expected.getLineNumber());
+    }
+}
@@ -0,0 +1,45 @@
+package io.airlift.stackfold;
+
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.Test;
+
+import static io.airlift.stackfold.ThreadNamePatterns.toPattern;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+
+public class TestThreadNamePatterns
+{
+    @Test
+    public void testToPattern()
+    {
+        for (String name : ImmutableList.of(
+                "",
+                "main",
+                "7",
+                "http-worker-123",
+                "pool-12-thread-345",
+                "C2 CompilerThread0",
+                "GC task thread#0 (ParallelGC)",
+                "42 is the answer 42",
+                "a1b22c333d",
+                "query-20190304_112233_00001_abcde",
+                "١٢ arabic digits")) {
+            assertEquals(toPattern(name), name.replaceAll("\\d+", "*"), name);
+        }
+        assertSame(toPattern("Signal Dispatcher"), "Signal Dispatcher");
+    }
+
+    @Test
+    public void testCache()
+    {
+        ThreadNamePatterns patterns = new ThreadNamePatterns(2);
+        String pattern = patterns.get("http-worker-1");
+        assertEquals(pattern, "http-worker-*");
+        assertSame(patterns.get("http-worker-1"), pattern);
+
+        // filling the cache starts over with an empty one
+        assertEquals(patterns.get("http-worker-2"), "http-worker-*");
+        assertEquals(patterns.get("http-worker-3"), "http-worker-*");
+        assertEquals(patterns.get("http-worker-1"), "http-worker-*");
+    }
+}
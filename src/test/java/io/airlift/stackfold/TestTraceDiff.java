@@ -0,0 +1,90 @@
+package io.airlift.stackfold;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Resources;
+import io.airlift.stackfold.SyntheticThreadDump.Format;
+import io.airlift.stackfold.TraceDiff.Change;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestTraceDiff
+{
+    @Test
+    public void testDiff()
+            throws Exception
+    {
+        StackFoldings foldings = StackFoldings.compile(SyntheticThreadDump.loadDefaultFoldings());
+        List<String> stack = Resources.readLines(Resources.getResource("stack.txt"), UTF_8);
+        List<String> mxBean = Resources.readLines(Resources.getResource("thread_mxbean_stack.txt"), UTF_8);
+
+        TraceGroups before = group(ImmutableList.<String>builder().addAll(stack).add("").addAll(mxBean).build(), foldings);
+        TraceGroups after = group(ImmutableList.<String>builder().addAll(stack).add("").addAll(stack).build(), foldings);
+        TraceDiff diff = TraceDiff.compare(before, after);
+
+        long delta = 0;
+        long previous = Long.MAX_VALUE;
+        for (Change change : diff.getChanges()) {
+            assertTrue(change.getDelta() != 0);
+            assertTrue(Math.abs(change.getDelta()) <= previous);
+            previous = Math.abs(change.getDelta());
+            delta += change.getDelta();
+        }
+        assertEquals(delta, after.getThreadCount() - before.getThreadCount());
+
+        // the largest change is the group of threads without frames, with threads from both dumps
+        Change largest = diff.getChanges().get(0);
+        assertNotNull(largest.getBefore());
+        assertNotNull(largest.getAfter());
+        assertEquals(largest.getDelta(), 14);
+
+        // the thread mxbean threads are gone
+        Change gone = diff.getChanges().stream()
+                .filter(change -> change.getAfter() == null)
+                .findFirst()
+                .get();
+        assertEquals(gone.getAfterCount(), 0);
+        assertTrue(gone.getBeforeCount() > 0);
+
+        // nothing changed
+        assertTrue(TraceDiff.compare(after, group(ImmutableList.<String>builder().addAll(stack).add("").addAll(stack).build(), foldings)).getChanges().isEmpty());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PrintStream stream = new PrintStream(out, false, UTF_8.name())) {
+            StackFolder.renderDiff(TraceDiff.compare(group(stack, foldings), after), stream);
+        }
+        String rendered = out.toString(UTF_8.name());
+        assertTrue(rendered.startsWith("19 -> 38 threads\n\n+15 threads (15 -> 30)\nAttach Listener (1 -> 2)\n"), rendered);
+        assertTrue(rendered.contains("\nGC task thread#* (ParallelGC) (8 -> 16)\n"), rendered);
+    }
+
+    @Test
+    public void testLargeDumps()
+    {
+        StackFoldings foldings = StackFoldings.compile(SyntheticThreadDump.loadDefaultFoldings());
+        TraceGroups before = group(SyntheticThreadDump.generate(Format.JSTACK, 10_000, 1), foldings);
+        TraceGroups after = group(SyntheticThreadDump.generate(Format.JSTACK, 20_000, 1), foldings);
+
+        // the same seed produces the same traces, so most groups are matched
+        TraceDiff diff = TraceDiff.compare(before, after);
+        for (Change change : diff.getChanges()) {
+            assertEquals(change.getBefore(), before.getGroup(Trace.copyOf(change.getTrace())));
+            assertEquals(change.getAfter(), after.getGroup(Trace.copyOf(change.getTrace())));
+        }
+        assertTrue(diff.getChanges().stream().filter(change -> change.getBefore() != null && change.getAfter() != null).count() > before.getGroups().size() / 2);
+        long delta = diff.getChanges().stream().mapToLong(Change::getDelta).sum();
+        assertEquals(delta, after.getThreadCount() - before.getThreadCount());
+    }
+
+    private static TraceGroups group(List<String> lines, StackFoldings foldings)
+    {
+        return TraceGroups.groupStacks(new StackParser(lines.iterator(), foldings));
+    }
+}